@@ -17,4 +17,9 @@ dependencies {
 
 tasks.getByName<Test>("test") {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+tasks.register<JavaExec>("benchmark") {
+    description = "Measures the throughput of the storage under concurrent reads and writes."
+    classpath = sourceSets["test"].runtimeClasspath
+    mainClass.set("edu.kit.kastel.formal.bloatcache.ReadPathBenchmark")
+}
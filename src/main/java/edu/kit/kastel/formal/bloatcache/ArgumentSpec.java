@@ -0,0 +1,159 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An argument specifier in the syntax of {@link Util#checkArguments(List, String...)}, compiled
+ * once into an array of validators, so checking a request neither splits strings nor allocates:
+ * <ul>
+ *     <li>{@code K} a key of at most 250 bytes without spaces</li>
+ *     <li>{@code F} flags, an unsigned 32-bit number</li>
+ *     <li>{@code T} an expiration time, a number up to {@link Integer#MAX_VALUE}</li>
+ *     <li>{@code L} the length of a data block, a number up to {@link Integer#MAX_VALUE}</li>
+ *     <li>{@code I}, {@code C} an unsigned 64-bit number, e.g., a delta or cas unique</li>
+ *     <li>{@code a|b} one of the given lower-case words</li>
+ *     <li>{@code [x]} optional, {@code x*} one or more</li>
+ * </ul>
+ * Numbers that pass can be parsed by {@link Util#parseInt(byte[])} and
+ * {@link Util#parseLongNumber(byte[])} without further checks; unsigned 64-bit numbers above
+ * {@link Long#MAX_VALUE} come out as their two's complement. Arguments after the specified ones
+ * are ignored, like by {@link Util#checkArguments(List, String...)}.
+ */
+final class ArgumentSpec {
+    private static final int KEY = 0;
+    private static final int FLAGS = 1;
+    private static final int EXPTIME = 2;
+    private static final int NUMBER = 3;
+    private static final int WORD = 4;
+    private static final int LENGTH = 5;
+
+    private static final byte[] MAX_UNSIGNED_LONG = "18446744073709551615".getBytes();
+
+    private final int[] kinds;
+    private final boolean[] optional;
+    private final boolean[] repeated;
+
+    /**
+     * The allowed words of each {@link #WORD} argument, null for the other kinds.
+     */
+    private final byte[][][] words;
+
+    private ArgumentSpec(int length) {
+        kinds = new int[length];
+        optional = new boolean[length];
+        repeated = new boolean[length];
+        words = new byte[length][][];
+    }
+
+    static ArgumentSpec compile(String... specifier) {
+        var spec = new ArgumentSpec(specifier.length);
+        for (int i = 0; i < specifier.length; i++) {
+            var exp = specifier[i];
+            if (exp.endsWith("*")) {
+                spec.repeated[i] = true;
+                exp = exp.substring(0, exp.length() - 1);
+            }
+            if (exp.startsWith("[")) {
+                spec.optional[i] = true;
+                exp = exp.substring(1, exp.length() - 1);
+            }
+            switch (exp) {
+                case "K":
+                    spec.kinds[i] = KEY;
+                    break;
+                case "F":
+                    spec.kinds[i] = FLAGS;
+                    break;
+                case "T":
+                    spec.kinds[i] = EXPTIME;
+                    break;
+                case "L":
+                    spec.kinds[i] = LENGTH;
+                    break;
+                case "I":
+                case "C":
+                    spec.kinds[i] = NUMBER;
+                    break;
+                default:
+                    if (!exp.toLowerCase().equals(exp)) {
+                        throw new IllegalArgumentException("unknown expected argument " + exp);
+                    }
+                    var alternatives = exp.split("\\|");
+                    spec.kinds[i] = WORD;
+                    spec.words[i] = new byte[alternatives.length][];
+                    for (int j = 0; j < alternatives.length; j++) {
+                        spec.words[i][j] = alternatives[j].getBytes();
+                    }
+            }
+        }
+        return spec;
+    }
+
+    /**
+     * @return the position of the first key in the specifier, or -1 if there is none
+     */
+    int firstKey() {
+        for (int s = 0; s < kinds.length; s++) {
+            if (kinds[s] == KEY) return s;
+        }
+        return -1;
+    }
+
+    /**
+     * @param first the index of the first argument to check, e.g., 1 to skip the command name
+     * @return true if the arguments match the specifier
+     */
+    boolean matches(List<byte[]> args, int first) {
+        int a = first;
+        for (int s = 0; s < kinds.length; s++) {
+            if (a < args.size() && matches(s, args.get(a))) {
+                a++;
+                if (repeated[s]) {
+                    while (a < args.size() && matches(s, args.get(a))) a++;
+                }
+            } else if (!optional[s]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(int s, byte[] arg) {
+        switch (kinds[s]) {
+            case KEY:
+                return isKey(arg);
+            case FLAGS:
+                return isNumber(arg, 10) && Util.parseLongNumber(arg) <= 0xFFFFFFFFL;
+            case EXPTIME:
+                return isNumber(arg, 10) && Util.parseLongNumber(arg) <= Integer.MAX_VALUE;
+            case LENGTH:
+                return isNumber(arg, 10) && Util.parseLongNumber(arg) <= Integer.MAX_VALUE;
+            case NUMBER:
+                // 20 digits may exceed 64 bits; digit strings of equal length compare like numbers
+                return isNumber(arg, 20)
+                        && (arg.length < 20 || Arrays.compare(arg, MAX_UNSIGNED_LONG) <= 0);
+            default:
+                for (var word : words[s]) {
+                    if (Arrays.equals(word, arg)) return true;
+                }
+                return false;
+        }
+    }
+
+    static boolean isKey(byte[] arg) {
+        if (arg.length == 0 || arg.length > 250) return false;
+        for (byte b : arg) {
+            if (b == ' ') return false;
+        }
+        return true;
+    }
+
+    private static boolean isNumber(byte[] arg, int maxDigits) {
+        if (arg.length == 0 || arg.length > maxDigits) return false;
+        for (byte b : arg) {
+            if (b < '0' || b > '9') return false;
+        }
+        return true;
+    }
+}
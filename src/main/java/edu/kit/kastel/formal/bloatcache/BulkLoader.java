@@ -0,0 +1,123 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static edu.kit.kastel.formal.bloatcache.Util.parseInt;
+
+/**
+ * Loads a dump of items into the {@link ServerData}, e.g., to pre-warm a new server with the
+ * contents of another one, see {@link ServerConfig#load}. A dump is a sequence of storage commands
+ * as written by "lru_crawler dump" or by memcached-tool:
+ * <pre>
+ * add|set &lt;key> &lt;flags> &lt;exptime> &lt;bytes>\r\n
+ * &lt;data block>\r\n
+ * </pre>
+ * A final "END" line is ignored, so the output of "lru_crawler dump" can be saved as is.
+ * <p>
+ * The dump is parsed by one thread, which reads each value straight into the storage of its entry.
+ * The entries are stored in batches by a pool of threads, so that compression, indexing and
+ * eviction run in parallel on different shards and the load keeps up with the disk or network.
+ * At most two batches per thread are in flight, which bounds the memory of a load that outruns
+ * the stores.
+ */
+public class BulkLoader {
+    static final int BATCH_SIZE = 256;
+
+    private final ServerData data;
+    private final int threads;
+
+    private final LongAdder loaded = new LongAdder();
+    private long expired;
+
+    public BulkLoader(ServerData data, int threads) {
+        this.data = data;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @return the number of stored items
+     */
+    public long load(Path dump) throws IOException {
+        try (var in = new BufferedInputStream(Files.newInputStream(dump), 256 * 1024)) {
+            return load(in);
+        }
+    }
+
+    /**
+     * Stores all items of the dump, except those that are already expired. The items replace
+     * stored items of the same keys.
+     *
+     * @return the number of stored items
+     */
+    public long load(InputStream in) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+            var thread = new Thread(task, "bulk-load");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var inFlight = new Semaphore(2 * threads);
+        var chunkSize = data.config().itemChunkSize;
+        try {
+            var batch = new ArrayList<Entry>(BATCH_SIZE);
+            while (true) {
+                var args = Util.readArguments(in);
+                var command = new String(args.get(0));
+                if (command.isEmpty() || command.equals("END")) break;
+                if (!(command.equals("add") || command.equals("set")) || args.size() < 5) {
+                    throw new IOException("Unexpected command in dump: " + command);
+                }
+                var exptime = Util.expirationTime(args.get(3));
+                var entry = Entry.read(in, new Entry.Key(args.get(1)), parseInt(args.get(2)), exptime,
+                        parseInt(args.get(4)), chunkSize);
+                if (Util.isExpired(exptime, System.currentTimeMillis())) {
+                    expired++;
+                    continue;
+                }
+                batch.add(entry);
+                if (batch.size() == BATCH_SIZE) {
+                    submit(pool, inFlight, batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) submit(pool, inFlight, batch);
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return loaded.sum();
+    }
+
+    private void submit(ExecutorService pool, Semaphore inFlight, List<Entry> batch) throws InterruptedException {
+        inFlight.acquire();
+        pool.execute(() -> {
+            try {
+                for (var entry : batch) data.insert(entry);
+                loaded.add(batch.size());
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * @return the number of items skipped because they were expired
+     */
+    public long expired() {
+        return expired;
+    }
+}
@@ -0,0 +1,208 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * An entry whose value is stored in fixed-size chunks instead of the item array, which then only
+ * holds header and key. Large values are read from and written to the socket chunk by chunk, so
+ * they never need one contiguous (humongous) array or a temporary copy.
+ * <p>
+ * Compression works the same way: the deflated bytes are streamed into new chunks, and inflated
+ * through a small buffer when the value is sent.
+ * <p>
+ * The chunks are never modified after the entry is published, so new versions with a different
+ * expiration time share them.
+ */
+class ChunkedEntry extends Entry {
+    private static final int INFLATE_BUFFER = 8192;
+
+    private final int chunkSize;
+
+    private byte[][] chunks;
+
+    /**
+     * Number of bytes in the chunks; differs from {@link #rawLength} if the value is compressed.
+     */
+    private int length;
+
+    private int rawLength;
+
+    ChunkedEntry(Key key, int flags, int exptime, byte[][] chunks, int length) {
+        this(key, flags, exptime, chunks, length, chunks[0].length);
+    }
+
+    /**
+     * @param chunkSize the size of the chunks, which may be smaller, e.g., after {@link #join}
+     */
+    ChunkedEntry(Key key, int flags, int exptime, byte[][] chunks, int length, int chunkSize) {
+        super(key, flags, exptime, 0);
+        this.chunkSize = chunkSize;
+        this.chunks = chunks;
+        this.length = length;
+        this.rawLength = length;
+    }
+
+    private ChunkedEntry(ChunkedEntry other) {
+        super(other.hash, other.item.clone());
+        this.chunkSize = other.chunkSize;
+        this.chunks = other.chunks;
+        this.length = other.length;
+        this.rawLength = other.rawLength;
+    }
+
+    static byte[][] split(byte[] data, int chunkSize) {
+        var chunks = new byte[Math.max(1, (data.length + chunkSize - 1) / chunkSize)][];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = Arrays.copyOfRange(data, i * chunkSize, Math.min(data.length, (i + 1) * chunkSize));
+        }
+        return chunks;
+    }
+
+    /**
+     * Joins two chunk lists without copying the chunks, except for the last of {@code first} and
+     * the first of {@code second}, which are merged if they fit into one chunk, so that repeated
+     * small appends do not leave a trail of tiny chunks.
+     */
+    static byte[][] join(byte[][] first, byte[][] second, int chunkSize) {
+        var last = first[first.length - 1];
+        var head = second[0];
+        if (last.length + head.length > chunkSize) {
+            var chunks = Arrays.copyOf(first, first.length + second.length);
+            System.arraycopy(second, 0, chunks, first.length, second.length);
+            return chunks;
+        }
+        var merged = Arrays.copyOf(last, last.length + head.length);
+        System.arraycopy(head, 0, merged, last.length, head.length);
+        var chunks = Arrays.copyOf(first, first.length + second.length - 1);
+        chunks[first.length - 1] = merged;
+        System.arraycopy(second, 1, chunks, first.length, second.length - 1);
+        return chunks;
+    }
+
+    @Override
+    byte[][] chunks() {
+        // compressed chunks cannot be joined with others
+        return isCompressed() ? split(value(), chunkSize) : chunks;
+    }
+
+    @Override
+    Entry copy() {
+        return new ChunkedEntry(this);
+    }
+
+    @Override
+    public boolean compress(Compression compression) {
+        if (isCompressed()) return true;
+        if (rawLength < compression.threshold()) return false;
+        final var deflater = compression.deflater();
+        try {
+            var compressed = new ArrayList<byte[]>();
+            var current = new byte[chunkSize];
+            int pos = 0;
+            int total = 0;
+            for (int i = 0; i <= chunks.length; i++) {
+                if (i < chunks.length) {
+                    deflater.setInput(chunks[i]);
+                } else {
+                    deflater.finish();
+                }
+                while (i < chunks.length ? !deflater.needsInput() : !deflater.finished()) {
+                    int n = deflater.deflate(current, pos, current.length - pos);
+                    pos += n;
+                    total += n;
+                    if (total >= rawLength - 1) return false;
+                    if (pos == current.length) {
+                        compressed.add(current);
+                        current = new byte[chunkSize];
+                        pos = 0;
+                    }
+                }
+            }
+            if (pos > 0) compressed.add(Arrays.copyOf(current, pos));
+            chunks = compressed.toArray(new byte[0][]);
+            length = total;
+            item[BITS] |= COMPRESSED;
+            return true;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    @Override
+    public int valueLength() {
+        return rawLength;
+    }
+
+    @Override
+    public int storedValueLength() {
+        return length;
+    }
+
+    @Override
+    public byte[] value() {
+        var value = new byte[rawLength];
+        if (isCompressed()) {
+            try {
+                inflate(value, null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            int pos = 0;
+            for (var chunk : chunks) {
+                System.arraycopy(chunk, 0, value, pos, chunk.length);
+                pos += chunk.length;
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void writeValue(OutputStream out) throws IOException {
+        if (isCompressed()) {
+            inflate(new byte[INFLATE_BUFFER], out);
+        } else {
+            for (var chunk : chunks) out.write(chunk);
+        }
+    }
+
+    /**
+     * Inflates the chunks into {@code buffer}. If {@code out} is given, the buffer is flushed to it
+     * whenever it is full, otherwise the buffer has to hold the complete value.
+     */
+    private void inflate(byte[] buffer, OutputStream out) throws IOException {
+        final var inflater = Compression.inflater();
+        try {
+            int pos = 0;
+            for (var chunk : chunks) {
+                inflater.setInput(chunk);
+                while (!inflater.needsInput() && !inflater.finished()) {
+                    int n = inflater.inflate(buffer, pos, buffer.length - pos);
+                    pos += n;
+                    if (pos == buffer.length) {
+                        if (out == null) return;
+                        out.write(buffer, 0, pos);
+                        pos = 0;
+                    } else if (n == 0 && inflater.needsDictionary()) {
+                        throw new IllegalStateException("Corrupt compressed value");
+                    }
+                }
+            }
+            if (out != null && pos > 0) out.write(buffer, 0, pos);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed value", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    @Override
+    public int size() {
+        return item.length + length + 16 * chunks.length;
+    }
+}
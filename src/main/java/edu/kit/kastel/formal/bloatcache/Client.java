@@ -1,25 +1,73 @@
 package edu.kit.kastel.formal.bloatcache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * Requests are buffered and sent with one flush each, right before the reply is read, so a request
+ * is one packet instead of one per line.
+ *
  * @author Alexander Weigl
  * @version 1 (14.03.23)
  */
 public class Client implements AutoCloseable {
     private final InputStream in;
     private final PrintStream out;
-    private final Socket socket;
+    private final Closeable socket;
+
+    /**
+     * Optional in-process L1 cache, null if disabled.
+     */
+    private NearCache nearCache;
+
+    /**
+     * Optional coalescing of concurrent gets, null if disabled.
+     */
+    private SingleFlight singleFlight;
+
+    /**
+     * Optional batching of concurrent gets into multi-gets, null if disabled.
+     */
+    private GetBatcher batcher;
 
     public Client(Socket socket) throws IOException {
+        this(socket, socket.getInputStream(), socket.getOutputStream());
+        socket.setTcpNoDelay(true);
+    }
+
+    /**
+     * Connects through the Unix domain socket of a server on the same host, see
+     * {@link ServerConfig#unixSocket}.
+     */
+    public Client(Path unixSocket) throws IOException {
+        this(SocketChannel.open(UnixDomainSocketAddress.of(unixSocket)));
+    }
+
+    private Client(SocketChannel channel) {
+        this(channel, ChannelStreams.input(channel), ChannelStreams.output(channel));
+    }
+
+    private Client(Closeable socket, InputStream in, OutputStream out) {
         this.socket = socket;
-        out = new PrintStream(socket.getOutputStream(), true);
-        in = socket.getInputStream();
+        this.in = new BufferedInputStream(in);
+        this.out = new PrintStream(new BufferedOutputStream(out), false);
     }
 
     public Client(String hostname, int port) throws IOException {
@@ -30,6 +78,69 @@ public class Client implements AutoCloseable {
         this(new Socket("localhost", 8081));
     }
 
+    /**
+     * Enables the near cache: {@link #get(String)} first consults an in-process LRU of at most
+     * {@code maxEntries} entries, each valid for {@code ttlMillis}. Writes through this client
+     * update or invalidate the local entry.
+     */
+    public void enableNearCache(int maxEntries, long ttlMillis) {
+        nearCache = new NearCache(maxEntries, ttlMillis);
+    }
+
+    public void disableNearCache() {
+        nearCache = null;
+    }
+
+    /**
+     * @return the near cache with its hit/miss counters, or null if disabled
+     */
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * Enables coalescing: {@link #get(String)} may be called by many threads at once, and
+     * concurrent gets of the same key share one request, see {@link SingleFlight}. The gets of
+     * different keys are sent one after the other over the connection. Other commands must still
+     * not be issued concurrently.
+     */
+    public void enableCoalescing() {
+        singleFlight = new SingleFlight();
+    }
+
+    public void disableCoalescing() {
+        singleFlight = null;
+    }
+
+    /**
+     * @return the coalescing with its counters, or null if disabled
+     */
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * Enables batching: {@link #get(String)} may be called by many threads at once, and the gets
+     * issued within {@code windowMicros} of each other, at most {@code maxKeys}, are sent as one
+     * multi-get, see {@link GetBatcher}. Combined with {@link #enableCoalescing()}, each batch
+     * holds only the keys that are not in flight already. Other commands must still not be
+     * issued concurrently.
+     */
+    public void enableBatching(long windowMicros, int maxKeys) {
+        batcher = new GetBatcher(windowMicros, maxKeys);
+    }
+
+    public void disableBatching() {
+        batcher = null;
+    }
+
+    /**
+     * @return the batching with its counters, or null if disabled
+     */
+    public GetBatcher getBatcher() {
+        return batcher;
+    }
+
     public void set(String key, String value) throws IOException {
         set(key, value, 0, 0);
     }
@@ -52,7 +163,10 @@ public class Client implements AutoCloseable {
 
 
     public void set(String key, String value, int flags, int exptime) throws IOException {
-        manipulationCommand("set", key, value, flags, exptime);
+        var resp = manipulationCommand("set", key, value, flags, exptime);
+        if (nearCache != null && "STORED".equals(resp)) {
+            nearCache.put(key, value, nearCacheTtl(exptime));
+        }
     }
 
     public void replace(String key, String value, int flags, int exptime) throws IOException {
@@ -72,17 +186,34 @@ public class Client implements AutoCloseable {
     }
 
 
-    private void manipulationCommand(String command, String key, String value, int flags, int exptime) throws IOException {
+    private String manipulationCommand(String command, String key, String value, int flags, int exptime) throws IOException {
+        invalidate(key);
         var b = value.getBytes();
         out.format("%s %s %d %d %d\r\n", command, key, flags, exptime, b.length);
         out.write(b);
         out.format("\r\n");
-        checkForError();
+        out.flush();
+        return checkForError();
     }
 
-    private void checkForError() throws IOException {
+    private String checkForError() throws IOException {
         byte[] line = Util.readLine(in);
         System.out.println(new String(line));
+        return new String(line);
+    }
+
+    private void invalidate(String key) {
+        if (nearCache != null) nearCache.invalidate(key);
+    }
+
+    /**
+     * The near cache must not serve an item longer than the server keeps it.
+     * Absolute unix timestamps are converted into a relative time.
+     */
+    private long nearCacheTtl(int exptime) {
+        if (exptime == 0) return Long.MAX_VALUE;
+        if (exptime < Util.RELATIVE_TIME_LIMIT) return exptime * 1000L;
+        return exptime * 1000L - System.currentTimeMillis();
     }
 
     private byte[] readLine(long length) throws IOException {
@@ -104,25 +235,79 @@ public class Client implements AutoCloseable {
             case "VALUE":
                 long length = Long.parseLong(new String(args.get(3)));
                 var value = Util.readLineExactly(in, length);
+                readEnd();
                 return new String(value);
+            case "END":
+                return null;
             default:
                 throw new RuntimeException("EXCEPTION: " + result);
         }
     }
 
+    private void readEnd() throws IOException {
+        var line = new String(Util.readLine(in));
+        if (!"END".equals(line)) {
+            throw new RuntimeException("EXCEPTION: " + line);
+        }
+    }
+
 
     public String[] gets(String... key) throws IOException {
         out.format("get");
         for (String k : key)
             out.format(" %s", k);
         out.format("\r\n");
+        out.flush();
         Arrays.fill(key, readValue());
         return key;
     }
 
+    /**
+     * @return the value of the key, or null if the server does not hold it
+     */
     public String get(String key) throws IOException {
+        if (nearCache != null) {
+            var cached = nearCache.get(key);
+            if (cached != null) return cached;
+        }
+        var singleFlight = this.singleFlight;
+        var batcher = this.batcher;
+        SingleFlight.Loader loader = batcher != null ? k -> batcher.get(k, this::fetchAll) : this::fetch;
+        return singleFlight != null ? singleFlight.get(key, loader) : loader.load(key);
+    }
+
+    /**
+     * Sends one get for all keys.
+     *
+     * @return the values of the keys the server holds
+     */
+    private synchronized Map<String, String> fetchAll(List<String> keys) throws IOException {
+        out.format("get");
+        for (var key : keys) out.format(" %s", key);
+        out.format("\r\n");
+        out.flush();
+        var values = new HashMap<String, String>();
+        while (true) {
+            var args = Util.readArguments(in);
+            var result = new String(args.get(0));
+            if ("END".equals(result)) return values;
+            if (!"VALUE".equals(result)) throw new RuntimeException("EXCEPTION: " + result);
+            long length = Long.parseLong(new String(args.get(3)));
+            var key = new String(args.get(1));
+            var value = new String(Util.readLineExactly(in, length));
+            values.put(key, value);
+            if (nearCache != null) nearCache.put(key, value);
+        }
+    }
+
+    private synchronized String fetch(String key) throws IOException {
         out.format("get %s\r\n", key);
-        return readValue();
+        out.flush();
+        var value = readValue();
+        if (nearCache != null && value != null) {
+            nearCache.put(key, value);
+        }
+        return value;
     }
 
     public String[] gats(int exptime, String... key) throws IOException {
@@ -130,15 +315,125 @@ public class Client implements AutoCloseable {
         for (String k : key)
             out.format(" %s", k);
         out.format("\r\n");
+        out.flush();
         Arrays.fill(key, readValue());
         return key;
     }
 
     public String gat(int exptime, String key) throws IOException {
+        invalidate(key);
         out.format("gat %d %s\r\n", exptime, key);
+        out.flush();
         return readValue();
     }
 
+    /**
+     * The reply of {@link #leaseGet(String)}: the value, or on a miss either a lease to load the
+     * value, or a stale value, or neither if the client should retry shortly.
+     */
+    public static final class LeaseReply {
+        /**
+         * The value, or the stale value if {@link #stale}, or null on a miss.
+         */
+        public final String value;
+        public final boolean stale;
+
+        /**
+         * The token for {@link #leaseSet(String, String, int, int, long)} if this client received
+         * the lease, otherwise 0.
+         */
+        public final long token;
+
+        LeaseReply(String value, boolean stale, long token) {
+            this.value = value;
+            this.stale = stale;
+            this.token = token;
+        }
+
+        /**
+         * @return true if another client holds the lease and there is no stale value
+         */
+        public boolean mustWait() {
+            return value == null && token == 0;
+        }
+    }
+
+    /**
+     * Retrieves the key, and on a miss receives a lease to fill it in, see {@link ServerConfig#leaseTime}.
+     */
+    public LeaseReply leaseGet(String key) throws IOException {
+        out.format("lease_get %s\r\n", key);
+        out.flush();
+        var args = Util.readArguments(in);
+        var result = new String(args.get(0));
+        switch (result) {
+            case "VALUE":
+            case "STALE":
+                var value = new String(Util.readLineExactly(in, Long.parseLong(new String(args.get(3)))));
+                readEnd();
+                return new LeaseReply(value, "STALE".equals(result), 0);
+            case "LEASE":
+                readEnd();
+                return new LeaseReply(null, false, Long.parseLong(new String(args.get(2))));
+            case "WAIT":
+                readEnd();
+                return new LeaseReply(null, false, 0);
+            case "END":
+                return new LeaseReply(null, false, 0);
+            default:
+                throw new RuntimeException("EXCEPTION: " + result);
+        }
+    }
+
+    /**
+     * Stores the value loaded under the lease with the token.
+     *
+     * @return true if the lease was still valid and the value was stored
+     */
+    public boolean leaseSet(String key, String value, int flags, int exptime, long token) throws IOException {
+        invalidate(key);
+        var b = value.getBytes();
+        out.format("lease_set %s %d %d %d %d\r\n", key, flags, exptime, b.length, token);
+        out.write(b);
+        out.format("\r\n");
+        out.flush();
+        return "STORED".equals(new String(Util.readLine(in)));
+    }
+
+    public boolean delete(String key) throws IOException {
+        invalidate(key);
+        out.format("delete %s\r\n", key);
+        out.flush();
+        return "DELETED".equals(new String(Util.readLine(in)));
+    }
+
+    public boolean touch(String key, int exptime) throws IOException {
+        invalidate(key);
+        out.format("touch %s %d\r\n", key, exptime);
+        out.flush();
+        return "TOUCHED".equals(new String(Util.readLine(in)));
+    }
+
+    /**
+     * Invalidates all items on the server, immediately or after {@code delay} seconds.
+     */
+    public boolean flushAll(int delay) throws IOException {
+        if (nearCache != null) nearCache.clear();
+        out.format("flush_all %d\r\n", delay);
+        out.flush();
+        return "OK".equals(new String(Util.readLine(in)));
+    }
+
+    /**
+     * Invalidates all items of the namespace on the server, see {@link ServerConfig#namespaceSeparator}.
+     */
+    public boolean invalidateNamespace(String namespace) throws IOException {
+        if (nearCache != null) nearCache.clear();
+        out.format("invalidate_namespace %s\r\n", namespace);
+        out.flush();
+        return "OK".equals(new String(Util.readLine(in)));
+    }
+
 
     private BigInteger incr(String key) throws IOException {
         return incr(key, 1, false);
@@ -149,19 +444,92 @@ public class Client implements AutoCloseable {
     }
 
     public BigInteger incr(String key, int value, boolean noreply) throws IOException {
+        invalidate(key);
         out.format("incr %s %d %s\r\n", key, value, noreply ? "noreply" : "");
+        out.flush();
         if (!noreply) {
-            var resp = readLine(-1);
+            var resp = Util.readLine(in);
         }
         return null;
     }
 
-    public void decr(String key, int value) {
+    public void decr(String key, int value) throws IOException {
+        invalidate(key);
         out.format("decr %s %d\r\n", key, value);
+        out.flush();
+        Util.readLine(in);
+    }
+
+    /**
+     * @return the statistics reported by the "stats" command, in the order sent by the server
+     */
+    public Map<String, String> stats() throws IOException {
+        return stats(null);
+    }
+
+    /**
+     * @param group the group of statistics, e.g., "hotkeys", or null for the general statistics
+     */
+    public Map<String, String> stats(String group) throws IOException {
+        out.format(group == null ? "stats\r\n" : "stats " + group + "\r\n");
+        out.flush();
+        var stats = new LinkedHashMap<String, String>();
+        while (true) {
+            var args = Util.readArguments(in);
+            var result = new String(args.get(0));
+            if ("END".equals(result)) return stats;
+            if (!"STAT".equals(result)) throw new RuntimeException("EXCEPTION: " + result);
+            stats.put(new String(args.get(1)), new String(args.get(2)));
+        }
+    }
+
+    /**
+     * @return the "lru_crawler metadump" line of every item, e.g., {@code key=a exp=-1 la=... cas=1 size=20}
+     */
+    public List<String> metadump() throws IOException {
+        out.format("lru_crawler metadump all\r\n");
+        out.flush();
+        var lines = new ArrayList<String>();
+        while (true) {
+            var line = new String(Util.readLine(in));
+            if ("END".equals(line)) return lines;
+            if (!line.startsWith("key=")) throw new RuntimeException("EXCEPTION: " + line);
+            lines.add(line);
+        }
+    }
+
+    /**
+     * Streams all items of the server to {@code dump} in the format read by {@link BulkLoader},
+     * without buffering them.
+     *
+     * @return the number of items
+     */
+    public long dump(OutputStream dump) throws IOException {
+        out.format("lru_crawler dump all\r\n");
+        out.flush();
+        var buffer = new byte[64 * 1024];
+        for (long items = 0; ; items++) {
+            var line = Util.readLine(in);
+            if (Util.equals("END", line)) return items;
+            if (!Util.startsWith(line, "add ")) throw new RuntimeException("EXCEPTION: " + new String(line));
+            var header = new String(line, StandardCharsets.ISO_8859_1);
+            // the data block and its "\r\n"
+            long remaining = Long.parseLong(header.substring(header.lastIndexOf(' ') + 1)) + 2;
+            dump.write(line);
+            dump.write('\r');
+            dump.write('\n');
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n == -1) throw new RuntimeException("Channel closed before end of data reached");
+                dump.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
     }
 
     public void end() {
         out.format("END\r\n");
+        out.flush();
     }
 
     public void close() throws IOException {
@@ -0,0 +1,105 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The commands of the text protocol with their arguments, see {@link ArgumentSpec} for the syntax.
+ * The command names are looked up in a hash table built once, and the specifiers are compiled
+ * once, so dispatching and validating a request takes a few comparisons and no allocation.
+ */
+enum Command {
+    GET("get", "K*"),
+    GETS("gets", "K*"),
+    GAT("gat", "T", "K*"),
+    GATS("gats", "T", "K*"),
+    SET("set", "K", "F", "T", "L", "[noreply]"),
+    ADD("add", "K", "F", "T", "L", "[noreply]"),
+    REPLACE("replace", "K", "F", "T", "L", "[noreply]"),
+    APPEND("append", "K", "F", "T", "L", "[noreply]"),
+    PREPEND("prepend", "K", "F", "T", "L", "[noreply]"),
+    CAS("cas", "K", "F", "T", "L", "C", "[noreply]"),
+    INCR("incr", "K", "I", "[noreply]"),
+    DECR("decr", "K", "I", "[noreply]"),
+    LEASE_GET("lease_get", "K"),
+    LEASE_SET("lease_set", "K", "F", "T", "L", "C", "[noreply]"),
+    DELETE("delete", "K", "[noreply]"),
+    TOUCH("touch", "K", "T", "[noreply]"),
+    FLUSH_ALL("flush_all", "[T]", "[noreply]"),
+    INVALIDATE_NAMESPACE("invalidate_namespace", "K", "[noreply]"),
+    STATS("stats", "[hotkeys|slowlog]"),
+    LRU_CRAWLER("lru_crawler", "metadump|dump", "all|hash");
+
+    /**
+     * Open addressing by {@link #slot(byte[])}; at most a quarter full, so lookups rarely probe.
+     */
+    private static final Command[] TABLE = new Command[128];
+
+    static {
+        for (var command : values()) {
+            int i = slot(command.name);
+            while (TABLE[i] != null) i = (i + 1) & (TABLE.length - 1);
+            TABLE[i] = command;
+        }
+    }
+
+    private final byte[] name;
+    private final ArgumentSpec arguments;
+    private final int keyIndex;
+
+    Command(String name, String... arguments) {
+        this.name = name.getBytes();
+        this.arguments = ArgumentSpec.compile(arguments);
+        int key = this.arguments.firstKey();
+        keyIndex = key < 0 ? -1 : key + 1;
+    }
+
+    /**
+     * @return the command of the given name, or null if there is none
+     */
+    static Command of(byte[] name) {
+        for (int i = slot(name); ; i = (i + 1) & (TABLE.length - 1)) {
+            var command = TABLE[i];
+            if (command == null || Arrays.equals(command.name, name)) return command;
+        }
+    }
+
+    private static int slot(byte[] name) {
+        if (name.length == 0) return 0;
+        return (name.length * 31 + name[0] * 7 + name[name.length - 1]) & (TABLE.length - 1);
+    }
+
+    /**
+     * @param args the request, starting with the command name
+     * @return the (first) key of the request, or null if the command has none
+     */
+    byte[] key(List<byte[]> args) {
+        return keyIndex > 0 && keyIndex < args.size() ? args.get(keyIndex) : null;
+    }
+
+    /**
+     * @return true if a data block follows the command line, whose length is the fifth argument
+     */
+    boolean hasDataBlock() {
+        switch (this) {
+            case SET:
+            case ADD:
+            case REPLACE:
+            case APPEND:
+            case PREPEND:
+            case CAS:
+            case LEASE_SET:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param args the request, starting with the command name
+     * @return true if the arguments after the command name match its specifier
+     */
+    boolean accepts(List<byte[]> args) {
+        return arguments.matches(args, 1);
+    }
+}
@@ -1,14 +1,18 @@
 package edu.kit.kastel.formal.bloatcache;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.PrintStream;
 import java.io.PushbackInputStream;
-import java.math.BigInteger;
-import java.net.Socket;
-import java.util.Arrays;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
-import static edu.kit.kastel.formal.bloatcache.Util.checkArguments;
 import static edu.kit.kastel.formal.bloatcache.Util.parseInt;
 
 /**
@@ -16,86 +20,279 @@ import static edu.kit.kastel.formal.bloatcache.Util.parseInt;
  * @version 1 (14.03.23)
  */
 public class CommandHandling implements Runnable {
-    private final Socket client;
+    /**
+     * Limits of the batch of deferred stores, see {@link #batch(Entry, long)}.
+     */
+    static final int BATCH_SIZE = 256;
+    static final long BATCH_BYTES = 1024 * 1024;
+
     private final PushbackInputStream in;
-    private final PrintWriter out;
+    private final PrintStream out;
 
     private final ServerData data;
 
-    public CommandHandling(ServerData data, Socket clientSocket) throws IOException {
+    /**
+     * Queues to the owners of the keys if the data is partitioned, otherwise null.
+     */
+    private final Partitions.Port port;
+
+    /**
+     * Turns of the connection if it is scheduled fairly, otherwise null.
+     */
+    private final Scheduler.Turns turns;
+
+    /**
+     * Log of slow commands, null if disabled.
+     */
+    private final SlowLog slowLog;
+
+    /**
+     * Capture of the accesses, null if disabled.
+     */
+    private final TraceRecorder trace;
+
+    /**
+     * Time spent reading the data block and length of the values sent or received by the current
+     * command, reported in its {@link Events.Command} and in the {@link SlowLog}.
+     */
+    private long dataTime;
+    private long valueSize;
+
+    /**
+     * Pipelined "set ... noreply" commands received but not stored yet, see {@link #applyBatch()}.
+     */
+    private final List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+    private long batchBytes;
+
+    public CommandHandling(ServerData data, Connection connection) {
+        this(data, connection, null);
+    }
+
+    /**
+     * @param partitions the owners of the keys, or null to access the data directly
+     */
+    public CommandHandling(ServerData data, Connection connection, Partitions partitions) {
+        this(data, connection, partitions, null);
+    }
+
+    /**
+     * @param scheduler the turns between the connections, or null to run commands as they arrive
+     */
+    CommandHandling(ServerData data, Connection connection, Partitions partitions, Scheduler scheduler) {
         this.data = data;
-        this.client = clientSocket;
-        in = new PushbackInputStream(clientSocket.getInputStream());
-        out = new PrintWriter(clientSocket.getOutputStream(), true);
+        this.port = partitions != null ? partitions.connect() : null;
+        this.turns = scheduler != null ? scheduler.connect() : null;
+        this.slowLog = data.slowLog();
+        this.trace = data.trace();
+        in = new PushbackInputStream(connection.in());
+        out = new PrintStream(connection.out(), false);
+        if (turns != null) {
+            // the batch is due once the buffered input is consumed, and no slot is held while
+            // waiting for the client
+            connection.beforeRead(() -> {
+                applyBatch();
+                turns.end();
+            });
+        }
     }
 
+    /**
+     * Handles commands until the client closes the connection. Closing the connection is up to
+     * the {@link ConnectionManager}.
+     */
     @Override
     public void run() {
         try {
             while (true) {
-                try {
-                    var args = Util.readArguments(in);
-                    //if ("END".equals(args[0])) break;
-                    handleCommand(args);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                int c = in.read();
+                if (c == -1) break;
+                in.unread(c);
+                // the clock starts with the first byte, waiting for it is idle time
+                var event = new Events.Command();
+                event.begin();
+                long start = System.nanoTime();
+                var args = Util.readArguments(in);
+                long parsed = System.nanoTime();
+                dataTime = 0;
+                valueSize = 0;
+                handleCommand(args);
+                event.end();
+                long end = System.nanoTime();
+                if (event.shouldCommit() || slowLog != null && slowLog.isSlow(end - start)) {
+                    record(event, args, parsed - start, end - start);
+                }
+                // flush once the pipelined commands received so far are answered
+                if (in.available() == 0) {
+                    applyBatch();
+                    // a slow reader must not hold a slot
+                    if (turns != null) turns.end();
+                    out.flush();
                 }
             }
+        } catch (IOException e) {
+            // the client disconnected or the connection was closed as idle
         } finally {
-            try {
-                in.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            out.close();
-            try {
-                client.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            applyBatch();
+            if (turns != null) turns.end();
+            out.flush();
+            if (port != null) port.close();
         }
     }
 
+    /**
+     * Runs an operation on the data of a single key, on the owner of the key if the data is
+     * partitioned. Reads and writes that belong together, like those of "cas" or "append", go
+     * into one operation. The owner executes it without interruption, but without partitions
+     * other connections access the key concurrently, so the operation has to store through
+     * {@link ServerData#update(Entry, Entry)} or {@link ServerData#add(Entry)}, which only succeed
+     * if the version it read is still current.
+     */
+    private <T> T onKey(Entry.Key key, Function<ServerData, T> operation) {
+        return port != null ? port.call(key, operation) : operation.apply(data);
+    }
+
+    /**
+     * Runs an operation on each key, in parallel on the owners if the data is partitioned.
+     *
+     * @return the results in the order of the keys
+     */
+    private Entry[] onKeys(List<Entry.Key> keys, BiFunction<ServerData, Entry.Key, Entry> operation) {
+        if (port != null) return port.getAll(keys, operation);
+        var results = new Entry[keys.size()];
+        for (int i = 0; i < results.length; i++) results[i] = operation.apply(data, keys.get(i));
+        return results;
+    }
+
+    private static List<Entry.Key> keys(List<byte[]> args, int first) {
+        var keys = new ArrayList<Entry.Key>(args.size() - first);
+        for (int i = first; i < args.size(); i++) keys.add(new Entry.Key(args.get(i)));
+        return keys;
+    }
+
+
+    /**
+     * Defers the store of a "set ... noreply", so that a pipeline of them is stored with one lock
+     * acquisition per shard instead of one per command. The batch is applied once the input
+     * buffered so far is consumed, when it is full, and before any other command, so the
+     * commands of the connection still take effect in order.
+     */
+    private void batch(Entry entry, long bytes) {
+        batch.add(entry);
+        batchBytes += bytes;
+        if (batch.size() >= BATCH_SIZE || batchBytes >= BATCH_BYTES) applyBatch();
+    }
+
+    private void applyBatch() {
+        if (batch.isEmpty()) return;
+        if (port != null) port.insertAll(batch);
+        else data.insertAll(batch);
+        batch.clear();
+        batchBytes = 0;
+    }
+
+    private void record(Events.Command event, List<byte[]> args, long parseTime, long duration) {
+        var command = Command.of(args.get(0));
+        var name = command != null ? command.name().toLowerCase() : "unknown";
+        var key = command != null ? command.key(args) : null;
+        if (event.shouldCommit()) {
+            event.command = name;
+            event.keySize = key != null ? key.length : 0;
+            event.valueSize = valueSize;
+            event.parseTime = parseTime;
+            event.dataTime = dataTime;
+            event.executeTime = duration - parseTime - dataTime;
+            event.commit();
+        }
+        if (slowLog != null && slowLog.isSlow(duration)) {
+            slowLog.add(name, key != null ? new Entry.Key(key) : null, valueSize, duration);
+        }
+    }
 
     private void sendError() {
         out.format("ERROR\r\n");
     }
 
+    /**
+     * Answers write commands on a read-only replica with an error.
+     *
+     * @return true if the command must not be executed
+     */
+    private boolean rejectWrite() {
+        if (!data.isReadOnly()) return false;
+        out.format("SERVER_ERROR read-only replica\r\n");
+        return true;
+    }
+
+    /**
+     * Dispatches the request through the command table, see {@link Command}. Unknown commands are
+     * ignored. Malformed arguments are answered with an error and close the connection, since the
+     * length of a data block that may follow cannot be trusted.
+     */
     private void handleCommand(List<byte[]> args) throws IOException {
-        String command = new String(args.get(0));
+        var command = Command.of(args.get(0));
+        if (command == null) return;
+        if (!command.accepts(args)) {
+            out.format("CLIENT_ERROR bad command line format\r\n");
+            throw new IOException("Arguments unexpected: " + new String(args.get(0)));
+        }
+        if (trace != null) trace.record(command, args);
+        // storage commands take their turn once the data block is read, see readEntry
+        if (!command.hasDataBlock()) awaitTurn();
+        // later commands must see the batched stores
+        if (command != Command.SET || !isNoreply(args)) applyBatch();
 
         switch (command) {
-            case "get":
-            case "gets":
+            case GET:
+            case GETS:
                 handleGetCommand(args);
                 break;
-            case "gat":
-            case "gats":
+            case GAT:
+            case GATS:
                 handleGatCommand(args);
                 break;
 
-            case "set":
-            case "add":
-            case "replace":
-            case "append":
-            case "prepend":
-                handleManipCommand(args);
+            case SET:
+            case ADD:
+            case REPLACE:
+            case APPEND:
+            case PREPEND:
+                handleManipCommand(command, args);
                 break;
-            case "cas":
+            case CAS:
                 handleCasCommand(args);
                 break;
-            case "incr":
-            case "decr":
-                handleIncrDecrCommand(args);
+            case LEASE_GET:
+                handleLeaseGetCommand(args);
+                break;
+            case LEASE_SET:
+                handleLeaseSetCommand(args);
                 break;
-            case "delete":
+            case INCR:
+            case DECR:
+                if (rejectWrite()) break;
+                handleIncrDecrCommand(command, args);
+                break;
+            case DELETE:
+                if (rejectWrite()) break;
                 handleDeleteCommand(args);
                 break;
-            case "touch":
+            case TOUCH:
+                if (rejectWrite()) break;
                 handleTouchCommand(args);
                 break;
-            case "flush_all":
-                assert false;
+            case FLUSH_ALL:
+                if (rejectWrite()) break;
+                handleFlushAllCommand(args);
+                break;
+            case INVALIDATE_NAMESPACE:
+                if (rejectWrite()) break;
+                handleInvalidateNamespaceCommand(args);
+                break;
+            case STATS:
+                handleStatsCommand(args);
+                break;
+            case LRU_CRAWLER:
+                handleLruCrawlerCommand(args);
                 break;
         }
     }
@@ -130,20 +327,59 @@ public class CommandHandling implements Runnable {
      * @param args
      */
     private void handleTouchCommand(List<byte[]> args) {
-        checkArguments(args, "touch", "K", "T", "[noreply]");
         var noreply = isNoreply(args);
         var key = new Entry.Key(args.get(1));
         var exptime = Util.expirationTime(args.get(2));
 
-        var d = data.get(key);
-        if (d != null) {
-            d.expirationDate = exptime;
+        if (onKey(key, data -> data.touch(key, exptime)) != null) {
             if (!noreply) sendTouched();
         } else {
             if (!noreply) sendNotFound();
         }
     }
 
+    /**
+     * <code><pre>
+     * The command "flush_all" has optional numeric argument. It always
+     * succeeds, and the server sends "OK\r\n" in response (unless "noreply"
+     * is given as the last parameter). Its effect is to invalidate all
+     * existing items immediately (by default) or after the expiration
+     * specified.  After invalidation none of the items will be returned in
+     * response to a retrieval command (unless it's stored again under the
+     * same key *after* flush_all has invalidated the items).
+     *
+     * flush_all [delay] [noreply]\r\n
+     * </pre></code>
+     * <p>
+     * The items are not touched, see {@link ServerData#flush(int)}.
+     */
+    private void handleFlushAllCommand(List<byte[]> args) {
+        var noreply = isNoreply(args);
+        int delay = args.size() > (noreply ? 2 : 1) ? parseInt(args.get(1)) : 0;
+        data.flush(delay);
+        if (!noreply) out.format("OK\r\n");
+    }
+
+    /**
+     * <code><pre>
+     * invalidate_namespace &lt;namespace> [noreply]\r\n
+     * </pre></code>
+     * <p>
+     * Invalidates all items whose key starts with the namespace followed by the namespace
+     * separator, e.g., "tenant42:user:7" for namespace "tenant42" and separator ":". Like
+     * flush_all, it costs constant time, see {@link Namespaces}; items stored afterwards are
+     * valid again. The server sends "OK\r\n", or a CLIENT_ERROR if no separator is configured.
+     */
+    private void handleInvalidateNamespaceCommand(List<byte[]> args) {
+        var noreply = isNoreply(args);
+        if (!data.hasNamespaces()) {
+            out.format("CLIENT_ERROR namespaces disabled\r\n");
+            return;
+        }
+        data.invalidateNamespace(args.get(1));
+        if (!noreply) out.format("OK\r\n");
+    }
+
     private void sendTouched() {
         out.format("TOUCHED\r\n");
     }
@@ -153,27 +389,153 @@ public class CommandHandling implements Runnable {
      * the data since you read it last. Useful for resolving race conditions on updating cache data.
      */
     public void handleCasCommand(List<byte[]> args) throws IOException {
-        checkArguments(args, "cas", "K", "F", "T", "I", "C", "[noreply]");
         var key = new Entry.Key(args.get(1));
         var flags = parseInt(args.get(2));
-        var exptime = parseInt(args.get(3));
-        var bytes = parseInt(args.get(4));
+        var exptime = Util.expirationTime(args.get(3));
+        var bytes = Util.parseLongNumber(args.get(4));
         var cas = Util.parseLongNumber(args.get(5));
         var noreply = isNoreply(args);
-        var data = Util.readLineExactly(in, bytes);
-
-        var currentEntry = this.data.get(key);
+        var entry = readEntry(key, flags, exptime, bytes);
+        if (entry == null) return;
 
-        if (currentEntry != null) {
-            if (currentEntry.cas == cas) {
-                currentEntry.update(data, exptime, flags);
-                if (!noreply) sendStored();
-                return;
+        var currentEntry = onKey(key, data -> {
+            // retry until no concurrent store replaced the version we read
+            while (true) {
+                var current = data.get(key);
+                if (current == null || current.cas() != cas || data.update(current, entry) != null) return current;
             }
+        });
+
+        if (currentEntry == null) {
+            if (!noreply) sendNotFound();
+        } else if (currentEntry.cas() == cas) {
+            if (!noreply) sendStored();
+        } else {
+            if (!noreply) sendExists();
+        }
+    }
+
+    /**
+     * <code><pre>
+     * lease_get &lt;key>\r\n
+     * </pre></code>
+     * <p>
+     * Retrieves the item like "gets". On a miss, the item is replaced by one of the following
+     * lines, see {@link Leases}:
+     * <p>
+     * - "LEASE &lt;key> &lt;token>\r\n" if the client received the lease on the key: it should load
+     * the value and store it with "lease_set" and the token
+     * <p>
+     * - "STALE &lt;key> &lt;flags> &lt;bytes> &lt;cas unique>\r\n&lt;data block>\r\n" with the value
+     * that expired or was flushed, if another client holds the lease
+     * <p>
+     * - "WAIT &lt;key>\r\n" if another client holds the lease and there is no stale value: the
+     * client should retry shortly
+     * <p>
+     * The reply ends with "END\r\n" in any case. A replica grants no leases, it answers like "gets".
+     */
+    private void handleLeaseGetCommand(List<byte[]> args) throws IOException {
+        if (!data.hasLeases()) {
+            out.format("CLIENT_ERROR leases disabled\r\n");
+            return;
+        }
+        var key = new Entry.Key(args.get(1));
+        if (data.isReadOnly()) {
+            var entry = onKey(key, data -> data.get(key));
+            if (entry != null) sendValue(entry);
+            sendEnd();
+            return;
+        }
+        var grant = onKey(key, data -> data.leaseGet(key));
+        if (grant.token != 0) {
+            out.format("LEASE ");
+            out.write(key.value);
+            out.format(" %d\r\n", grant.token);
+        } else if (grant.entry != null) {
+            sendValue(grant.stale ? "STALE " : "VALUE ", grant.entry);
+        } else {
+            out.format("WAIT ");
+            out.write(key.value);
+            out.format("\r\n");
+        }
+        sendEnd();
+    }
+
+    /**
+     * <code><pre>
+     * lease_set &lt;key> &lt;flags> &lt;exptime> &lt;bytes> &lt;token> [noreply]\r\n
+     * &lt;data block>\r\n
+     * </pre></code>
+     * <p>
+     * Stores the data block like "set", but only if the lease with the token is still
+     * outstanding. The server sends "STORED\r\n", or "NOT_STORED\r\n" if the key was stored or
+     * deleted since the lease was granted, or the lease expired and was granted to another client;
+     * the value the client loaded may then be outdated.
+     */
+    private void handleLeaseSetCommand(List<byte[]> args) throws IOException {
+        var key = new Entry.Key(args.get(1));
+        var flags = parseInt(args.get(2));
+        var exptime = Util.expirationTime(args.get(3));
+        var bytes = Util.parseLongNumber(args.get(4));
+        var token = Util.parseLongNumber(args.get(5));
+        var noreply = isNoreply(args);
+        var entry = readEntry(key, flags, exptime, bytes);
+        if (entry == null) return;
+        if (!data.hasLeases()) {
+            out.format("CLIENT_ERROR leases disabled\r\n");
+            return;
+        }
+
+        if (onKey(key, data -> data.leaseSet(entry, token))) {
+            if (!noreply) sendStored();
+        } else {
             if (!noreply) sendNotStored();
         }
     }
 
+    /**
+     * Reads the data block of a storage command directly into a new entry. Values larger than the
+     * maximum item size, and all values on a read-only replica, are skipped without being buffered and
+     * answered with a SERVER_ERROR.
+     *
+     * @return the entry, or null if the value was rejected
+     */
+    private Entry readEntry(Entry.Key key, int flags, int exptime, long bytes) throws IOException {
+        long start = System.nanoTime();
+        Entry entry;
+        try {
+            entry = readEntryData(key, flags, exptime, bytes);
+        } finally {
+            dataTime = System.nanoTime() - start;
+            valueSize = bytes;
+        }
+        awaitTurn();
+        return entry;
+    }
+
+    /**
+     * Waits for the turn of the connection, if it is scheduled, once the request is read
+     * completely: a client sending its request slowly must not hold a slot.
+     */
+    private void awaitTurn() throws IOException {
+        if (turns != null) turns.next();
+    }
+
+    private Entry readEntryData(Entry.Key key, int flags, int exptime, long bytes) throws IOException {
+        var config = data.config();
+        if (bytes > config.maxItemSize) {
+            Util.skipFully(in, bytes + 2);
+            out.format("SERVER_ERROR object too large for cache\r\n");
+            return null;
+        }
+        if (data.isReadOnly()) {
+            Util.skipFully(in, bytes + 2);
+            rejectWrite();
+            return null;
+        }
+        return Entry.read(in, key, flags, exptime, (int) bytes, config.itemChunkSize);
+    }
+
     /**
      * <code><pre>
      * Deletion
@@ -205,10 +567,9 @@ public class CommandHandling implements Runnable {
      * @param args
      */
     private void handleDeleteCommand(List<byte[]> args) {
-        checkArguments(args, "delete", "K", "[noreply]");
         var noreply = isNoreply(args);
-        var key = args.get(1);
-        var val = data.delete(new Entry.Key(key));
+        var key = new Entry.Key(args.get(1));
+        var val = onKey(key, data -> data.delete(key));
 
         if (!noreply) {
             if (val) {
@@ -220,7 +581,7 @@ public class CommandHandling implements Runnable {
     }
 
     private boolean isNoreply(List<byte[]> args) {
-        return args.get(args.size() - 1).equals("noreply");
+        return Util.equals("noreply", args.get(args.size() - 1));
     }
 
     /**
@@ -264,15 +625,13 @@ public class CommandHandling implements Runnable {
      *
      * @param args
      */
-    private void handleGatCommand(List<byte[]> args) {
-        checkArguments(args, "gat", "T", "K*");
+    private void handleGatCommand(List<byte[]> args) throws IOException {
         var time = Util.expirationTime(args.get(1));
-        for (int i = 2; i < args.size(); i++) {
-            final var key = new Entry.Key(args.get(i));
-            var value = data.get(key);
+        // a replica serves the values, but leaves the expiration to its primary
+        var values = onKeys(keys(args, 2), (data, key) -> data.isReadOnly() ? data.get(key) : data.touch(key, time));
+        for (var value : values) {
             if (value != null) {
-                sendValue(value.key.value, value.flags, value.value, value.cas);
-                value.expirationDate = time;
+                sendValue(value);
             }
         }
         sendEnd();
@@ -282,85 +641,72 @@ public class CommandHandling implements Runnable {
         out.format("END\r\n");
     }
 
-    private void handleManipCommand(List<byte[]> args) throws IOException {
+    private void handleManipCommand(Command command, List<byte[]> args) throws IOException {
         // <command name> <key> <flags> <exptime> <bytes>
-        checkArguments(args, "set|replace|add|append|prepend", "K", "F", "T", "I");
         var key = new Entry.Key(args.get(1));
         var flags = parseInt(args.get(2));
-        var exptime = parseInt(args.get(3));
-        var bytes = parseInt(args.get(4));
+        var exptime = Util.expirationTime(args.get(3));
+        var bytes = Util.parseLongNumber(args.get(4));
         var noreply = isNoreply(args);
-        var data = Util.readLineExactly(in, bytes);
-
-        final var cmd = args.get(0);
-        var set = Util.equals("set", cmd);
-        var replace = Util.equals("replace", cmd);
-        var add = Util.equals("add", cmd);
-        var append = Util.equals("append", cmd);
-        var prepend = Util.equals("prepend", cmd);
+        var entry = readEntry(key, flags, exptime, bytes);
+        if (entry == null) return;
 
-        var currentEntry = this.data.get(key);
-
-        if (replace) {
-            if (currentEntry != null) {
-                currentEntry.update(data, exptime, flags);
-                if (!noreply) sendStored();
-            } else {
-                if (!noreply) sendNotStored();
-                return;
-            }
+        if (command == Command.SET && noreply) {
+            batch(entry, bytes);
+            return;
         }
 
-        if (add) {
-            if (currentEntry != null) {
-                if (!noreply) sendNotStored();
-            } else {
-                if (this.data.insert(new Entry(key, flags, exptime, data))) {
-                    if (!noreply) sendStored();
-                } else {
-                    if (!noreply) sendNotStored();
-                }
-            }
+        var stored = onKey(key, data -> store(data, command, key, entry));
+        if (stored == Stored.TOO_LARGE) {
+            out.format("SERVER_ERROR object too large for cache\r\n");
+        } else if (!noreply) {
+            if (stored == Stored.STORED) sendStored();
+            else sendNotStored();
         }
+    }
 
-        if (set) {
-            if (this.data.insert(new Entry(key, flags, exptime, data))) {
-                if (!noreply) sendStored();
-            } else {
-                if (!noreply) sendNotStored();
-            }
-        }
+    /**
+     * The outcome of {@link #store(ServerData, Command, Entry.Key, Entry)}.
+     */
+    private enum Stored {
+        STORED,
+        NOT_STORED,
+        /**
+         * The joined value of an "append" or "prepend" exceeds the maximum item size.
+         */
+        TOO_LARGE
+    }
 
-        if (append) {
-            if (currentEntry != null) {
-                byte[] newValue = concatArray(currentEntry.value, data);
-                currentEntry.update(newValue, exptime, flags);
-                if (!noreply) sendStored();
-            } else {
-                if (!noreply) sendNotStored();
-                return;
-            }
-        }
+    /**
+     * Executes a storage command other than "cas". "append" and "prepend" keep the flags and
+     * expiration time of the stored item, and join the values without copying their chunks.
+     */
+    private static Stored store(ServerData data, Command command, Entry.Key key, Entry entry) {
+        if (command == Command.SET) return data.insert(entry) ? Stored.STORED : Stored.NOT_STORED;
+        if (command == Command.ADD) return data.add(entry) ? Stored.STORED : Stored.NOT_STORED;
 
-        if (prepend) {
-            if (currentEntry != null) {
-                byte[] newValue = concatArray(data, currentEntry.value);
-                currentEntry.update(newValue, exptime, flags);
-                if (!noreply) sendStored();
-            } else {
-                if (!noreply) sendNotStored();
-                return;
+        var config = data.config();
+        // retry until no concurrent store replaced the version we read
+        while (true) {
+            var currentEntry = data.get(key);
+            if (currentEntry == null) return Stored.NOT_STORED;
+            Entry version;
+            switch (command) {
+                case REPLACE:
+                    version = entry;
+                    break;
+                case APPEND:
+                case PREPEND:
+                    if ((long) currentEntry.valueLength() + entry.valueLength() > config.maxItemSize) {
+                        return Stored.TOO_LARGE;
+                    }
+                    version = currentEntry.withJoinedValue(entry, command == Command.PREPEND, config.itemChunkSize);
+                    break;
+                default:
+                    throw new IllegalArgumentException("not a storage command: " + command);
             }
+            if (data.update(currentEntry, version) != null) return Stored.STORED;
         }
-
-    }
-
-    private byte[] concatArray(byte[] a, byte[] b) {
-        var target = Arrays.copyOf(a, a.length + b.length);
-        for (int i = a.length, j = 0; j < b.length; i++, j++) {
-            target[i] = b[j];
-        }
-        return target;
     }
 
     /**
@@ -445,37 +791,46 @@ public class CommandHandling implements Runnable {
      * optimization, so you also shouldn't rely on that.
      * </pre></code>
      */
-    void handleIncrDecrCommand(List<byte[]> args) {
-        checkArguments(args, "incr|decr", "K", "I");
+    void handleIncrDecrCommand(Command command, List<byte[]> args) {
         var noreply = isNoreply(args);
-        var entry = data.get(new Entry.Key(args.get(1)));
-        if (entry == null) {
+        var key = new Entry.Key(args.get(1));
+        //Normally we should use BigInteger to receive true 64-bit unsigned ints.
+        var param = Util.parseLongNumber(args.get(2));
+        var value = onKey(key, data -> incrDecr(data, command, key, param));
+        if (value == null) {
             sendNotFound();
             return;
         }
 
-        assert (entry.value.length <= 8); // should look like a 64bit integer
+        if (!noreply) {
+            out.format("%s\r\n", value);
+        }
+    }
 
-        //Normally we should use BigInteger to receive true 64-bit unsigned ints.
-        var param = Util.parseLongNumber(args.get(2));
-        var value = Util.parseLongNumber(entry.value);
-        var mask = BigInteger.valueOf(-1); // 64bit mask
+    /**
+     * @return the new value, or null if the key was not found
+     */
+    private static Long incrDecr(ServerData data, Command command, Entry.Key key, long param) {
+        // retry until no concurrent update replaced the version we read
+        while (true) {
+            var entry = data.get(key);
+            if (entry == null) return null;
 
-        if (Util.equals("incr", args.get(0))) {
-            value = value + param;
-        }
+            assert (entry.valueLength() <= 8); // should look like a 64bit integer
 
-        if (Util.equals("decr", args.get(0))) {
-            value = value + param;
-            if (value < 0) {
-                value = 0;
-            }
-        }
+            long value = Util.parseLongNumber(entry.value());
 
-        entry.value = ("" + value).getBytes();
+            if (command == Command.INCR) {
+                value = value + param;
+            }
 
-        if (!noreply) {
-            out.format("%s\r\n", value);
+            if (command == Command.DECR) {
+                value = value - param;
+                if (value < 0) {
+                    value = 0;
+                }
+            }
+            if (data.update(entry, ("" + value).getBytes(), null, null) != null) return value;
         }
     }
 
@@ -526,15 +881,13 @@ public class CommandHandling implements Runnable {
      *
      * @param args
      */
-    private void handleGetCommand(List<byte[]> args) {
-        checkArguments(args, "get", "K*");
-        for (int i = 1; i < args.size(); i++) {
-            final var key = new Entry.Key(args.get(i));
-            var value = data.get(key);
+    private void handleGetCommand(List<byte[]> args) throws IOException {
+        for (var value : onKeys(keys(args, 1), ServerData::get)) {
             if (value != null) {
-                sendValue(value.key.value, value.flags, value.value, value.cas);
+                sendValue(value);
             }
         }
+        sendEnd();
     }
 
     /**
@@ -545,17 +898,183 @@ public class CommandHandling implements Runnable {
      * <data block>\r\n
      * </pre>
      *
-     * @param key
-     * @param flags
-     * @param v
+     * Key and data block are written straight from the storage of the entry.
+     *
+     * @param entry
      */
-    private void sendValue(byte[] key, int flags, byte[] v, Long cas) {
-        out.format("VALUE ");
-        for (byte b : key) out.write(b);
-        out.format(" %d %d%s\r\n", flags, v.length, cas == null ? "" : " " + cas);
-        for (byte b : v) out.write(b);
+    private void sendValue(Entry entry) throws IOException {
+        sendValue("VALUE ", entry);
+    }
+
+    private void sendValue(String kind, Entry entry) throws IOException {
+        valueSize += entry.valueLength();
+        out.format(kind);
+        entry.writeKey(out);
+        out.format(" %d %d %d\r\n", entry.flags(), entry.valueLength(), entry.cas());
+        entry.writeValue(out);
         out.format("\r\n");
-        out.flush();
+    }
+
+    /**
+     * <code><pre>
+     * Statistics
+     * ----------
+     *
+     * The command "stats" is used to query the server about statistics it
+     * maintains and other internal data.
+     *
+     * stats\r\n
+     *
+     * Upon receiving this command, the server sends a number of lines
+     * which look like this:
+     *
+     * STAT <name> <value>\r\n
+     *
+     * The server terminates this list with the line
+     *
+     * END\r\n
+     *
+     * "stats hotkeys" lists the most frequently accessed keys by decreasing
+     * (sampled and decayed) access count:
+     *
+     * STAT <rank>:key <key>\r\n
+     * STAT <rank>:count <reads and writes>\r\n
+     * STAT <rank>:reads <reads>\r\n
+     * STAT <rank>:writes <writes>\r\n
+     *
+     * "stats slowlog" lists the most recent commands that took longer than the slow log
+     * threshold, the most recent first:
+     *
+     * STAT <id>:time <unix time when it finished>\r\n
+     * STAT <id>:duration_us <microseconds>\r\n
+     * STAT <id>:command <command name>\r\n
+     * STAT <id>:key <first key, if any>\r\n
+     * STAT <id>:value_size <bytes sent or received>\r\n
+     * </pre></code>
+     *
+     * @param args
+     */
+    private void handleStatsCommand(List<byte[]> args) {
+        if (args.size() > 1 && Util.equals("hotkeys", args.get(1))) {
+            handleStatsHotkeysCommand();
+            return;
+        }
+        if (args.size() > 1 && Util.equals("slowlog", args.get(1))) {
+            handleStatsSlowlogCommand();
+            return;
+        }
+        var stats = new LinkedHashMap<String, Object>();
+        stats.put("pid", ProcessHandle.current().pid());
+        stats.put("time", System.currentTimeMillis() / 1000);
+        data.stats(stats);
+        sendStats(stats);
+    }
+
+    private void handleStatsHotkeysCommand() {
+        var stats = new LinkedHashMap<String, Object>();
+        var hotKeys = data.hotKeys();
+        if (hotKeys != null) {
+            stats.put("hotkeys_sample_rate", hotKeys.sampleRate());
+            stats.put("hotkeys_dropped_samples", hotKeys.dropped());
+            int rank = 1;
+            for (var hotKey : hotKeys.top()) {
+                stats.put(rank + ":key", hotKey.key);
+                stats.put(rank + ":count", hotKey.count);
+                stats.put(rank + ":reads", hotKey.reads);
+                stats.put(rank + ":writes", hotKey.writes);
+                rank++;
+            }
+        }
+        sendStats(stats);
+    }
+
+    /**
+     * <code><pre>
+     * LRU crawler
+     * -----------
+     *
+     * The "lru_crawler" commands stream the stored items to the client while the server keeps
+     * serving others. The shards are walked one by one without taking their locks, so items
+     * stored or deleted during the walk may or may not be included.
+     *
+     * lru_crawler metadump all\r\n
+     *
+     * sends one line of metadata per item:
+     *
+     * key=<key> exp=<exptime> la=<last access> cas=<cas unique> size=<bytes>\r\n
+     *
+     * - <key> is the URL-encoded key
+     *
+     * - <exptime> is the expiration time as a unix timestamp, -1 if the item never expires
+     *
+     * - <last access> is the unix timestamp of the last store or read of the item
+     *
+     * - <bytes> is the memory held by the item
+     *
+     * lru_crawler dump all\r\n
+     *
+     * sends each item as a storage command, in the dump format of memcached-tool:
+     *
+     * add <key> <flags> <exptime> <bytes>\r\n
+     * <data block>\r\n
+     *
+     * Without the final "END", the dump can be loaded into a new server, see {@link BulkLoader}.
+     *
+     * Both lists are terminated by the line
+     *
+     * END\r\n
+     *
+     * Slab classes do not exist, so "all" is the only crawled class; "hash" is accepted as well.
+     * </pre></code>
+     *
+     * @param args
+     */
+    private void handleLruCrawlerCommand(List<byte[]> args) {
+        boolean metadata = Util.equals("metadump", args.get(1));
+        data.forEach(entry -> {
+            if (metadata) sendMetadata(entry);
+            else sendItem(entry);
+        });
+        sendEnd();
+    }
+
+    private void sendMetadata(Entry entry) {
+        var key = new String(entry.keyBytes(), StandardCharsets.ISO_8859_1);
+        out.format("key=%s exp=%d la=%d cas=%d size=%d\r\n",
+                URLEncoder.encode(key, StandardCharsets.ISO_8859_1),
+                entry.expirationDate() == 0 ? -1 : entry.expirationDate(),
+                entry.lastAccess, entry.cas(), entry.size());
+    }
+
+    private void sendItem(Entry entry) {
+        try {
+            out.format("add ");
+            entry.writeKey(out);
+            out.format(" %d %d %d\r\n", entry.flags(), entry.expirationDate(), entry.valueLength());
+            entry.writeValue(out);
+            out.format("\r\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void handleStatsSlowlogCommand() {
+        var stats = new LinkedHashMap<String, Object>();
+        if (slowLog != null) {
+            for (var command : slowLog.entries()) {
+                stats.put(command.id + ":time", command.time);
+                stats.put(command.id + ":duration_us", command.durationMicros);
+                stats.put(command.id + ":command", command.command);
+                if (command.key != null) stats.put(command.id + ":key", command.key);
+                stats.put(command.id + ":value_size", command.valueSize);
+            }
+        }
+        sendStats(stats);
+    }
+
+    private void sendStats(Map<String, Object> stats) {
+        stats.forEach((name, value) -> out.format("STAT %s %s\r\n", name, value));
+        sendEnd();
     }
 
 }
@@ -0,0 +1,81 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of item values. A value is only kept compressed if this saves space;
+ * the (de)compressors are reused per thread.
+ */
+public class Compression {
+    private final int threshold;
+
+    private final ThreadLocal<Deflater> deflater;
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    public Compression(int threshold, int level) {
+        this.threshold = threshold;
+        this.deflater = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    public int threshold() {
+        return threshold;
+    }
+
+    /**
+     * @return the deflater of the current thread; callers have to {@link Deflater#reset()} it after use
+     */
+    Deflater deflater() {
+        return deflater.get();
+    }
+
+    /**
+     * @return the inflater of the current thread; callers have to {@link Inflater#reset()} it after use
+     */
+    static Inflater inflater() {
+        return INFLATER.get();
+    }
+
+    /**
+     * @return the compressed value, or null if the value is below the threshold or does not get smaller
+     */
+    public byte[] compress(byte[] value, int off, int len) {
+        if (len < threshold || len < 2) return null;
+        var d = deflater.get();
+        try {
+            d.setInput(value, off, len);
+            d.finish();
+            // anything that does not fit into len - 1 bytes is not worth it
+            var out = new byte[len - 1];
+            int n = d.deflate(out);
+            if (!d.finished()) return null;
+            var result = new byte[n];
+            System.arraycopy(out, 0, result, 0, n);
+            return result;
+        } finally {
+            d.reset();
+        }
+    }
+
+    public static byte[] decompress(byte[] src, int off, int len, int rawLength) {
+        var inflater = INFLATER.get();
+        try {
+            inflater.setInput(src, off, len);
+            var out = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int k = inflater.inflate(out, n, rawLength - n);
+                if (k == 0 && inflater.needsInput()) break;
+                n += k;
+            }
+            if (n != rawLength) throw new IllegalStateException("Corrupt compressed value");
+            return out;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed value", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+}
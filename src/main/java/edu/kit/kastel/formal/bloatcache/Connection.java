@@ -0,0 +1,111 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A client connection accepted by the {@link ConnectionManager}, with buffered streams over its
+ * TCP or Unix domain socket. The connection records since when it is blocked reading from or
+ * writing to the socket, so the manager can close idle connections and slow readers.
+ * <p>
+ * Replies are buffered up to {@link ServerConfig#outputBufferSize} bytes and then written to the
+ * socket, which blocks while the client does not read them. A slow reader therefore holds at most
+ * the output buffer and its thread, never an unbounded amount of replies.
+ */
+public class Connection implements Closeable {
+    private final SocketChannel socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * {@link System#nanoTime()} when the pending socket read or write began, 0 if there is none.
+     */
+    private volatile long readingSince;
+    private volatile long writingSince;
+
+    /**
+     * Run by the thread of the connection before each read from the socket, null if none.
+     */
+    private Runnable beforeRead;
+
+    Connection(SocketChannel socket, ServerConfig config) throws IOException {
+        this.socket = socket;
+        if (socket.getLocalAddress() instanceof InetSocketAddress) {
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, config.tcpNoDelay);
+        }
+        if (config.socketSendBuffer > 0) socket.setOption(StandardSocketOptions.SO_SNDBUF, config.socketSendBuffer);
+        in = new BufferedInputStream(new FilterInputStream(ChannelStreams.input(socket)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (beforeRead != null) beforeRead.run();
+                readingSince = System.nanoTime();
+                try {
+                    return super.read(b, off, len);
+                } finally {
+                    readingSince = 0;
+                }
+            }
+        });
+        out = new BufferedOutputStream(new FilterOutputStream(ChannelStreams.output(socket)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writingSince = System.nanoTime();
+                try {
+                    out.write(b, off, len);
+                } finally {
+                    writingSince = 0;
+                }
+            }
+        }, config.outputBufferSize);
+    }
+
+    public InputStream in() {
+        return in;
+    }
+
+    public OutputStream out() {
+        return out;
+    }
+
+    /**
+     * Sets an action to run whenever the buffered input is consumed and the socket is read, which
+     * blocks until the client sends more, e.g., to end the turn of the connection, see
+     * {@link Scheduler}. Must be set by the thread reading the connection.
+     */
+    void beforeRead(Runnable action) {
+        beforeRead = action;
+    }
+
+    /**
+     * @return true if the connection has been waiting for a request for longer than the timeout
+     */
+    boolean isIdle(long now, long timeoutNanos) {
+        long since = readingSince;
+        return since != 0 && now - since > timeoutNanos;
+    }
+
+    /**
+     * @return true if the client has not read a reply for longer than the timeout
+     */
+    boolean isWriteStalled(long now, long timeoutNanos) {
+        long since = writingSince;
+        return since != 0 && now - since > timeoutNanos;
+    }
+
+    /**
+     * Closes the socket, which also wakes up a thread blocked reading or writing it.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
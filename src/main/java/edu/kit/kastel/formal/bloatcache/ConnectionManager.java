@@ -0,0 +1,261 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Accepts the client connections of a {@link Server} and runs a handler for each of them on its
+ * own thread, until the connection is closed by the client, by the handler or by the manager.
+ * Connections are accepted on the TCP port and on the Unix domain socket, if configured;
+ * co-located clients skip the TCP/IP stack on the latter.
+ * <ul>
+ *     <li>At most {@link ServerConfig#maxConnections} connections are open at a time; further
+ *     ones are answered with an error and closed right away, so a connection storm cannot
+ *     exhaust threads or file descriptors.</li>
+ *     <li>A connection that waits for a request for longer than {@link ServerConfig#idleTimeout}
+ *     seconds, or for the client to read a reply for longer than {@link ServerConfig#writeTimeout}
+ *     seconds, is closed by a reaper thread.</li>
+ * </ul>
+ */
+public class ConnectionManager implements AutoCloseable {
+    private static final byte[] TOO_MANY_CONNECTIONS =
+            "ERROR Too many open connections\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerConfig config;
+    private final Function<Connection, Runnable> handlers;
+    private final Set<Connection> open = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The bound TCP and Unix domain sockets.
+     */
+    private final List<ServerSocketChannel> listeners = new ArrayList<>();
+
+    /**
+     * Held while the {@link #acceptLoop()} runs.
+     */
+    private final ReentrantLock accepting = new ReentrantLock();
+
+    /**
+     * Runs the connection handlers. Connections are long-lived and block in I/O, e.g., those of a
+     * proxy to its backends, so each gets its own (daemon) thread.
+     */
+    private final ExecutorService threads = Executors.newCachedThreadPool(task -> {
+        var thread = new Thread(task, "connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Closes idle and stalled connections, null if both timeouts are disabled.
+     */
+    private final ScheduledExecutorService reaper;
+
+    private final LongAdder total = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder acceptFailures = new LongAdder();
+    private final LongAdder idleKicks = new LongAdder();
+    private final LongAdder writeTimeouts = new LongAdder();
+
+    /**
+     * @param handlers creates the handler of a new connection
+     */
+    public ConnectionManager(ServerConfig config, Function<Connection, Runnable> handlers) throws IOException {
+        this.config = config;
+        this.handlers = handlers;
+        if (config.port <= 0 && config.unixSocket == null) {
+            throw new IllegalArgumentException("Neither a port nor a Unix domain socket is configured");
+        }
+        try {
+            if (config.port > 0) listeners.add(bindTcp());
+            if (config.unixSocket != null) listeners.add(bindUnix());
+        } catch (IOException e) {
+            for (var listener : listeners) closeQuietly(listener);
+            throw e;
+        }
+        if (config.idleTimeout > 0 || config.writeTimeout > 0) {
+            reaper = Executors.newSingleThreadScheduledExecutor(task -> {
+                var thread = new Thread(task, "connection-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reaper.scheduleWithFixedDelay(this::reap, 1, 1, TimeUnit.SECONDS);
+        } else {
+            reaper = null;
+        }
+    }
+
+    private ServerSocketChannel bindTcp() throws IOException {
+        var channel = ServerSocketChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        // must be set before binding to allow windows larger than 64 KiB
+        if (config.socketReceiveBuffer > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, config.socketReceiveBuffer);
+        channel.bind(new InetSocketAddress(InetAddress.getByName(config.host), config.port), config.backlog);
+        return channel;
+    }
+
+    /**
+     * Binds the Unix domain socket, replacing the file left behind by a previous server.
+     */
+    private ServerSocketChannel bindUnix() throws IOException {
+        var path = Path.of(config.unixSocket);
+        Files.deleteIfExists(path);
+        var channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(path), config.backlog);
+        return channel;
+    }
+
+    public List<SocketAddress> localAddresses() throws IOException {
+        var addresses = new ArrayList<SocketAddress>();
+        for (var listener : listeners) addresses.add(listener.getLocalAddress());
+        return addresses;
+    }
+
+    /**
+     * Accepts connections until the manager is closed. Every socket but the first is served by
+     * a thread of its own.
+     */
+    public void acceptLoop() {
+        accepting.lock();
+        try {
+            var others = new ArrayList<Thread>();
+            for (var listener : listeners.subList(1, listeners.size())) {
+                var thread = new Thread(() -> acceptLoop(listener), "accept");
+                thread.setDaemon(true);
+                thread.start();
+                others.add(thread);
+            }
+            acceptLoop(listeners.get(0));
+            for (var thread : others) thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            accepting.unlock();
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel listener) {
+        while (listener.isOpen()) {
+            SocketChannel socket;
+            try {
+                socket = listener.accept();
+            } catch (IOException e) {
+                if (!listener.isOpen()) return;
+                // e.g., out of file descriptors: back off instead of spinning
+                acceptFailures.increment();
+                sleep();
+                continue;
+            }
+            total.increment();
+            if (open.size() >= config.maxConnections) {
+                reject(socket);
+                continue;
+            }
+            try {
+                var connection = new Connection(socket, config);
+                open.add(connection);
+                threads.execute(() -> serve(connection));
+            } catch (IOException | RejectedExecutionException e) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void serve(Connection connection) {
+        try (connection) {
+            handlers.apply(connection).run();
+        } catch (IOException e) {
+            // already closed
+        } finally {
+            open.remove(connection);
+        }
+    }
+
+    private void reject(SocketChannel socket) {
+        rejected.increment();
+        try (socket) {
+            socket.write(ByteBuffer.wrap(TOO_MANY_CONNECTIONS));
+        } catch (IOException e) {
+            // the client is gone anyway
+        }
+    }
+
+    private void reap() {
+        long now = System.nanoTime();
+        long idleTimeout = TimeUnit.SECONDS.toNanos(config.idleTimeout);
+        long writeTimeout = TimeUnit.SECONDS.toNanos(config.writeTimeout);
+        for (var connection : open) {
+            if (config.idleTimeout > 0 && connection.isIdle(now, idleTimeout)) {
+                idleKicks.increment();
+                closeQuietly(connection);
+            } else if (config.writeTimeout > 0 && connection.isWriteStalled(now, writeTimeout)) {
+                writeTimeouts.increment();
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // nothing left to clean up
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void stats(Map<String, Object> stats) {
+        stats.put("curr_connections", open.size());
+        stats.put("total_connections", total.sum());
+        stats.put("max_connections", config.maxConnections);
+        stats.put("rejected_connections", rejected.sum());
+        stats.put("accept_failures", acceptFailures.sum());
+        stats.put("idle_kicks", idleKicks.sum());
+        stats.put("write_timeouts", writeTimeouts.sum());
+    }
+
+    /**
+     * Stops accepting and closes all open connections.
+     */
+    @Override
+    public void close() throws IOException {
+        for (var listener : listeners) closeQuietly(listener);
+        if (reaper != null) reaper.shutdownNow();
+        for (var connection : open) closeQuietly(connection);
+        threads.shutdownNow();
+        // the port is only released once the accept loop has left accept(), wait for it
+        accepting.lock();
+        accepting.unlock();
+        if (config.unixSocket != null) Files.deleteIfExists(Path.of(config.unixSocket));
+    }
+}
@@ -0,0 +1,69 @@
+package edu.kit.kastel.formal.bloatcache;
+
+/**
+ * Count-min sketch over 64-bit key hashes. Each key maps to one counter per row; the estimate is
+ * the minimum of these counters and never lower than the true count. Increments use the
+ * conservative update, i.e., only the counters equal to the current minimum are raised, which
+ * keeps the overestimation of rare keys small. Not thread-safe.
+ */
+public class CountMinSketch {
+    private final int depth;
+    private final int mask;
+    private final int[] counters;
+
+    /**
+     * @param depth number of rows (independent hash functions)
+     * @param width counters per row, rounded up to a power of two
+     */
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        int w = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        this.mask = w - 1;
+        this.counters = new int[depth * w];
+    }
+
+    private int index(long hash, long hash2, int row) {
+        return row * (mask + 1) + (int) ((hash + row * hash2) & mask);
+    }
+
+    /**
+     * Counts one occurrence of the key.
+     *
+     * @return the new estimate of its count
+     */
+    public int add(long hash) {
+        final long hash2 = Util.mix64(hash) | 1;
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters[index(hash, hash2, row)]);
+        }
+        if (min == Integer.MAX_VALUE) return min;
+        for (int row = 0; row < depth; row++) {
+            int i = index(hash, hash2, row);
+            if (counters[i] == min) counters[i] = min + 1;
+        }
+        return min + 1;
+    }
+
+    public int estimate(long hash) {
+        final long hash2 = Util.mix64(hash) | 1;
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters[index(hash, hash2, row)]);
+        }
+        return min;
+    }
+
+    /**
+     * Halves all counters, so that old occurrences lose weight against recent ones.
+     */
+    public void halve() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>>= 1;
+        }
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(counters, 0);
+    }
+}
@@ -0,0 +1,287 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The cache as a library: a JVM service holding the cache in its own process calls the storage
+ * engine directly, without a socket, a text protocol or copies of the requests. The entries are
+ * evicted, expire and carry cas values exactly like those stored through a {@link Server}, and
+ * {@link #serve()} attaches a server to the same storage, so other processes reach the same items
+ * over the network.
+ * <p>
+ * Keys are strings of 1 to 250 bytes in UTF-8 without spaces, values byte arrays of at most
+ * {@link ServerConfig#maxItemSize} bytes. Expiration times follow the protocol: 0 never expires,
+ * up to 30 days they are relative seconds, beyond that an absolute unix time. The values passed
+ * in are copied into the entry, and the values returned are copies, so callers may reuse them.
+ * <p>
+ * The methods are thread-safe. The data must not be partitioned ({@link ServerConfig#partitionThreads}),
+ * since the calls access the shards directly instead of through their owners.
+ */
+public class EmbeddedCache implements AutoCloseable {
+    private final ServerData data;
+
+    /**
+     * Compaction and rebalancing of the shards, null if disabled.
+     */
+    private final Rebalancer rebalancer;
+
+    /**
+     * The attached server, null if none. Guarded by this.
+     */
+    private Server server;
+
+    /**
+     * Why the attached server stopped listening, null if it did not fail; thrown by {@link #close()}.
+     */
+    private volatile IOException serverFailure;
+
+    /**
+     * The outcome of {@link #cas(String, byte[], int, int, long)}.
+     */
+    public enum CasResult {
+        STORED,
+        /**
+         * The item was modified since the cas value was read.
+         */
+        EXISTS,
+        NOT_FOUND
+    }
+
+    public EmbeddedCache() {
+        this(new ServerConfig());
+    }
+
+    public EmbeddedCache(ServerConfig config) {
+        if (config.partitionThreads > 0) {
+            throw new IllegalArgumentException("an embedded cache cannot be partitioned");
+        }
+        if (config.backends != null) {
+            throw new IllegalArgumentException("an embedded cache cannot be a proxy");
+        }
+        data = new ServerData(config);
+        rebalancer = config.rebalanceInterval > 0 ? new Rebalancer(data, config.rebalanceInterval) : null;
+        if (rebalancer != null) data.addStats(rebalancer::stats);
+    }
+
+    /**
+     * @return the storage engine, e.g., to register a {@link ServerData.MutationListener}
+     */
+    public ServerData data() {
+        return data;
+    }
+
+    /**
+     * @return the value of the key, or null if there is no valid item
+     */
+    public byte[] get(String key) {
+        var entry = data.get(key(key));
+        return entry != null ? entry.value() : null;
+    }
+
+    /**
+     * @return the item of the key with its value, flags and cas value, or null if there is none
+     */
+    public Entry gets(String key) {
+        return data.get(key(key));
+    }
+
+    /**
+     * @return the values of the keys with a valid item, in the order of the keys
+     */
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        var values = new LinkedHashMap<String, byte[]>();
+        for (var key : keys) {
+            var entry = data.get(key(key));
+            if (entry != null) values.put(key, entry.value());
+        }
+        return values;
+    }
+
+    /**
+     * Returns the value of the key and sets its expiration time, like "gat".
+     *
+     * @return the value, or null if there is no valid item
+     */
+    public byte[] getAndTouch(String key, int exptime) {
+        checkWritable();
+        var entry = data.touch(key(key), Util.expirationTime(exptime));
+        return entry != null ? entry.value() : null;
+    }
+
+    public void set(String key, byte[] value) {
+        set(key, value, 0, 0);
+    }
+
+    public void set(String key, byte[] value, int flags, int exptime) {
+        data.insert(entry(key, value, flags, exptime));
+    }
+
+    /**
+     * Stores the value only if there is no valid item of the key.
+     *
+     * @return true if the value was stored
+     */
+    public boolean add(String key, byte[] value, int flags, int exptime) {
+        return data.add(entry(key, value, flags, exptime));
+    }
+
+    /**
+     * Stores the value only if there is a valid item of the key.
+     *
+     * @return true if the value was stored
+     */
+    public boolean replace(String key, byte[] value, int flags, int exptime) {
+        checkValue(value);
+        var k = key(key);
+        int expirationDate = Util.expirationTime(exptime);
+        // retry until no concurrent store replaced the version we read
+        while (true) {
+            var current = data.get(k);
+            if (current == null) return false;
+            if (data.update(current, value, expirationDate, flags) != null) return true;
+        }
+    }
+
+    /**
+     * Stores the value only if the item of the key still has the given cas value, see
+     * {@link #gets(String)}.
+     */
+    public CasResult cas(String key, byte[] value, int flags, int exptime, long cas) {
+        checkValue(value);
+        var current = data.get(key(key));
+        if (current == null) return CasResult.NOT_FOUND;
+        if (current.cas() != cas) return CasResult.EXISTS;
+        // fails if another store replaced the version since the lookup
+        return data.update(current, value, Util.expirationTime(exptime), flags) != null
+                ? CasResult.STORED
+                : CasResult.EXISTS;
+    }
+
+    /**
+     * Adds the delta to the decimal value of the key.
+     *
+     * @return the new value, or null if there is no valid item
+     * @throws NumberFormatException if the value is not a decimal number
+     */
+    public Long incr(String key, long delta) {
+        return addToNumber(key, delta, false);
+    }
+
+    /**
+     * Subtracts the delta from the decimal value of the key; the value does not drop below 0.
+     *
+     * @return the new value, or null if there is no valid item
+     * @throws NumberFormatException if the value is not a decimal number
+     */
+    public Long decr(String key, long delta) {
+        return addToNumber(key, delta, true);
+    }
+
+    private Long addToNumber(String key, long delta, boolean decrement) {
+        checkWritable();
+        if (delta < 0) throw new IllegalArgumentException("delta must not be negative");
+        var k = key(key);
+        // retry until no concurrent update replaced the version we read
+        while (true) {
+            var entry = data.get(k);
+            if (entry == null) return null;
+            long value = Util.parseLongNumber(entry.value());
+            value = decrement ? Math.max(0, value - delta) : value + delta;
+            var digits = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+            if (data.update(entry, digits, null, null) != null) return value;
+        }
+    }
+
+    /**
+     * @return true if an item was deleted
+     */
+    public boolean delete(String key) {
+        checkWritable();
+        return data.delete(key(key));
+    }
+
+    /**
+     * Sets the expiration time of the item of the key.
+     *
+     * @return true if there was a valid item
+     */
+    public boolean touch(String key, int exptime) {
+        checkWritable();
+        return data.touch(key(key), Util.expirationTime(exptime)) != null;
+    }
+
+    /**
+     * Invalidates all items, see {@link ServerData#flush(int)}.
+     */
+    public void flush() {
+        checkWritable();
+        data.flush(0);
+    }
+
+    public Map<String, Object> stats() {
+        var stats = new LinkedHashMap<String, Object>();
+        data.stats(stats);
+        return stats;
+    }
+
+    /**
+     * Starts a server on the storage of this cache, listening as configured, e.g., on
+     * {@link ServerConfig#port}. It is closed with the cache, which then throws the failure that
+     * stopped the server, if any.
+     *
+     * @return the attached server
+     */
+    public synchronized Server serve() throws IOException {
+        if (server != null) throw new IllegalStateException("a server is attached already");
+        var attached = new Server(data);
+        var thread = new Thread(() -> {
+            try {
+                attached.listen();
+            } catch (IOException e) {
+                serverFailure = e;
+            }
+        }, "embedded-server");
+        thread.setDaemon(true);
+        thread.start();
+        server = attached;
+        return attached;
+    }
+
+    private Entry entry(String key, byte[] value, int flags, int exptime) {
+        checkValue(value);
+        return Entry.of(key(key), flags, Util.expirationTime(exptime), value, data.config().itemChunkSize);
+    }
+
+    private static Entry.Key key(String key) {
+        var bytes = key.getBytes(StandardCharsets.UTF_8);
+        // the same keys as the protocol, so clients of an attached server can reach them
+        if (!ArgumentSpec.isKey(bytes)) throw new IllegalArgumentException("key must have 1 to 250 bytes and no spaces");
+        return new Entry.Key(bytes);
+    }
+
+    private void checkValue(byte[] value) {
+        checkWritable();
+        if (value.length > data.config().maxItemSize) {
+            throw new IllegalArgumentException("value larger than " + data.config().maxItemSize + " bytes");
+        }
+    }
+
+    /**
+     * A replica only applies the mutations of its primary, see {@link ServerData#isReadOnly()}.
+     */
+    private void checkWritable() {
+        if (data.isReadOnly()) throw new IllegalStateException("read-only replica");
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (server != null) server.close();
+        if (rebalancer != null) rebalancer.close();
+        if (data.trace() != null) data.trace().close();
+        if (serverFailure != null) throw serverFailure;
+    }
+}
@@ -1,5 +1,11 @@
 package edu.kit.kastel.formal.bloatcache;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 /**
@@ -8,47 +14,315 @@ import java.util.Arrays;
  * An expiration time, in seconds. '0' means never expire. Can be up to 30 days. After 30 days, is treated as a unix timestamp of an exact date.
  * A 64bit "CAS" value, which is kept unique.
  * Arbitrary data
+ * <p>
+ * All of the above is stored in one contiguous array, so an item costs one object header for
+ * the entry and one for the array, independent of the number of fields:
+ * <pre>
+ * item: | flags (4) | exptime (4) | cas (8) | bits (1) | key length (1) | key | value |
+ * </pre>
+ * If the {@code COMPRESSED} bit is set, the value section holds the length of the raw value (4)
+ * followed by its deflated bytes, see {@link #compress(Compression)}. Values larger than a chunk
+ * are kept out of the item array, see {@link ChunkedEntry}.
+ * <p>
+ * The 64-bit hash of the key is computed once and kept next to the array, so lookups can
+ * reject non-matching items without touching the key bytes.
+ * <p>
+ * Once stored in the {@link ServerData}, an entry is an immutable version of the item: a
+ * mutation creates a new version with {@link #withValue} or {@link #withExpirationDate(int)},
+ * which replaces the old one in the index. Readers therefore never need a lock, and never see a
+ * value of one version with the flags or cas value of another. {@link #compress(Compression)}
+ * and {@link #setCas(long)} are only applied before the entry is published.
  *
  * @author Alexander Weigl
  * @version 1 (14.03.23)
  */
 public class Entry {
-    Key key;
+    static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
 
-    byte[] value;
+    static final int FLAGS = 0;
+    static final int EXPIRATION_DATE = 4;
+    static final int CAS = 8;
+    static final int BITS = 16;
+    static final int KEY_LENGTH = 17;
+    static final int HEADER_SIZE = 18;
 
-    int flags;
+    static final byte COMPRESSED = 1;
 
-    int expirationDate;
+    final long hash;
 
-    long cas = 0;
+    byte[] item;
+
+    /**
+     * Bookkeeping of the {@link EvictionPolicy}, guarded by the lock of the shard holding the entry:
+     * the links and list id of an {@link LruList}, or the slot and frequency counter of a sampling policy.
+     */
+    Entry prev;
+    Entry next;
+    int slot;
+    byte queue;
+    byte counter;
+
+    /**
+     * Time of the last store or read in seconds since the epoch, as reported by "lru_crawler metadump".
+     * Readers write it without a lock; a lost write only makes the time slightly older.
+     */
+    int lastAccess;
 
     public Entry(String key, int flags, int exptime, byte[] data) {
         this(new Key(key), flags, exptime, data);
     }
 
     public Entry(Key key, int flags, int exptime, byte[] data) {
-        this.key = key;
-        this.flags = flags;
-        this.expirationDate = exptime;
-        this.value = data;
+        this(key, flags, exptime, data.length);
+        System.arraycopy(data, 0, item, HEADER_SIZE + key.value.length, data.length);
+    }
+
+    /**
+     * Wraps an existing item array, see {@link #copy()}.
+     */
+    Entry(long hash, byte[] item) {
+        this.hash = hash;
+        this.item = item;
+    }
+
+    /**
+     * Allocates an item array with room for {@code valueLength} bytes of value.
+     */
+    Entry(Key key, int flags, int exptime, int valueLength) {
+        this.hash = key.hash;
+        this.item = new byte[HEADER_SIZE + key.value.length + valueLength];
+        INT.set(item, FLAGS, flags);
+        INT.set(item, EXPIRATION_DATE, exptime);
+        item[KEY_LENGTH] = (byte) key.value.length;
+        System.arraycopy(key.value, 0, item, HEADER_SIZE, key.value.length);
+    }
+
+    /**
+     * Creates an entry for the given value, chunked if it is larger than {@code chunkSize}.
+     */
+    public static Entry of(Key key, int flags, int exptime, byte[] data, int chunkSize) {
+        if (data.length > chunkSize) {
+            return new ChunkedEntry(key, flags, exptime, ChunkedEntry.split(data, chunkSize), data.length);
+        }
+        return new Entry(key, flags, exptime, data);
+    }
+
+    /**
+     * Reads a data block of {@code length} bytes and its trailing "\r\n" from the input directly
+     * into the storage of a new entry. Values larger than {@code chunkSize} are read chunk by chunk,
+     * so no temporary copy of the value is made and no array larger than a chunk is allocated.
+     */
+    public static Entry read(InputStream in, Key key, int flags, int exptime, int length, int chunkSize) throws IOException {
+        Entry entry;
+        if (length > chunkSize) {
+            var chunks = new byte[(length + chunkSize - 1) / chunkSize][];
+            for (int i = 0, remaining = length; i < chunks.length; i++, remaining -= chunkSize) {
+                chunks[i] = new byte[Math.min(chunkSize, remaining)];
+                Util.readFully(in, chunks[i], 0, chunks[i].length);
+            }
+            entry = new ChunkedEntry(key, flags, exptime, chunks, length);
+        } else {
+            entry = new Entry(key, flags, exptime, length);
+            Util.readFully(in, entry.item, entry.valueOffset(), length);
+        }
+        Util.readNewline(in);
+        return entry;
+    }
+
+    /**
+     * @param exptime the new expiration time, or null to keep the current one
+     * @param flags   the new flags, or null to keep the current ones
+     * @return a new version of this entry with the given value and the same cas value
+     */
+    public Entry withValue(byte[] data, Integer exptime, Integer flags, int chunkSize) {
+        var version = of(key(), flags != null ? flags : flags(),
+                exptime != null ? exptime : expirationDate(), data, chunkSize);
+        version.setCas(cas());
+        return version;
+    }
+
+    /**
+     * Joins the value of this entry with that of another one, e.g., for "append" and "prepend".
+     * If the result is larger than {@code chunkSize}, the chunks of both values are shared
+     * instead of copied, see {@link ChunkedEntry#join}.
+     *
+     * @param prepend true to put the other value first
+     * @return a new version of this entry with the joined value and the same cas value
+     */
+    public Entry withJoinedValue(Entry other, boolean prepend, int chunkSize) {
+        var first = prepend ? other : this;
+        var second = prepend ? this : other;
+        int length = first.valueLength() + second.valueLength();
+        Entry version;
+        if (length > chunkSize) {
+            var chunks = ChunkedEntry.join(first.chunks(), second.chunks(), chunkSize);
+            version = new ChunkedEntry(key(), flags(), expirationDate(), chunks, length, chunkSize);
+        } else {
+            version = new Entry(key(), flags(), expirationDate(), length);
+            var head = first.value();
+            var tail = second.value();
+            System.arraycopy(head, 0, version.item, version.valueOffset(), head.length);
+            System.arraycopy(tail, 0, version.item, version.valueOffset() + head.length, tail.length);
+        }
+        version.setCas(cas());
+        return version;
+    }
+
+    /**
+     * @return the (uncompressed) value as a list of chunks, which must not be modified
+     */
+    byte[][] chunks() {
+        return new byte[][]{value()};
+    }
+
+    /**
+     * @return a new version of this entry with the given expiration time, sharing the value
+     */
+    public Entry withExpirationDate(int exptime) {
+        var version = copy();
+        INT.set(version.item, EXPIRATION_DATE, exptime);
+        return version;
+    }
+
+    /**
+     * @return an entry with a copy of the item array
+     */
+    Entry copy() {
+        return new Entry(hash, item.clone());
+    }
+
+    /**
+     * Replaces the value by its compressed form, if the compression is worth it.
+     *
+     * @return true if the value is stored compressed afterwards
+     */
+    public boolean compress(Compression compression) {
+        if (isCompressed()) return true;
+        final var old = item;
+        final int valueOffset = valueOffset();
+        final int rawLength = old.length - valueOffset;
+        var compressed = compression.compress(old, valueOffset, rawLength);
+        if (compressed == null || compressed.length + 4 >= rawLength) return false;
+        var updated = Arrays.copyOf(old, valueOffset + 4 + compressed.length);
+        INT.set(updated, valueOffset, rawLength);
+        System.arraycopy(compressed, 0, updated, valueOffset + 4, compressed.length);
+        updated[BITS] |= COMPRESSED;
+        item = updated;
+        return true;
+    }
+
+    public boolean isCompressed() {
+        return (item[BITS] & COMPRESSED) != 0;
+    }
+
+    public int flags() {
+        return (int) INT.get(item, FLAGS);
+    }
+
+    public int expirationDate() {
+        return (int) INT.get(item, EXPIRATION_DATE);
+    }
+
+    public long cas() {
+        return (long) LONG.get(item, CAS);
+    }
+
+    void setCas(long cas) {
+        LONG.set(item, CAS, cas);
+    }
+
+    public int keyLength() {
+        return item[KEY_LENGTH] & 0xFF;
+    }
+
+    int valueOffset() {
+        return HEADER_SIZE + keyLength();
+    }
+
+    /**
+     * @return the length of the (uncompressed) value
+     */
+    public int valueLength() {
+        if (isCompressed()) return (int) INT.get(item, valueOffset());
+        return item.length - valueOffset();
+    }
+
+    /**
+     * @return the number of bytes the value occupies in memory
+     */
+    public int storedValueLength() {
+        return item.length - valueOffset();
+    }
+
+    public byte[] keyBytes() {
+        return Arrays.copyOfRange(item, HEADER_SIZE, valueOffset());
+    }
+
+    public Key key() {
+        return new Key(keyBytes(), hash);
+    }
+
+    public byte[] value() {
+        final var item = this.item;
+        final int valueOffset = HEADER_SIZE + (item[KEY_LENGTH] & 0xFF);
+        if ((item[BITS] & COMPRESSED) != 0) {
+            int rawLength = (int) INT.get(item, valueOffset);
+            return Compression.decompress(item, valueOffset + 4, item.length - valueOffset - 4, rawLength);
+        }
+        return Arrays.copyOfRange(item, valueOffset, item.length);
+    }
+
+    public void writeKey(OutputStream out) throws IOException {
+        out.write(item, HEADER_SIZE, keyLength());
     }
 
-    public void update(byte[] data, Integer exptime, Integer flags) {
-        if (!Arrays.equals(data, value)) {
-            cas++;
+    /**
+     * Writes the (uncompressed) value to the stream without copying it first.
+     */
+    public void writeValue(OutputStream out) throws IOException {
+        final var item = this.item;
+        if (isCompressed()) {
+            out.write(value());
+        } else {
+            final int valueOffset = valueOffset();
+            out.write(item, valueOffset, item.length - valueOffset);
         }
-        value = data;
-        if (exptime != null) expirationDate = exptime;
-        if (flags != null) this.flags = flags;
+    }
+
+    /**
+     * @return the memory this entry holds besides its object header
+     */
+    public int size() {
+        return item.length;
+    }
+
+    /**
+     * Compares the cached hashes first and the key bytes only if they are equal.
+     */
+    public boolean matches(Key key) {
+        return hash == key.hash
+                && Arrays.equals(item, HEADER_SIZE, HEADER_SIZE + keyLength(), key.value, 0, key.value.length);
+    }
+
+    boolean sameKey(Entry other) {
+        return hash == other.hash
+                && Arrays.equals(item, HEADER_SIZE, valueOffset(), other.item, HEADER_SIZE, other.valueOffset());
     }
 
     public static class Key {
         //@invariant  0 <= key.length <= 250;
         final byte[] value;
 
+        final long hash;
+
         public Key(byte[] value) {
+            this(value, Util.hash64(value, 0, value.length));
+        }
+
+        Key(byte[] value, long hash) {
             this.value = value;
+            this.hash = hash;
         }
 
         public Key(String arg) {
@@ -60,17 +334,22 @@ public class Entry {
             if (this == o) return true;
             if (!(o instanceof Key)) return false;
             Key key = (Key) o;
-            return Arrays.equals(value, key.value);
+            return hash == key.hash && Arrays.equals(value, key.value);
         }
 
         @Override
         public int hashCode() {
-            return Arrays.hashCode(value);
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return new String(value);
         }
     }
 
     @Override
     public String toString() {
-        return new String(value);
+        return new String(value());
     }
 }
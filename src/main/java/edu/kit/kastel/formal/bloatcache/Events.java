@@ -0,0 +1,120 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events of the server, e.g., recorded with
+ * {@code java -XX:StartFlightRecording ...} or {@code jcmd <pid> JFR.start}.
+ * <p>
+ * The events are cheap enough to stay enabled: an event that is not recorded costs a few
+ * instructions, the fields are only filled in for events that are committed, and none of them
+ * takes a stack trace. Commands and lock waits are only committed above their threshold, which
+ * can be lowered in the recording settings.
+ */
+final class Events {
+    private Events() {
+    }
+
+    @Name("bloatcache.Command")
+    @Label("Command")
+    @Category("bloatcache")
+    @Description("Execution of a command, from its first byte until its reply is buffered")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class Command extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Key Size")
+        @DataAmount
+        int keySize;
+
+        @Label("Value Size")
+        @Description("Length of the data block sent or of the values returned")
+        @DataAmount
+        long valueSize;
+
+        @Label("Parse Time")
+        @Description("Reading and validating the command line")
+        @Timespan
+        long parseTime;
+
+        @Label("Data Time")
+        @Description("Reading the data block of a storage command")
+        @Timespan
+        long dataTime;
+
+        @Label("Execute Time")
+        @Description("Executing the command and buffering its reply")
+        @Timespan
+        long executeTime;
+    }
+
+    @Name("bloatcache.Eviction")
+    @Label("Eviction")
+    @Category("bloatcache")
+    @Description("An item was evicted to keep a shard within its memory limit")
+    @StackTrace(false)
+    static class Eviction extends Event {
+        @Label("Shard")
+        int shard;
+
+        @Label("Key Size")
+        @DataAmount
+        int keySize;
+
+        @Label("Item Size")
+        @DataAmount
+        int size;
+
+        @Label("Idle Time")
+        @Description("Time since the last store or read of the item")
+        @Timespan(Timespan.SECONDS)
+        long idleTime;
+    }
+
+    @Name("bloatcache.Expiration")
+    @Label("Expiration")
+    @Category("bloatcache")
+    @Description("An expired or flushed item was reclaimed after a read")
+    @StackTrace(false)
+    static class Expiration extends Event {
+        @Label("Shard")
+        int shard;
+
+        @Label("Key Size")
+        @DataAmount
+        int keySize;
+
+        @Label("Item Size")
+        @DataAmount
+        int size;
+
+        @Label("Flushed")
+        @Description("Invalidated by flush_all rather than by its expiration time")
+        boolean flushed;
+    }
+
+    @Name("bloatcache.LockWait")
+    @Label("Shard Lock Wait")
+    @Category("bloatcache")
+    @Description("A thread waited for the lock of a shard held by another thread")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class LockWait extends Event {
+        @Label("Shard")
+        int shard;
+
+        @Label("Queue Length")
+        @Description("Threads waiting for the lock when it was acquired")
+        int queueLength;
+    }
+}
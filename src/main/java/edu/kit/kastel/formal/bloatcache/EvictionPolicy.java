@@ -0,0 +1,56 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.Map;
+
+/**
+ * Decides which entries of a {@link Shard} are evicted when it runs out of memory. The shard
+ * reports every insertion, access, replacement and removal; the policy keeps its bookkeeping in
+ * the intrusive fields of {@link Entry}. All methods are called under the lock of the shard.
+ */
+public interface EvictionPolicy {
+    /**
+     * A new key was stored.
+     */
+    void onInsert(Entry entry);
+
+    /**
+     * The entry was read or modified. Reads are reported with a delay, so the entry may have been
+     * replaced or removed in the meantime; such an entry must be ignored.
+     */
+    void onAccess(Entry entry);
+
+    /**
+     * The entry of a key was replaced by a new version. The new version takes over the position
+     * of the old one and counts as an access.
+     */
+    void onReplace(Entry old, Entry replacement);
+
+    /**
+     * The entry was removed from the shard, e.g., deleted, expired or evicted.
+     */
+    void onRemove(Entry entry);
+
+    /**
+     * @return the entry to evict next, or null if the policy tracks no entries. The entry stays
+     * tracked until it is reported via {@link #onRemove(Entry)}.
+     */
+    Entry victim();
+
+    /**
+     * Adds the counters of this policy's decisions to the stats, summing up with other shards.
+     */
+    void stats(Map<String, Long> stats);
+
+    static EvictionPolicy create(String name) {
+        switch (name) {
+            case "slru":
+                return new SegmentedLruPolicy();
+            case "lfu":
+                return new SampledLfuPolicy(5);
+            case "tinylfu":
+                return new WTinyLfuPolicy();
+            default:
+                throw new IllegalArgumentException("Unknown eviction policy " + name + ", expected slru, lfu or tinylfu");
+        }
+    }
+}
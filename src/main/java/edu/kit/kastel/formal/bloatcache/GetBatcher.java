@@ -0,0 +1,159 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the gets that a {@link Client} receives from different threads within a short window
+ * into one multi-get request {@code get <key1> ... <keyN>}, and hands each caller its own value.
+ * <p>
+ * The caller that opens a batch leads it: it waits until the window has passed or the batch
+ * holds {@code maxKeys} keys, then sends the request and completes the other callers of the
+ * batch. A batch opened while another one is in flight is sent once the connection is free, so
+ * at most a window of latency is added to a get, in exchange for one round trip per batch.
+ */
+public class GetBatcher {
+    private final long windowNanos;
+    private final int maxKeys;
+
+    /**
+     * The batch new gets join, null if none is open. Guarded by this.
+     */
+    private Batch open;
+
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder keys = new LongAdder();
+
+    /**
+     * Sends one request for several keys.
+     */
+    @FunctionalInterface
+    public interface MultiLoader {
+        /**
+         * @return the values of the keys the server holds
+         */
+        Map<String, String> load(List<String> keys) throws IOException;
+    }
+
+    /**
+     * @param windowMicros how long the first get of a batch waits for others
+     * @param maxKeys     the number of gets that sends a batch without waiting for the window
+     */
+    public GetBatcher(long windowMicros, int maxKeys) {
+        if (windowMicros < 0) throw new IllegalArgumentException("windowMicros must not be negative");
+        if (maxKeys <= 0) throw new IllegalArgumentException("maxKeys must be positive");
+        this.windowNanos = windowMicros * 1000;
+        this.maxKeys = maxKeys;
+    }
+
+    private static final class Batch {
+        final List<Request> requests = new ArrayList<>();
+        boolean full;
+    }
+
+    private static final class Request {
+        final String key;
+        final CompletableFuture<String> value = new CompletableFuture<>();
+
+        Request(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * @return the value of the key, or null if the server does not hold it
+     */
+    public String get(String key, MultiLoader loader) throws IOException {
+        gets.increment();
+        var request = new Request(key);
+        Batch batch;
+        boolean leader;
+        synchronized (this) {
+            leader = open == null;
+            if (leader) open = new Batch();
+            batch = open;
+            batch.requests.add(request);
+            if (batch.requests.size() >= maxKeys) {
+                batch.full = true;
+                open = null;
+                notifyAll();
+            }
+        }
+        if (leader) {
+            awaitWindow(batch);
+            send(batch.requests, loader);
+        }
+        return await(request.value);
+    }
+
+    private synchronized void awaitWindow(Batch batch) {
+        long deadline = System.nanoTime() + windowNanos;
+        long remaining;
+        try {
+            while (!batch.full && (remaining = deadline - System.nanoTime()) > 0) {
+                wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+            }
+        } catch (InterruptedException e) {
+            // send what was collected so far
+            Thread.currentThread().interrupt();
+        }
+        if (open == batch) open = null;
+    }
+
+    private void send(List<Request> requests, MultiLoader loader) {
+        var distinct = new LinkedHashSet<String>();
+        for (var request : requests) distinct.add(request.key);
+        batches.increment();
+        keys.add(distinct.size());
+        try {
+            var values = loader.load(new ArrayList<>(distinct));
+            for (var request : requests) request.value.complete(values.get(request.key));
+        } catch (IOException | RuntimeException e) {
+            for (var request : requests) request.value.completeExceptionally(e);
+        }
+    }
+
+    private static String await(CompletableFuture<String> value) throws IOException {
+        try {
+            return value.join();
+        } catch (CompletionException e) {
+            // the leader only fails with the exceptions of MultiLoader.load
+            var cause = e.getCause();
+            if (cause instanceof IOException) throw new IOException(cause.getMessage(), cause);
+            throw (RuntimeException) cause;
+        }
+    }
+
+    /**
+     * @return the calls of get
+     */
+    public long gets() {
+        return gets.sum();
+    }
+
+    /**
+     * @return the multi-get requests sent to the server
+     */
+    public long batches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return the keys requested from the server, each key once per batch
+     */
+    public long keys() {
+        return keys.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("GetBatcher[gets=%d, batches=%d, keys=%d]", gets(), batches(), keys());
+    }
+}
@@ -0,0 +1,224 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Always-on tracker of the most frequently accessed keys. Only every {@code sampleRate}-th access
+ * (on average) is recorded. A sampled access is counted in a {@link CountMinSketch}, and its
+ * estimate decides whether the key enters the space-saving top-K list, replacing the key with the
+ * smallest count. All counts are halved every {@code halfLife} seconds, so the list follows the
+ * current traffic instead of all-time totals.
+ * <p>
+ * The recorder is striped: each stripe has its own lock, sketch and top-K list, kept as a min-heap
+ * so that finding and replacing the smallest count is O(log K). A thread records into its own
+ * stripe and moves on to the next ones if that is busy; {@link #top()} merges the stripes by
+ * adding up the counts of each key. A sample is only dropped, instead of waiting, if all stripes
+ * are busy, so the tracker never blocks the lock-free read path. Dropped samples are counted and
+ * the reported counts are scaled up accordingly.
+ */
+public class HotKeys {
+    private final int sampleRate;
+    private final int capacity;
+    private final long halfLifeNanos;
+
+    private final Stripe[] stripes;
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public HotKeys(int sampleRate, int capacity, int halfLifeSeconds) {
+        this(sampleRate, capacity, halfLifeSeconds,
+                Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors())));
+    }
+
+    HotKeys(int sampleRate, int capacity, int halfLifeSeconds, int stripes) {
+        this.sampleRate = Math.max(1, sampleRate);
+        this.capacity = capacity;
+        this.halfLifeNanos = halfLifeSeconds * 1_000_000_000L;
+        this.stripes = new Stripe[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) this.stripes[i] = new Stripe();
+    }
+
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return the samples dropped because all stripes were busy
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return true if the current access should be recorded
+     */
+    public boolean sample() {
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    public void record(Entry.Key key, boolean write) {
+        int start = System.identityHashCode(Thread.currentThread());
+        for (int i = 0; i < stripes.length; i++) {
+            var stripe = stripes[Math.floorMod(start + i, stripes.length)];
+            if (!stripe.lock.tryLock()) continue;
+            try {
+                stripe.record(key, write);
+            } finally {
+                stripe.lock.unlock();
+            }
+            recorded.increment();
+            return;
+        }
+        dropped.increment();
+    }
+
+    /**
+     * @return the tracked keys by decreasing count; counts are scaled by the sample rate and by the
+     * share of dropped samples
+     */
+    public List<HotKey> top() {
+        var merged = new HashMap<Entry.Key, Counter>();
+        for (var stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                long now = System.nanoTime();
+                if (now - stripe.nextDecay >= 0) stripe.decay(now);
+                for (int i = 0; i < stripe.size; i++) {
+                    var c = stripe.heap[i];
+                    var sum = merged.computeIfAbsent(c.key, Counter::new);
+                    sum.count += c.count;
+                    sum.reads += c.reads;
+                    sum.writes += c.writes;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        long samples = recorded.sum();
+        double scale = samples > 0 ? (double) sampleRate * (samples + dropped.sum()) / samples : sampleRate;
+        var result = new ArrayList<HotKey>(merged.size());
+        for (var c : merged.values()) {
+            result.add(new HotKey(c.key, Math.round(c.count * scale), Math.round(c.reads * scale),
+                    Math.round(c.writes * scale)));
+        }
+        result.sort(Comparator.comparingLong((HotKey h) -> h.count).reversed());
+        return result.size() > capacity ? result.subList(0, capacity) : result;
+    }
+
+    public static final class HotKey {
+        public final Entry.Key key;
+        public final long count;
+        public final long reads;
+        public final long writes;
+
+        HotKey(Entry.Key key, long count, long reads, long writes) {
+            this.key = key;
+            this.count = count;
+            this.reads = reads;
+            this.writes = writes;
+        }
+    }
+
+    /**
+     * Sketch and top-K list of one stripe, guarded by its lock. The list is a binary min-heap by
+     * count, indexed by key.
+     */
+    private final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final CountMinSketch sketch = new CountMinSketch(4, capacity * 256);
+        final HashMap<Entry.Key, Counter> index = new HashMap<>();
+        final Counter[] heap = new Counter[capacity];
+        int size;
+        long nextDecay = System.nanoTime() + halfLifeNanos;
+
+        void record(Entry.Key key, boolean write) {
+            long now = System.nanoTime();
+            if (now - nextDecay >= 0) decay(now);
+
+            int estimate = sketch.add(key.hash);
+            var counter = index.get(key);
+            if (counter == null) {
+                if (capacity == 0) return;
+                counter = new Counter(key);
+                if (size < capacity) {
+                    move(counter, size++);
+                } else {
+                    // replace the key with the smallest count, the root
+                    if (heap[0].count >= estimate) return;
+                    index.remove(heap[0].key);
+                    move(counter, 0);
+                }
+                index.put(key, counter);
+            }
+            counter.count = Math.max(counter.count + 1, estimate);
+            if (write) counter.writes++;
+            else counter.reads++;
+            siftUp(counter.position);
+            siftDown(counter.position);
+        }
+
+        void decay(long now) {
+            sketch.halve();
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                var c = heap[i];
+                c.count >>>= 1;
+                c.reads >>>= 1;
+                c.writes >>>= 1;
+                if (c.count == 0) index.remove(c.key);
+                else move(c, kept++);
+            }
+            for (int i = kept; i < size; i++) heap[i] = null;
+            size = kept;
+            for (int i = size / 2 - 1; i >= 0; i--) siftDown(i);
+            nextDecay = now + halfLifeNanos;
+        }
+
+        private void move(Counter c, int position) {
+            heap[position] = c;
+            c.position = position;
+        }
+
+        private void siftUp(int i) {
+            var c = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent].count <= c.count) break;
+                move(heap[parent], i);
+                i = parent;
+            }
+            move(c, i);
+        }
+
+        private void siftDown(int i) {
+            var c = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && heap[child + 1].count < heap[child].count) child++;
+                if (c.count <= heap[child].count) break;
+                move(heap[child], i);
+                i = child;
+            }
+            move(c, i);
+        }
+    }
+
+    private static final class Counter {
+        final Entry.Key key;
+        long count;
+        long reads;
+        long writes;
+        int position;
+
+        Counter(Entry.Key key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.Consumer;
+
+/**
+ * Open-addressing hash index over {@link Entry} objects. The slots reference the entries
+ * directly, so an item needs no separate key object or map node. Probing compares the cached
+ * 64-bit hashes first and only looks at the key bytes of an entry on a full hash match.
+ * <p>
+ * Collisions are resolved by linear probing; removed slots are marked with a tombstone, which
+ * is dropped on the next resize.
+ * <p>
+ * Modifications must be serialized by the caller, but {@link #get(Entry.Key)} may run concurrently
+ * without a lock: slots are written with release and read with acquire semantics, and a resize
+ * publishes a completely filled new array. A slot only ever changes from one entry (version) to
+ * another, so a reader sees either the old or the new entry, never a partially written one.
+ */
+public class ItemTable {
+    private static final Entry TOMBSTONE = new Entry(new Entry.Key(new byte[0]), 0, 0, new byte[0]);
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Entry[].class);
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile Entry[] slots;
+    private int size;
+    private int used; // live entries and tombstones
+
+    public ItemTable() {
+        this(MIN_CAPACITY);
+    }
+
+    public ItemTable(int expectedSize) {
+        slots = new Entry[tableSizeFor(expectedSize)];
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int n = Math.max(MIN_CAPACITY, expectedSize * 2);
+        return Integer.highestOneBit(n - 1) << 1;
+    }
+
+    private static int spread(long hash) {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    public Entry get(Entry.Key key) {
+        final var tab = slots;
+        final int mask = tab.length - 1;
+        for (int i = spread(key.hash) & mask; ; i = (i + 1) & mask) {
+            var e = (Entry) SLOT.getAcquire(tab, i);
+            if (e == null) return null;
+            if (e != TOMBSTONE && e.matches(key)) return e;
+        }
+    }
+
+    /**
+     * Inserts the entry, replacing an entry with the same key.
+     *
+     * @return the replaced entry, or null
+     */
+    public Entry put(Entry entry) {
+        final var tab = slots;
+        final int mask = tab.length - 1;
+        int firstFree = -1;
+        for (int i = spread(entry.hash) & mask; ; i = (i + 1) & mask) {
+            var e = tab[i];
+            if (e == null) {
+                if (firstFree < 0) {
+                    firstFree = i;
+                    used++;
+                }
+                break;
+            }
+            if (e == TOMBSTONE) {
+                if (firstFree < 0) firstFree = i;
+            } else if (e.sameKey(entry)) {
+                SLOT.setRelease(tab, i, entry);
+                return e;
+            }
+        }
+        SLOT.setRelease(tab, firstFree, entry);
+        size++;
+        if (used * 4 >= tab.length * 3) resize();
+        return null;
+    }
+
+    /**
+     * @return the removed entry, or null if there was no entry for the key
+     */
+    public Entry remove(Entry.Key key) {
+        final var tab = slots;
+        final int mask = tab.length - 1;
+        for (int i = spread(key.hash) & mask; ; i = (i + 1) & mask) {
+            var e = tab[i];
+            if (e == null) return null;
+            if (e != TOMBSTONE && e.matches(key)) {
+                SLOT.setRelease(tab, i, TOMBSTONE);
+                size--;
+                return e;
+            }
+        }
+    }
+
+    /**
+     * @return true if exactly the given entry is stored, not just another entry for the same key
+     */
+    public boolean contains(Entry entry) {
+        return find(entry) >= 0;
+    }
+
+    /**
+     * Removes exactly the given entry, but not another entry for the same key.
+     *
+     * @return true if the entry was stored
+     */
+    public boolean remove(Entry entry) {
+        int i = find(entry);
+        if (i < 0) return false;
+        SLOT.setRelease(slots, i, TOMBSTONE);
+        size--;
+        return true;
+    }
+
+    private int find(Entry entry) {
+        final var tab = slots;
+        final int mask = tab.length - 1;
+        for (int i = spread(entry.hash) & mask; ; i = (i + 1) & mask) {
+            var e = tab[i];
+            if (e == null) return -1;
+            if (e == entry) return i;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Passes every stored entry to the action. Like {@link #get(Entry.Key)}, this needs no lock;
+     * without the lock, the walk is weakly consistent: it sees every entry stored during the whole
+     * walk, and may or may not see the entries stored or removed in the meantime.
+     */
+    public void forEach(Consumer<Entry> action) {
+        final var tab = slots;
+        for (int i = 0; i < tab.length; i++) {
+            var e = (Entry) SLOT.getAcquire(tab, i);
+            if (e != null && e != TOMBSTONE) action.accept(e);
+        }
+    }
+
+    public void clear() {
+        slots = new Entry[MIN_CAPACITY];
+        size = 0;
+        used = 0;
+    }
+
+    /**
+     * Rebuilds the array if at most an eighth of it holds entries, e.g., after most entries
+     * expired, so the empty slots and the tombstones do not hold memory. Like a resize, the entries
+     * are moved to a new array that is published once filled, so concurrent readers are not blocked.
+     *
+     * @return true if the array was rebuilt
+     */
+    public boolean compact() {
+        if (slots.length <= MIN_CAPACITY || size * 8 > slots.length) return false;
+        resize();
+        return true;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    private void resize() {
+        final var old = slots;
+        final var tab = new Entry[tableSizeFor(size)];
+        final int mask = tab.length - 1;
+        for (var e : old) {
+            if (e == null || e == TOMBSTONE) continue;
+            int i = spread(e.hash) & mask;
+            while (tab[i] != null) i = (i + 1) & mask;
+            tab[i] = e;
+        }
+        slots = tab;
+        used = size;
+    }
+}
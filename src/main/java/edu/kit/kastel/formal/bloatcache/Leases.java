@@ -0,0 +1,175 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Leases on missing keys, see {@link ServerConfig#leaseTime}, against miss storms and stale sets.
+ * <ul>
+ *     <li>The first client missing a key with "lease_get" receives a lease token: it should load
+ *     the value, e.g., from the database, and store it with "lease_set" and the token.</li>
+ *     <li>Clients missing the key while the lease is outstanding, and not older than the lease
+ *     time, receive no token. They are given the previous value as stale, if it expired or was
+ *     flushed recently, or otherwise are told to wait and retry, so only one client per key and
+ *     lease time loads the value.</li>
+ *     <li>Any other store or delete of the key ends its lease: the value the lease holder loaded
+ *     may be older than that write, so its "lease_set" is rejected instead of overwriting it.</li>
+ * </ul>
+ * The leases are kept as a {@link ServerData.MutationListener} of the data, so they also end
+ * with the mutations a replica applies or a flush.
+ */
+final class Leases implements ServerData.MutationListener {
+    /**
+     * Leases are purged of expired ones after this many grants.
+     */
+    private static final int PURGE_INTERVAL = 1024;
+
+    private final long timeNanos;
+    private final ConcurrentHashMap<Entry.Key, Lease> leases = new ConcurrentHashMap<>();
+
+    /**
+     * Source of the tokens; starts at a random value, so tokens of an earlier run of the server
+     * are not accepted by chance.
+     */
+    private final AtomicLong tokens = new AtomicLong(ThreadLocalRandom.current().nextLong(1L << 62));
+
+    private final LongAdder granted = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private static final class Lease {
+        final long token;
+        final long grantedAt;
+
+        /**
+         * The expired or flushed version of the entry, served to the other clients while the
+         * lease is outstanding, or null if there is none.
+         */
+        final Entry stale;
+
+        Lease(long token, long grantedAt, Entry stale) {
+            this.token = token;
+            this.grantedAt = grantedAt;
+            this.stale = stale;
+        }
+    }
+
+    /**
+     * The outcome of a "lease_get": the entry, or on a miss a new lease, or the stale value, or
+     * neither if the client should wait.
+     */
+    static final class Grant {
+        /**
+         * The token of the new lease, or 0 if the key was found or another client holds the lease.
+         */
+        final long token;
+
+        /**
+         * The entry, or the stale value if {@link #stale}, or null.
+         */
+        final Entry entry;
+        final boolean stale;
+
+        Grant(long token, Entry entry, boolean stale) {
+            this.token = token;
+            this.entry = entry;
+            this.stale = stale;
+        }
+    }
+
+    /**
+     * @param timeMillis how long a lease keeps other clients from receiving one
+     */
+    Leases(long timeMillis) {
+        timeNanos = timeMillis * 1_000_000;
+    }
+
+    /**
+     * Grants a lease on a missing key, unless a lease on it is outstanding.
+     *
+     * @param stale the invalid version of the entry still stored, or null
+     */
+    Grant acquire(Entry.Key key, Entry stale) {
+        long now = System.nanoTime();
+        var fresh = new Lease(tokens.incrementAndGet(), now, stale);
+        var lease = leases.merge(key, fresh, (current, next) -> now - current.grantedAt < timeNanos ? current : next);
+        if (lease == fresh) {
+            granted.increment();
+            if (fresh.token % PURGE_INTERVAL == 0) purge(now);
+            return new Grant(lease.token, null, false);
+        }
+        if (lease.stale != null) staleHits.increment();
+        else waits.increment();
+        return new Grant(0, lease.stale, lease.stale != null);
+    }
+
+    /**
+     * Ends the lease on the key if it has the given token.
+     *
+     * @return true if the lease was outstanding, so the value of its holder may be stored
+     */
+    boolean release(Entry.Key key, long token) {
+        var lease = leases.get(key);
+        if (lease != null && lease.token == token && leases.remove(key, lease)) return true;
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Forgets the leases that are older than the lease time twice; their holders have most likely
+     * given up, and the next miss grants a new lease anyway.
+     */
+    private void purge(long now) {
+        leases.values().removeIf(lease -> now - lease.grantedAt >= 2 * timeNanos);
+    }
+
+    /**
+     * Ends the lease on the key, if there is one.
+     */
+    void end(Entry.Key key) {
+        if (!leases.isEmpty()) leases.remove(key);
+    }
+
+    private void end(Entry entry) {
+        if (!leases.isEmpty()) leases.remove(entry.key());
+    }
+
+    @Override
+    public void stored(Entry entry) {
+        end(entry);
+    }
+
+    @Override
+    public void deleted(Entry entry) {
+        end(entry);
+    }
+
+    @Override
+    public void flushed(long cas) {
+        // the stale values were flushed as well
+        leases.clear();
+    }
+
+    @Override
+    public void invalidated(byte[] namespace, long cas) {
+        // the leases are not known by namespace, so all that hold a stale value end; later leases
+        // are granted without one, see ServerData#leaseGet
+        leases.values().removeIf(lease -> lease.stale != null);
+    }
+
+    int size() {
+        return leases.size();
+    }
+
+    void stats(Map<String, Object> stats) {
+        stats.put("lease_outstanding", leases.size());
+        stats.put("lease_granted", granted.sum());
+        stats.put("lease_stale_hits", staleHits.sum());
+        stats.put("lease_waits", waits.sum());
+        stats.put("lease_rejected_sets", rejected.sum());
+    }
+}
@@ -0,0 +1,70 @@
+package edu.kit.kastel.formal.bloatcache;
+
+/**
+ * Intrusive doubly linked list of entries in recency order, most recently used first. The links
+ * are the {@link Entry#prev} and {@link Entry#next} fields, so an entry is in at most one list;
+ * {@link Entry#queue} records which one.
+ */
+final class LruList {
+    final byte id;
+    private Entry head;
+    private Entry tail;
+    private int size;
+
+    LruList(int id) {
+        this.id = (byte) id;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Entry last() {
+        return tail;
+    }
+
+    boolean contains(Entry e) {
+        return e.queue == id;
+    }
+
+    void addFirst(Entry e) {
+        e.queue = id;
+        e.prev = null;
+        e.next = head;
+        if (head != null) head.prev = e;
+        head = e;
+        if (tail == null) tail = e;
+        size++;
+    }
+
+    void remove(Entry e) {
+        if (e.prev != null) e.prev.next = e.next;
+        else head = e.next;
+        if (e.next != null) e.next.prev = e.prev;
+        else tail = e.prev;
+        e.prev = e.next = null;
+        e.queue = 0;
+        size--;
+    }
+
+    void moveToFront(Entry e) {
+        if (head == e) return;
+        remove(e);
+        addFirst(e);
+    }
+
+    /**
+     * Puts {@code replacement} at the position of {@code old}.
+     */
+    void replace(Entry old, Entry replacement) {
+        replacement.queue = id;
+        replacement.prev = old.prev;
+        replacement.next = old.next;
+        if (old.prev != null) old.prev.next = replacement;
+        else head = replacement;
+        if (old.next != null) old.next.prev = replacement;
+        else tail = replacement;
+        old.prev = old.next = null;
+        old.queue = 0;
+    }
+}
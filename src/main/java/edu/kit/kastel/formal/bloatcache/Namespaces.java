@@ -0,0 +1,72 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Groups of keys that are invalidated together in constant time, see
+ * {@link ServerConfig#namespaceSeparator}. The namespace of a key is its prefix up to the first
+ * separator, e.g., "tenant42" of "tenant42:user:7"; keys without a separator belong to none.
+ * <p>
+ * Like "flush_all", invalidating a namespace does not touch its entries. It starts a new
+ * generation of the namespace by recording the current cas value as its epoch: the entries of
+ * the namespace with a cas value up to the epoch belong to an old generation and are treated as
+ * missing, until they are removed when read or evicted.
+ * <p>
+ * Namespaces are identified by the 64-bit hash of their name, so the lookup for an entry does not
+ * allocate. Two names with the same hash are invalidated together, which may cost misses but
+ * never returns an invalid entry.
+ */
+final class Namespaces {
+    private final byte separator;
+
+    /**
+     * The epoch of each invalidated namespace by the hash of its name: its entries with a cas
+     * value up to the epoch are invalid.
+     */
+    private final ConcurrentHashMap<Long, Long> epochs = new ConcurrentHashMap<>();
+
+    Namespaces(String separator) {
+        if (separator.length() != 1 || separator.charAt(0) > 0x7F || separator.charAt(0) == ' ') {
+            throw new IllegalArgumentException("namespace separator must be a single ASCII character");
+        }
+        this.separator = (byte) separator.charAt(0);
+    }
+
+    /**
+     * @return the cas value up to which the entries of the namespace of the entry are invalid,
+     * or 0 if the namespace was never invalidated
+     */
+    long invalidatedCas(Entry entry) {
+        if (epochs.isEmpty()) return 0;
+        var item = entry.item;
+        int end = Entry.HEADER_SIZE + entry.keyLength();
+        for (int i = Entry.HEADER_SIZE; i < end; i++) {
+            if (item[i] == separator) {
+                var epoch = epochs.get(Util.hash64(item, Entry.HEADER_SIZE, i - Entry.HEADER_SIZE));
+                return epoch == null ? 0 : epoch;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Invalidates the entries of the namespace with a cas value up to the given one.
+     */
+    void invalidate(byte[] namespace, long cas) {
+        epochs.merge(Util.hash64(namespace, 0, namespace.length), cas, Math::max);
+    }
+
+    /**
+     * Forgets the epochs that a flush up to the given cas value supersedes.
+     */
+    void flushed(long cas) {
+        epochs.values().removeIf(epoch -> epoch <= cas);
+    }
+
+    /**
+     * @return the number of namespaces with an epoch
+     */
+    int size() {
+        return epochs.size();
+    }
+}
@@ -0,0 +1,144 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small in-process L1 cache for a {@link Client}. Entries are kept in LRU order,
+ * bounded by {@code maxEntries}, and dropped after {@code ttlMillis}. The server
+ * remains the source of truth: the near cache only shortcuts reads of keys that were
+ * fetched or written through the same client shortly before.
+ */
+public class NearCache {
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    private final LinkedHashMap<String, Value> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    public NearCache(int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+        if (ttlMillis <= 0) throw new IllegalArgumentException("ttlMillis must be positive");
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Value> eldest) {
+                if (size() > NearCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the cached value, or null if the key is not cached or its TTL has passed
+     */
+    public synchronized String get(String key) {
+        var v = entries.get(key);
+        if (v == null) {
+            misses++;
+            return null;
+        }
+        if (v.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return v.value;
+    }
+
+    public void put(String key, String value) {
+        put(key, value, ttlMillis);
+    }
+
+    /**
+     * Caches the value for at most {@code ttlMillis}, never longer than the TTL of the near cache.
+     */
+    public synchronized void put(String key, String value, long ttlMillis) {
+        if (value == null) {
+            entries.remove(key);
+            return;
+        }
+        long ttl = Math.min(ttlMillis, this.ttlMillis);
+        if (ttl <= 0) {
+            entries.remove(key);
+            return;
+        }
+        entries.put(key, new Value(value, System.nanoTime() + ttl * 1_000_000L));
+    }
+
+    public synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Drops all entries whose TTL has passed.
+     */
+    public synchronized void purgeExpired() {
+        long now = System.nanoTime();
+        for (Iterator<Value> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().expiresAt - now <= 0) {
+                it.remove();
+                expirations++;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized long expirations() {
+        return expirations;
+    }
+
+    public int maxEntries() {
+        return maxEntries;
+    }
+
+    public long ttlMillis() {
+        return ttlMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("NearCache[size=%d, hits=%d, misses=%d, evictions=%d, expirations=%d]",
+                entries.size(), hits, misses, evictions, expirations);
+    }
+
+    private static final class Value {
+        final String value;
+        final long expiresAt;
+
+        Value(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
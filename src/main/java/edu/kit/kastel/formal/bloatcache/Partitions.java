@@ -0,0 +1,255 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Shared-nothing execution of the {@link ServerData}, see {@link ServerConfig#partitionThreads}.
+ * Each owner thread exclusively owns a partition of the keyspace: a subset of the shards, with
+ * their indices and eviction policies. A connection thread does not touch the data of a key
+ * itself, but passes the operation through a {@link SpscQueue} to the owner of the key and waits
+ * for the result. Every connection has its own queue to every owner, so each queue has exactly
+ * one producer and one consumer. Operations on several keys, like multi-gets, are split by owner,
+ * run by the owners in parallel and gathered.
+ * <p>
+ * Since only its owner accesses a shard, the lock of the shard is never contended, and the index,
+ * policy and entries stay in the cache of the owner's core instead of moving between the cores
+ * of the connections. Global operations, e.g., stats, flush_all or the crawler, still run on the
+ * connection thread and rely on the shard locks as before.
+ * <p>
+ * Owners and waiting connections spin briefly before they park, if there is more than one core.
+ */
+public class Partitions implements AutoCloseable {
+    static final int QUEUE_CAPACITY = 16;
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 12 : 0;
+
+    private final ServerData data;
+    private final Owner[] owners;
+    private volatile boolean closed;
+
+    /**
+     * @param threads the number of owners, at most the number of shards
+     */
+    public Partitions(ServerData data, int threads) {
+        this.data = data;
+        owners = new Owner[Math.max(1, Math.min(threads, data.shardCount()))];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = new Owner("partition-" + i);
+            owners[i].thread.start();
+        }
+    }
+
+    public int size() {
+        return owners.length;
+    }
+
+    private int ownerOf(long hash) {
+        return data.shardIndex(hash) % owners.length;
+    }
+
+    /**
+     * @return the queues of a new connection to the owners, to be closed with the connection
+     */
+    public Port connect() {
+        return new Port();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (var owner : owners) LockSupport.unpark(owner.thread);
+    }
+
+    /**
+     * An operation passed to an owner, and its result.
+     */
+    private static final class Task {
+        final Function<ServerData, ?> operation;
+        final Thread waiter = Thread.currentThread();
+        Object result;
+        RuntimeException failure;
+        volatile boolean done;
+        volatile boolean waiting;
+
+        Task(Function<ServerData, ?> operation) {
+            this.operation = operation;
+        }
+
+        void run(ServerData data) {
+            try {
+                result = operation.apply(data);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            done = true;
+            if (waiting) LockSupport.unpark(waiter);
+        }
+
+        Object await() {
+            for (int i = 0; i < SPINS && !done; i++) Thread.onSpinWait();
+            while (!done) {
+                waiting = true;
+                if (!done) LockSupport.park(this);
+            }
+            if (failure != null) throw failure;
+            return result;
+        }
+    }
+
+    private final class Owner implements Runnable {
+        final Thread thread;
+
+        /**
+         * The queues of all connections to this owner, replaced on every change.
+         */
+        volatile SpscQueue<Task>[] queues = newQueues(0);
+
+        volatile boolean parked;
+
+        Owner(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        synchronized void add(SpscQueue<Task> queue) {
+            var grown = Arrays.copyOf(queues, queues.length + 1);
+            grown[queues.length] = queue;
+            queues = grown;
+        }
+
+        synchronized void remove(SpscQueue<Task> queue) {
+            var remaining = new ArrayList<>(Arrays.asList(queues));
+            remaining.remove(queue);
+            queues = remaining.toArray(newQueues(0));
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (!closed) {
+                boolean worked = false;
+                for (var queue : queues) {
+                    Task task;
+                    while ((task = queue.poll()) != null) {
+                        task.run(data);
+                        worked = true;
+                    }
+                }
+                if (worked) {
+                    idle = 0;
+                } else if (idle < SPINS) {
+                    idle++;
+                    Thread.onSpinWait();
+                } else {
+                    // a producer offers, then checks parked; we set parked, then check the queues
+                    parked = true;
+                    if (isIdle()) LockSupport.park(this);
+                    parked = false;
+                    idle = 0;
+                }
+            }
+        }
+
+        private boolean isIdle() {
+            for (var queue : queues) {
+                if (!queue.isEmpty()) return false;
+            }
+            return !closed;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static SpscQueue<Task>[] newQueues(int length) {
+        return new SpscQueue[length];
+    }
+
+    /**
+     * The queues of one connection to all owners. Must only be used by the thread of the connection.
+     */
+    public final class Port implements AutoCloseable {
+        private final SpscQueue<Task>[] queues = newQueues(owners.length);
+
+        private Port() {
+            for (int i = 0; i < owners.length; i++) {
+                queues[i] = new SpscQueue<>(QUEUE_CAPACITY);
+                owners[i].add(queues[i]);
+            }
+        }
+
+        private Task submit(int owner, Function<ServerData, ?> operation) {
+            var task = new Task(operation);
+            while (!queues[owner].offer(task)) Thread.yield();
+            if (owners[owner].parked) LockSupport.unpark(owners[owner].thread);
+            return task;
+        }
+
+        /**
+         * Runs the operation on the owner of the key and waits for its result.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T call(Entry.Key key, Function<ServerData, T> operation) {
+            return (T) submit(ownerOf(key.hash), operation).await();
+        }
+
+        /**
+         * Runs the operation for each key on the owner of the key, with one task per owner.
+         *
+         * @return the results in the order of the keys
+         */
+        public Entry[] getAll(List<Entry.Key> keys, BiFunction<ServerData, Entry.Key, Entry> operation) {
+            var results = new Entry[keys.size()];
+            var tasks = new Task[owners.length];
+            for (int owner = 0; owner < owners.length; owner++) {
+                var indices = indicesOf(keys, owner);
+                if (indices.length == 0) continue;
+                tasks[owner] = submit(owner, data -> {
+                    for (int i : indices) results[i] = operation.apply(data, keys.get(i));
+                    return null;
+                });
+            }
+            for (var task : tasks) {
+                if (task != null) task.await();
+            }
+            return results;
+        }
+
+        private int[] indicesOf(List<Entry.Key> keys, int owner) {
+            var indices = new int[keys.size()];
+            int count = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                if (ownerOf(keys.get(i).hash) == owner) indices[count++] = i;
+            }
+            return Arrays.copyOf(indices, count);
+        }
+
+        /**
+         * Stores the entries with {@link ServerData#insertAll(List)}, each owner its own share.
+         */
+        public void insertAll(List<Entry> entries) {
+            var tasks = new Task[owners.length];
+            for (int owner = 0; owner < owners.length; owner++) {
+                var share = new ArrayList<Entry>();
+                for (var entry : entries) {
+                    if (ownerOf(entry.hash) == owner) share.add(entry);
+                }
+                if (share.isEmpty()) continue;
+                tasks[owner] = submit(owner, data -> {
+                    data.insertAll(share);
+                    return null;
+                });
+            }
+            for (var task : tasks) {
+                if (task != null) task.await();
+            }
+        }
+
+        @Override
+        public void close() {
+            for (int i = 0; i < owners.length; i++) owners[i].remove(queues[i]);
+        }
+    }
+}
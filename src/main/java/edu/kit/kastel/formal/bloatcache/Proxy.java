@@ -0,0 +1,76 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes keys to the backend nodes given by {@link ServerConfig#backends}. The nodes are placed on
+ * a consistent hash ring with {@link #POINTS_PER_BACKEND} points each, so adding or removing a
+ * node only moves the keys of its own arcs.
+ */
+public class Proxy implements AutoCloseable {
+    static final int POINTS_PER_BACKEND = 160;
+
+    private final ProxyBackend[] backends;
+    private final long[] points;
+    private final ProxyBackend[] owners;
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder fanouts = new LongAdder();
+
+    public Proxy(ServerConfig config) {
+        var addresses = config.backends.split(",");
+        backends = new ProxyBackend[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            backends[i] = new ProxyBackend(addresses[i].trim(), config.proxyConnections, config.proxyTimeout);
+        }
+
+        var ring = new long[backends.length * POINTS_PER_BACKEND][];
+        int n = 0;
+        for (int i = 0; i < backends.length; i++) {
+            for (int p = 0; p < POINTS_PER_BACKEND; p++) {
+                var point = (backends[i].address() + "#" + p).getBytes(StandardCharsets.US_ASCII);
+                ring[n++] = new long[]{Util.hash64(point, 0, point.length), i};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[ring.length];
+        owners = new ProxyBackend[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = backends[(int) ring[i][1]];
+        }
+    }
+
+    /**
+     * @return the backend owning the first point of the ring at or after the hash of the key
+     */
+    ProxyBackend route(Entry.Key key) {
+        int i = Arrays.binarySearch(points, key.hash);
+        if (i < 0) i = -i - 1;
+        return owners[i == points.length ? 0 : i];
+    }
+
+    ProxyBackend[] backends() {
+        return backends;
+    }
+
+    public void stats(Map<String, Object> stats) {
+        stats.put("proxy_backends", backends.length);
+        stats.put("proxy_requests", requests.sum());
+        stats.put("proxy_fanouts", fanouts.sum());
+        for (var backend : backends) {
+            stats.put("proxy_backend:" + backend.address() + ":requests", backend.requests.sum());
+            stats.put("proxy_backend:" + backend.address() + ":errors", backend.errors.sum());
+            stats.put("proxy_backend:" + backend.address() + ":down", backend.isDown() ? 1 : 0);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (var backend : backends) backend.close();
+    }
+}
@@ -0,0 +1,244 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A backend node of the {@link Proxy} with a small pool of pipelined connections. Requests are
+ * written to a connection without waiting for the replies of earlier requests; a reader thread
+ * per connection completes the requests in the order they were sent.
+ * <p>
+ * Connections are opened outside the lock of the pool, with a timeout, so the clients of other
+ * connections do not wait for an unreachable backend. If connecting fails, the backend is down
+ * for the timeout, and its requests fail at once. A request not answered within the timeout
+ * fails as well, and its connection is closed, since the backend may hang.
+ */
+final class ProxyBackend implements AutoCloseable {
+    final String host;
+    final int port;
+    private final Connection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+    private final int timeoutMillis;
+
+    /**
+     * {@link System#currentTimeMillis()} until which the backend is considered down.
+     */
+    private volatile long downUntil;
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    /**
+     * @param timeoutMillis how long to wait for a connection, and to consider the backend down
+     *                      if it fails
+     */
+    ProxyBackend(String address, int connections, int timeoutMillis) {
+        int colon = address.lastIndexOf(':');
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+        this.connections = new Connection[Math.max(1, connections)];
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    String address() {
+        return host + ":" + port;
+    }
+
+    /**
+     * Sends a request whose reply is a single line, e.g., "STORED".
+     *
+     * @return the reply line including its "\r\n"
+     */
+    CompletableFuture<byte[]> send(byte[] request) {
+        return send(request, false);
+    }
+
+    /**
+     * Sends a retrieval request.
+     *
+     * @return the "VALUE" blocks of the reply, without the terminating "END"
+     */
+    CompletableFuture<byte[]> retrieve(byte[] request) {
+        return send(request, true);
+    }
+
+    private CompletableFuture<byte[]> send(byte[] request, boolean retrieval) {
+        requests.increment();
+        var pending = new Pending(retrieval);
+        try {
+            var connection = connection();
+            connection.send(request, pending);
+            pending.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((reply, e) -> {
+                if (e instanceof TimeoutException) {
+                    errors.increment();
+                    connection.abort();
+                }
+            });
+        } catch (IOException e) {
+            errors.increment();
+            pending.future.completeExceptionally(e);
+        }
+        return pending.future;
+    }
+
+    private Connection connection() throws IOException {
+        int i = Math.floorMod(next.getAndIncrement(), connections.length);
+        synchronized (connections) {
+            var connection = connections[i];
+            if (connection != null && !connection.broken) return connection;
+        }
+        if (System.currentTimeMillis() < downUntil) throw new IOException("Backend " + address() + " is down");
+        var socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+        } catch (IOException e) {
+            socket.close();
+            downUntil = System.currentTimeMillis() + timeoutMillis;
+            throw e;
+        }
+        synchronized (connections) {
+            var connection = connections[i];
+            if (connection != null && !connection.broken) {
+                // another thread connected in the meantime
+                socket.close();
+                return connection;
+            }
+            connection = new Connection(socket);
+            connections[i] = connection;
+            return connection;
+        }
+    }
+
+    boolean isDown() {
+        return System.currentTimeMillis() < downUntil;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (connections) {
+            for (var connection : connections) {
+                if (connection != null) connection.socket.close();
+            }
+        }
+    }
+
+    private static final class Pending {
+        final boolean retrieval;
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        Pending(boolean retrieval) {
+            this.retrieval = retrieval;
+        }
+    }
+
+    private final class Connection implements Runnable {
+        final Socket socket;
+        final OutputStream out;
+        final InputStream in;
+        final LinkedBlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+        volatile boolean broken;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream());
+            var reader = new Thread(this, "proxy-backend-" + address());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Enqueues and writes under one lock, so the replies arrive in the order of the queue.
+         */
+        synchronized void send(byte[] request, Pending p) throws IOException {
+            if (broken) throw new IOException("Connection to " + address() + " is broken");
+            pending.add(p);
+            try {
+                out.write(request);
+                out.flush();
+            } catch (IOException e) {
+                // the reader fails the queued requests
+                abort();
+                throw e;
+            }
+        }
+
+        /**
+         * Closes the socket, so the reader fails all queued requests.
+         */
+        void abort() {
+            broken = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    var p = pending.take();
+                    p.future.complete(p.retrieval ? readValues() : readLine());
+                }
+            } catch (IOException | RuntimeException | InterruptedException e) {
+                // closing first wakes up a sender blocked writing, which holds the monitor
+                abort();
+                // under the monitor of send, so no request is queued after the queue is drained
+                synchronized (this) {
+                    Pending p;
+                    while ((p = pending.poll()) != null) {
+                        errors.increment();
+                        p.future.completeExceptionally(e);
+                    }
+                }
+            }
+        }
+
+        private byte[] readLine() throws IOException {
+            var line = Util.readLine(in);
+            if (line.length == 0) throw new IOException("Backend " + address() + " closed the connection");
+            var reply = new ByteArrayOutputStream(line.length + 2);
+            reply.write(line);
+            reply.write('\r');
+            reply.write('\n');
+            return reply.toByteArray();
+        }
+
+        private byte[] readValues() throws IOException {
+            var reply = new ByteArrayOutputStream();
+            while (true) {
+                var line = Util.readLine(in);
+                if (Util.equals("END", line)) return reply.toByteArray();
+                if (line.length == 0) throw new IOException("Backend " + address() + " closed the connection");
+                reply.write(line);
+                reply.write('\r');
+                reply.write('\n');
+                // the lines of "lease_get" on a miss, see CommandHandling
+                if (Util.startsWith(line, "LEASE ") || Util.startsWith(line, "WAIT ")) continue;
+                if (!Util.startsWith(line, "VALUE ") && !Util.startsWith(line, "STALE ")) {
+                    // an error line ends the reply
+                    return reply.toByteArray();
+                }
+                // VALUE|STALE <key> <flags> <bytes> [<cas unique>]
+                var fields = new String(line).split(" ");
+                reply.write(Util.readLineExactly(in, Long.parseLong(fields[3])));
+                reply.write('\r');
+                reply.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Handles a client connection of a {@link Proxy}. Every command is forwarded to the backend that
+ * owns its key; "noreply" is stripped on the way, so the replies of the pipelined backend
+ * connections stay in order, and the reply is dropped instead. Multi-key retrievals are split
+ * into one request per backend, which are sent before any reply is awaited, and the values are
+ * merged into one reply terminated by a single "END". "flush_all" is sent to all backends.
+ */
+public class ProxyHandling implements Runnable {
+    private final Proxy proxy;
+    private final ServerConfig config;
+    private final PushbackInputStream in;
+    private final OutputStream out;
+
+    public ProxyHandling(Proxy proxy, ServerConfig config, Connection connection) {
+        this.proxy = proxy;
+        this.config = config;
+        in = new PushbackInputStream(connection.in());
+        out = connection.out();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                int c = in.read();
+                if (c == -1) break;
+                in.unread(c);
+                handleCommand(Util.readArguments(in));
+                if (in.available() == 0) out.flush();
+            }
+        } catch (IOException e) {
+            // client disconnected
+        }
+    }
+
+    private void handleCommand(List<byte[]> args) throws IOException {
+        var command = Command.of(args.get(0));
+        proxy.requests.increment();
+        if (command == null) {
+            write("ERROR\r\n");
+            return;
+        }
+        // like a server, since the length of a data block that may follow cannot be trusted
+        if (!command.accepts(args)) {
+            write("CLIENT_ERROR bad command line format\r\n");
+            out.flush();
+            throw new IOException("Arguments unexpected: " + new String(args.get(0)));
+        }
+        switch (command) {
+            case GET:
+            case GETS:
+            case LEASE_GET:
+                retrieve(args, 1);
+                break;
+            case GAT:
+            case GATS:
+                retrieve(args, 2);
+                break;
+            case SET:
+            case ADD:
+            case REPLACE:
+            case APPEND:
+            case PREPEND:
+            case CAS:
+            case LEASE_SET:
+                store(args);
+                break;
+            case INCR:
+            case DECR:
+            case DELETE:
+            case TOUCH:
+                forward(args, null);
+                break;
+            case FLUSH_ALL:
+            case INVALIDATE_NAMESPACE:
+                broadcast(args);
+                break;
+            case STATS:
+                var stats = new LinkedHashMap<String, Object>();
+                stats.put("pid", ProcessHandle.current().pid());
+                stats.put("time", System.currentTimeMillis() / 1000);
+                proxy.stats(stats);
+                stats.forEach((name, value) -> write("STAT " + name + " " + value + "\r\n"));
+                write("END\r\n");
+                break;
+            default:
+                write("ERROR\r\n");
+        }
+    }
+
+    /**
+     * @param firstKey index of the first key argument; the arguments before it are repeated in
+     *                 every request to a backend
+     */
+    private void retrieve(List<byte[]> args, int firstKey) throws IOException {
+        var keysByBackend = new LinkedHashMap<ProxyBackend, List<byte[]>>();
+        for (int i = firstKey; i < args.size(); i++) {
+            var backend = proxy.route(new Entry.Key(args.get(i)));
+            keysByBackend.computeIfAbsent(backend, b -> new ArrayList<>()).add(args.get(i));
+        }
+        if (keysByBackend.size() > 1) proxy.fanouts.increment();
+
+        var replies = new ArrayList<CompletableFuture<byte[]>>(keysByBackend.size());
+        keysByBackend.forEach((backend, keys) -> {
+            var request = new ArrayList<>(args.subList(0, firstKey));
+            request.addAll(keys);
+            replies.add(backend.retrieve(line(request)));
+        });
+        for (var reply : replies) {
+            try {
+                out.write(reply.join());
+            } catch (CompletionException e) {
+                // keys of an unavailable backend are reported as misses
+            }
+        }
+        write("END\r\n");
+    }
+
+    /**
+     * Forwards a storage command together with its data block, whose length is the fifth argument.
+     */
+    private void store(List<byte[]> args) throws IOException {
+        long bytes = Util.parseLongNumber(args.get(4));
+        if (bytes > config.maxItemSize) {
+            Util.skipFully(in, bytes + 2);
+            write("SERVER_ERROR object too large for cache\r\n");
+            return;
+        }
+        var data = Util.readLineExactly(in, bytes);
+        forward(args, data);
+    }
+
+    private void forward(List<byte[]> args, byte[] data) throws IOException {
+        boolean noreply = Util.equals("noreply", args.get(args.size() - 1));
+        var request = noreply ? args.subList(0, args.size() - 1) : args;
+        var bytes = line(request);
+        if (data != null) {
+            var buffer = new ByteArrayOutputStream(bytes.length + data.length + 2);
+            buffer.write(bytes);
+            buffer.write(data);
+            buffer.write('\r');
+            buffer.write('\n');
+            bytes = buffer.toByteArray();
+        }
+        var reply = proxy.route(new Entry.Key(args.get(1))).send(bytes);
+        if (noreply) return;
+        try {
+            out.write(reply.join());
+        } catch (CompletionException e) {
+            write("SERVER_ERROR backend unavailable\r\n");
+        }
+    }
+
+    /**
+     * Forwards a command without key to every backend.
+     */
+    private void broadcast(List<byte[]> args) throws IOException {
+        boolean noreply = Util.equals("noreply", args.get(args.size() - 1));
+        var request = line(noreply ? args.subList(0, args.size() - 1) : args);
+        var replies = new ArrayList<CompletableFuture<byte[]>>();
+        for (var backend : proxy.backends()) {
+            replies.add(backend.send(request));
+        }
+        byte[] result = "OK\r\n".getBytes();
+        for (var reply : replies) {
+            try {
+                var r = reply.join();
+                if (!Util.startsWith(r, "OK")) result = r;
+            } catch (CompletionException e) {
+                result = "SERVER_ERROR backend unavailable\r\n".getBytes();
+            }
+        }
+        if (!noreply) out.write(result);
+    }
+
+    private static byte[] line(List<byte[]> args) {
+        var buffer = new ByteArrayOutputStream();
+        for (int i = 0; i < args.size(); i++) {
+            if (i > 0) buffer.write(' ');
+            buffer.writeBytes(args.get(i));
+        }
+        buffer.write('\r');
+        buffer.write('\n');
+        return buffer.toByteArray();
+    }
+
+    private void write(String s) {
+        try {
+            out.write(s.getBytes());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the memory of the {@link ServerData} in use as the traffic shifts, see
+ * {@link ServerConfig#rebalanceInterval}. Each shard starts with an equal share of the memory
+ * limit; keys are spread evenly by their hash, but their sizes and lifetimes are not, so one shard
+ * may evict while another holds memory it does not need. Every interval, a background thread
+ * <ul>
+ *     <li>compacts the shards: it removes the expired and flushed entries that nobody read since,
+ *     and shrinks the indexes that are mostly empty, see {@link ServerData#compact()};</li>
+ *     <li>moves a step of 1/16 of the initial share from an idle shard to the shard that evicted
+ *     the most, see {@link ServerData#rebalance(long, long)}. A shard is idle if it has the step
+ *     unused, or if the entries it evicted were idle far longer than those of the receiver, so
+ *     the memory serves hotter entries there. No shard keeps less than a quarter of its share.</li>
+ * </ul>
+ */
+final class Rebalancer implements AutoCloseable {
+    private final ServerData data;
+    private final long step;
+    private final long minBytes;
+    private final ScheduledExecutorService thread;
+
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder compacted = new LongAdder();
+
+    /**
+     * @param interval seconds between the rounds
+     */
+    Rebalancer(ServerData data, int interval) {
+        this.data = data;
+        long share = data.config().maxMemory / data.shardCount();
+        step = Math.max(1, share / 16);
+        minBytes = share / 4;
+        thread = Executors.newSingleThreadScheduledExecutor(task -> {
+            var thread = new Thread(task, "rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        thread.scheduleWithFixedDelay(this::run, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Runs one round.
+     */
+    void run() {
+        compacted.add(data.compact());
+        if (data.rebalance(step, minBytes)) moves.increment();
+    }
+
+    void stats(Map<String, Object> stats) {
+        stats.put("rebalance_moves", moves.sum());
+        stats.put("rebalanced_bytes", moves.sum() * step);
+        stats.put("compacted_items", compacted.sum());
+    }
+
+    @Override
+    public void close() {
+        thread.shutdownNow();
+    }
+}
@@ -0,0 +1,120 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Map;
+
+import static edu.kit.kastel.formal.bloatcache.Util.parseInt;
+
+/**
+ * Replica side of the replication: connects to the replication port of the primary given by
+ * {@link ServerConfig#replicaOf} and applies the snapshot and the mutation stream sent by the
+ * {@link ReplicationSource}. If the connection breaks, it reconnects after a second and
+ * resynchronizes with a new snapshot.
+ */
+public class ReplicationSink implements Runnable, AutoCloseable {
+    private final ServerData data;
+    private final String host;
+    private final int port;
+
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    private volatile boolean connected;
+    private volatile long lagMillis;
+    private volatile long lastSync;
+    private volatile long applied;
+    private volatile long snapshots;
+
+    public ReplicationSink(ServerData data) {
+        this.data = data;
+        var address = data.config().replicaOf;
+        int colon = address.lastIndexOf(':');
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+        data.addStats(this::stats);
+        var thread = new Thread(this, "replication-sink");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try (var socket = new Socket(host, port)) {
+                this.socket = socket;
+                connected = true;
+                apply(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            } catch (IOException | RuntimeException e) {
+                if (closed) return;
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void apply(InputStream in) throws IOException {
+        var config = data.config();
+        while (true) {
+            var args = Util.readArguments(in);
+            var command = new String(args.get(0));
+            switch (command) {
+                case "SET": {
+                    var entry = Entry.read(in, new Entry.Key(args.get(1)), parseInt(args.get(2)), parseInt(args.get(3)),
+                            parseInt(args.get(5)), config.itemChunkSize);
+                    entry.setCas(Util.parseLongNumber(args.get(4)));
+                    data.apply(entry);
+                    applied++;
+                    break;
+                }
+                case "DELETE":
+                    data.delete(new Entry.Key(args.get(1)));
+                    applied++;
+                    break;
+                case "FLUSH":
+                    data.flushUpTo(Util.parseLongNumber(args.get(1)));
+                    break;
+                case "INVALIDATE":
+                    // without a namespace separator, the replica cannot tell the entries of the namespace
+                    if (data.hasNamespaces()) data.invalidateNamespaceUpTo(args.get(1), Util.parseLongNumber(args.get(2)));
+                    break;
+                case "SYNC":
+                    lastSync = System.currentTimeMillis();
+                    lagMillis = Math.max(0, lastSync - Util.parseLongNumber(args.get(1)));
+                    break;
+                case "SNAPSHOT":
+                    data.clear();
+                    snapshots++;
+                    break;
+                case "":
+                    throw new IOException("Primary closed the connection");
+                default:
+                    throw new IOException("Unexpected replication command " + command);
+            }
+        }
+    }
+
+    void stats(Map<String, Object> stats) {
+        stats.put("replication_role", "replica");
+        stats.put("replication_primary", host + ":" + port);
+        stats.put("replication_connected", connected ? 1 : 0);
+        stats.put("replication_lag_ms", lagMillis);
+        stats.put("replication_last_sync_ms", lastSync == 0 ? -1 : System.currentTimeMillis() - lastSync);
+        stats.put("replication_applied", applied);
+        stats.put("replication_snapshots", snapshots);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        var socket = this.socket;
+        if (socket != null) socket.close();
+    }
+}
@@ -0,0 +1,246 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Primary side of the replication. Replicas connect to the replication port and receive a full
+ * snapshot of the stored entries, followed by the stream of all mutations:
+ * <pre>
+ * SNAPSHOT\r\n                                          replace all entries by the following ones
+ * SET &lt;key> &lt;flags> &lt;exptime> &lt;cas> &lt;bytes>\r\n&lt;data>\r\n   store the entry
+ * DELETE &lt;key>\r\n                                      delete the entry
+ * FLUSH &lt;cas>\r\n                                       invalidate the entries up to the cas value
+ * INVALIDATE &lt;namespace> &lt;cas>\r\n                       invalidate the namespace up to the cas value
+ * SYNC &lt;millis>\r\n                                      end of a batch
+ * </pre>
+ * The write path only appends the mutated entry to a bounded queue per replica. A thread per
+ * replica drains the queue in batches, encodes the stored versions of the entries and flushes
+ * once per batch. {@code SYNC} carries the primary's clock when the last mutation of the batch
+ * happened, or the current time if the replica is idle, so the replica can compute its lag.
+ * <p>
+ * A replica that falls behind by more than {@link ServerConfig#replicationBacklog} mutations is
+ * disconnected; it reconnects and starts over with a new snapshot.
+ */
+public class ReplicationSource implements ServerData.MutationListener, AutoCloseable {
+    private static final int BATCH_SIZE = 512;
+
+    private final ServerData data;
+    private final int backlog;
+    private final ServerSocket serverSocket;
+    private final List<Feed> feeds = new CopyOnWriteArrayList<>();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder acceptFailures = new LongAdder();
+
+    public ReplicationSource(ServerData data, String host, int port) throws IOException {
+        this.data = data;
+        this.backlog = data.config().replicationBacklog;
+        serverSocket = new ServerSocket(port, 8, InetAddress.getByName(host));
+        data.addListener(this);
+        data.addStats(this::stats);
+        var acceptor = new Thread(this::accept, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                var socket = serverSocket.accept();
+                var feed = new Feed(socket);
+                var thread = new Thread(feed, "replication-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) return;
+                // e.g., out of file descriptors: back off instead of spinning, the replica retries
+                acceptFailures.increment();
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void stored(Entry entry) {
+        publish(new Mutation(entry, false));
+    }
+
+    @Override
+    public void deleted(Entry entry) {
+        publish(new Mutation(entry, true));
+    }
+
+    @Override
+    public void flushed(long cas) {
+        publish(new Mutation(null, cas));
+    }
+
+    @Override
+    public void invalidated(byte[] namespace, long cas) {
+        publish(new Mutation(namespace, cas));
+    }
+
+    private void publish(Mutation mutation) {
+        for (var feed : feeds) {
+            if (!feed.queue.offer(mutation)) feed.overflowed = true;
+        }
+    }
+
+    void stats(Map<String, Object> stats) {
+        long pending = 0;
+        for (var feed : feeds) pending += feed.queue.size();
+        stats.put("replication_role", "primary");
+        stats.put("replication_replicas", feeds.size());
+        stats.put("replication_pending", pending);
+        stats.put("replication_sent", sent.sum());
+        stats.put("replication_overflows", overflows.sum());
+        stats.put("replication_accept_failures", acceptFailures.sum());
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.removeListener(this);
+        serverSocket.close();
+        for (var feed : feeds) feed.socket.close();
+    }
+
+    private static final class Mutation {
+        final Entry entry;
+        final boolean deleted;
+
+        /**
+         * The invalidated namespace, null for a flush of all entries.
+         */
+        final byte[] namespace;
+        final long flushedCas;
+        final long millis = System.currentTimeMillis();
+
+        Mutation(Entry entry, boolean deleted) {
+            this.entry = entry;
+            this.deleted = deleted;
+            this.namespace = null;
+            this.flushedCas = -1;
+        }
+
+        Mutation(byte[] namespace, long flushedCas) {
+            this.entry = null;
+            this.deleted = false;
+            this.namespace = namespace;
+            this.flushedCas = flushedCas;
+        }
+    }
+
+    /**
+     * The connection to one replica.
+     */
+    private final class Feed implements Runnable {
+        final Socket socket;
+        final BlockingQueue<Mutation> queue = new ArrayBlockingQueue<>(backlog);
+        volatile boolean overflowed;
+
+        Feed(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            // register before taking the snapshot, so no mutation is missed in between
+            feeds.add(this);
+            try (socket; var out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024)) {
+                socket.setTcpNoDelay(true);
+                out.write("SNAPSHOT\r\n".getBytes(StandardCharsets.US_ASCII));
+                writeFlush(out, data.flushedCas());
+                var failure = new IOException[1];
+                data.forEach(entry -> {
+                    try {
+                        writeSet(out, entry);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+                if (failure[0] != null) throw failure[0];
+                writeSync(out, System.currentTimeMillis());
+
+                var batch = new ArrayList<Mutation>(BATCH_SIZE);
+                while (!overflowed) {
+                    var first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        writeSync(out, System.currentTimeMillis());
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    for (var mutation : batch) {
+                        if (mutation.namespace != null) writeInvalidate(out, mutation.namespace, mutation.flushedCas);
+                        else if (mutation.entry == null) writeFlush(out, mutation.flushedCas);
+                        else if (mutation.deleted) writeDelete(out, mutation.entry);
+                        else writeSet(out, mutation.entry);
+                    }
+                    writeSync(out, batch.get(batch.size() - 1).millis);
+                    sent.add(batch.size());
+                    batch.clear();
+                }
+                overflows.increment();
+            } catch (IOException | InterruptedException e) {
+                // the replica disconnected, it reconnects on its own
+            } finally {
+                feeds.remove(this);
+            }
+        }
+
+        /**
+         * The entry is an immutable version, so it is encoded without a lock.
+         */
+        private void writeSet(OutputStream out, Entry entry) throws IOException {
+            out.write("SET ".getBytes(StandardCharsets.US_ASCII));
+            entry.writeKey(out);
+            var header = String.format(" %d %d %d %d\r\n",
+                    entry.flags(), entry.expirationDate(), entry.cas(), entry.valueLength());
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            entry.writeValue(out);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        private void writeDelete(OutputStream out, Entry entry) throws IOException {
+            out.write("DELETE ".getBytes(StandardCharsets.US_ASCII));
+            entry.writeKey(out);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        private void writeFlush(OutputStream out, long cas) throws IOException {
+            out.write(("FLUSH " + cas + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private void writeInvalidate(OutputStream out, byte[] namespace, long cas) throws IOException {
+            out.write("INVALIDATE ".getBytes(StandardCharsets.US_ASCII));
+            out.write(namespace);
+            out.write((" " + cas + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private void writeSync(OutputStream out, long millis) throws IOException {
+            out.write(("SYNC " + millis + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Approximated LFU in the style of Redis: every entry carries an 8-bit logarithmic access counter,
+ * and the victim is the least frequently used one among a few randomly sampled entries. New
+ * entries start with a small count so they survive their first eviction rounds. All counters are
+ * halved after ten accesses per entry, so formerly popular entries eventually age out.
+ */
+public class SampledLfuPolicy implements EvictionPolicy {
+    private static final int INITIAL_COUNT = 5;
+    private static final int LOG_FACTOR = 10;
+
+    private final int samples;
+    private Entry[] entries = new Entry[64];
+    private int size;
+    private long accessesSinceAging;
+
+    private long sampled;
+    private long agings;
+
+    /**
+     * @param samples number of entries compared to find a victim
+     */
+    public SampledLfuPolicy(int samples) {
+        this.samples = samples;
+    }
+
+    @Override
+    public void onInsert(Entry entry) {
+        if (size == entries.length) entries = Arrays.copyOf(entries, size * 2);
+        entry.slot = size;
+        entry.counter = INITIAL_COUNT;
+        entries[size++] = entry;
+    }
+
+    @Override
+    public void onAccess(Entry entry) {
+        int count = entry.counter & 0xFF;
+        if (count < 255) {
+            int base = Math.max(0, count - INITIAL_COUNT);
+            if (ThreadLocalRandom.current().nextInt(base * LOG_FACTOR + 1) == 0) {
+                entry.counter = (byte) (count + 1);
+            }
+        }
+        if (++accessesSinceAging > 10L * size) age();
+    }
+
+    private void age() {
+        for (int i = 0; i < size; i++) {
+            entries[i].counter = (byte) ((entries[i].counter & 0xFF) >>> 1);
+        }
+        accessesSinceAging = 0;
+        agings++;
+    }
+
+    @Override
+    public void onReplace(Entry old, Entry replacement) {
+        replacement.slot = old.slot;
+        replacement.counter = old.counter;
+        entries[old.slot] = replacement;
+        onAccess(replacement);
+    }
+
+    @Override
+    public void onRemove(Entry entry) {
+        int slot = entry.slot;
+        if (slot >= size || entries[slot] != entry) return;
+        var last = entries[--size];
+        entries[slot] = last;
+        last.slot = slot;
+        entries[size] = null;
+    }
+
+    @Override
+    public Entry victim() {
+        if (size == 0) return null;
+        var random = ThreadLocalRandom.current();
+        Entry victim = null;
+        for (int i = 0; i < Math.min(samples, size); i++) {
+            var candidate = entries[random.nextInt(size)];
+            if (victim == null || (candidate.counter & 0xFF) < (victim.counter & 0xFF)) {
+                victim = candidate;
+            }
+        }
+        sampled++;
+        return victim;
+    }
+
+    @Override
+    public void stats(Map<String, Long> stats) {
+        stats.merge("lfu_samples", sampled * samples, Long::sum);
+        stats.merge("lfu_agings", agings, Long::sum);
+    }
+}
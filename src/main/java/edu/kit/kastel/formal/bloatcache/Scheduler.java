@@ -0,0 +1,143 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares the server fairly between the connections of a {@link CommandHandling}, see
+ * {@link ServerConfig#schedulerSlots}. Each connection has a thread of its own, so without it a
+ * client pipelining a million sets keeps a core busy for as long as it sends, and interactive
+ * clients compete with it for the CPU.
+ * <ul>
+ *     <li>At most {@code slots} connections execute commands at the same time. A connection takes
+ *     a slot for a turn of at most {@code quantum} commands and then queues up again behind the
+ *     connections that are waiting; the queue is FIFO, so ready connections take turns round-robin.
+ *     A connection only asks for a slot once it has read a request completely, data block
+ *     included, and its turn ends whenever it has to read more from the socket or has answered
+ *     all commands received so far, so a connection waiting for its client or writing its
+ *     replies holds no slot.</li>
+ *     <li>Each connection may execute at most {@code rateLimit} commands per second, with bursts
+ *     of up to a second's worth of them. A connection over its limit gives up its slot and sleeps
+ *     until it may continue.</li>
+ * </ul>
+ * A short get thus waits for at most one turn of each connection ahead of it, instead of the
+ * whole pipeline of a bulk loader.
+ */
+final class Scheduler {
+    /**
+     * The slots, null if their number is not limited.
+     */
+    private final Semaphore slots;
+    private final int quantum;
+
+    /**
+     * Commands per second and connection, 0 if not limited.
+     */
+    private final int rateLimit;
+
+    private final LongAdder turns = new LongAdder();
+    private final LongAdder preempted = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    /**
+     * @param slots     connections executing commands at the same time, 0 for no limit
+     * @param quantum   commands per turn
+     * @param rateLimit commands per second and connection, 0 for no limit
+     */
+    Scheduler(int slots, int quantum, int rateLimit) {
+        if (quantum <= 0) throw new IllegalArgumentException("quantum must be positive");
+        this.slots = slots > 0 ? new Semaphore(slots, true) : null;
+        this.quantum = quantum;
+        this.rateLimit = Math.max(0, rateLimit);
+    }
+
+    /**
+     * @return the turns of a new connection
+     */
+    Turns connect() {
+        return new Turns();
+    }
+
+    /**
+     * The turns of one connection, used by its thread only.
+     */
+    final class Turns {
+        private boolean holding;
+        private int commands;
+
+        /**
+         * Commands the connection may execute before it is throttled, and when they were last
+         * replenished.
+         */
+        private double tokens = rateLimit;
+        private long refilled = System.nanoTime();
+
+        /**
+         * Waits until the connection may execute its next command: for a token if it is rate
+         * limited, and for a slot if it holds none or its turn is over.
+         *
+         * @throws InterruptedIOException if the connection is closed while waiting
+         */
+        void next() throws InterruptedIOException {
+            try {
+                if (rateLimit > 0) throttle();
+                if (holding && commands >= quantum) {
+                    preempted.increment();
+                    end();
+                }
+                if (!holding && slots != null) {
+                    slots.acquire();
+                    holding = true;
+                    turns.increment();
+                }
+                commands++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("connection closed while waiting for its turn");
+            }
+        }
+
+        private void throttle() throws InterruptedException {
+            long now = System.nanoTime();
+            tokens = Math.min(rateLimit, tokens + (now - refilled) * rateLimit / 1e9);
+            refilled = now;
+            if (tokens < 1) {
+                throttled.increment();
+                // let the others run while sleeping
+                end();
+                long wait = (long) Math.ceil((1 - tokens) * 1e9 / rateLimit);
+                TimeUnit.NANOSECONDS.sleep(wait);
+                tokens = 1;
+                refilled = System.nanoTime();
+            }
+            tokens--;
+        }
+
+        /**
+         * Ends the turn of the connection, if it has one.
+         */
+        void end() {
+            commands = 0;
+            if (!holding) return;
+            holding = false;
+            slots.release();
+        }
+    }
+
+    /**
+     * @return the connections waiting for a slot
+     */
+    int waiting() {
+        return slots != null ? slots.getQueueLength() : 0;
+    }
+
+    void stats(Map<String, Object> stats) {
+        stats.put("scheduler_turns", turns.sum());
+        stats.put("scheduler_preempted", preempted.sum());
+        stats.put("scheduler_waiting", waiting());
+        stats.put("rate_limited", throttled.sum());
+    }
+}
@@ -0,0 +1,69 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.Map;
+
+/**
+ * Segmented LRU: new entries start in the probation segment and are promoted to the protected
+ * segment on their second access. The protected segment holds at most 80% of the entries; its
+ * least recently used entries are demoted back to probation. Victims are taken from probation
+ * first, so entries that are accessed only once cannot push out the working set.
+ */
+public class SegmentedLruPolicy implements EvictionPolicy {
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final LruList probation = new LruList(PROBATION);
+    private final LruList protect = new LruList(PROTECTED);
+
+    private long promotions;
+    private long demotions;
+
+    @Override
+    public void onInsert(Entry entry) {
+        probation.addFirst(entry);
+    }
+
+    @Override
+    public void onAccess(Entry entry) {
+        if (protect.contains(entry)) {
+            protect.moveToFront(entry);
+        } else if (probation.contains(entry)) {
+            probation.remove(entry);
+            protect.addFirst(entry);
+            promotions++;
+            int maxProtected = (probation.size() + protect.size()) * 4 / 5;
+            while (protect.size() > Math.max(1, maxProtected)) {
+                var demoted = protect.last();
+                protect.remove(demoted);
+                probation.addFirst(demoted);
+                demotions++;
+            }
+        }
+    }
+
+    @Override
+    public void onReplace(Entry old, Entry replacement) {
+        (protect.contains(old) ? protect : probation).replace(old, replacement);
+        onAccess(replacement);
+    }
+
+    @Override
+    public void onRemove(Entry entry) {
+        if (protect.contains(entry)) protect.remove(entry);
+        else if (probation.contains(entry)) probation.remove(entry);
+    }
+
+    @Override
+    public Entry victim() {
+        var victim = probation.last();
+        return victim != null ? victim : protect.last();
+    }
+
+    @Override
+    public void stats(Map<String, Long> stats) {
+        stats.merge("slru_probation_items", (long) probation.size(), Long::sum);
+        stats.merge("slru_protected_items", (long) protect.size(), Long::sum);
+        stats.merge("slru_promotions", promotions, Long::sum);
+        stats.merge("slru_demotions", demotions, Long::sum);
+    }
+}
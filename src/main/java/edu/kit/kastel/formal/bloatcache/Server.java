@@ -1,27 +1,123 @@
 package edu.kit.kastel.formal.bloatcache;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.util.concurrent.ForkJoinPool;
+import java.nio.file.Path;
 
 public class Server implements AutoCloseable{
-    private final ServerData data = new ServerData();
+    private final ServerData data;
 
-    private final ServerSocket serverSocket;
+    /**
+     * Whether the server created the data, rather than serving that of an {@link EmbeddedCache}.
+     */
+    private final boolean ownsData;
+
+    private final ConnectionManager connections;
+
+    /**
+     * Owners of the shards if they are partitioned, otherwise null.
+     */
+    private final Partitions partitions;
+
+    /**
+     * Turns of the connections if they are scheduled fairly, otherwise null.
+     */
+    private final Scheduler scheduler;
+
+    /**
+     * Compaction and rebalancing of the shards, null if disabled.
+     */
+    private final Rebalancer rebalancer;
+
+    /**
+     * Routing to the backends if this server is a proxy, otherwise null.
+     */
+    private final Proxy proxy;
+
+    /**
+     * Replication to replicas if this server is a primary, otherwise null.
+     */
+    private final ReplicationSource replicationSource;
+
+    /**
+     * Replication from the primary if this server is a replica, otherwise null.
+     */
+    private final ReplicationSink replicationSink;
 
     public Server(int port, String host) throws IOException {
-        serverSocket = new ServerSocket(port, 8, InetAddress.getByName(host));
+        this(config(port, host));
+    }
+
+    public Server(ServerConfig config) throws IOException {
+        this(new ServerData(config), true);
+    }
+
+    /**
+     * Serves the given storage, e.g., that of an {@link EmbeddedCache}, with its configuration.
+     * The storage stays with the caller, who runs its {@link Rebalancer} and closes its trace.
+     */
+    public Server(ServerData data) throws IOException {
+        this(data, false);
+    }
+
+    private Server(ServerData data, boolean ownsData) throws IOException {
+        var config = data.config();
+        this.data = data;
+        this.ownsData = ownsData;
+        if (config.load != null) load(Path.of(config.load), config.loadThreads);
+        replicationSource = config.replicationPort > 0
+                ? new ReplicationSource(data, config.host, config.replicationPort)
+                : null;
+        replicationSink = config.replicaOf != null ? new ReplicationSink(data) : null;
+        proxy = config.backends != null ? new Proxy(config) : null;
+        partitions = config.partitionThreads > 0 && proxy == null
+                ? new Partitions(data, config.partitionThreads)
+                : null;
+        rebalancer = ownsData && config.rebalanceInterval > 0 && proxy == null
+                ? new Rebalancer(data, config.rebalanceInterval)
+                : null;
+        scheduler = config.schedulerSlots > 0 || config.connectionRateLimit > 0
+                ? new Scheduler(config.schedulerSlots, config.schedulerQuantum, config.connectionRateLimit)
+                : null;
+        connections = new ConnectionManager(config, connection -> proxy != null
+                ? new ProxyHandling(proxy, config, connection)
+                : new CommandHandling(data, connection, partitions, scheduler));
+        data.addStats(connections::stats);
+        if (scheduler != null) data.addStats(scheduler::stats);
+        if (rebalancer != null) data.addStats(rebalancer::stats);
+    }
+
+    /**
+     * Pre-warms the storage from a dump before any client is served.
+     */
+    private void load(Path dump, int threads) throws IOException {
+        long start = System.currentTimeMillis();
+        long items = new BulkLoader(data, threads).load(dump);
+        System.out.format("Loaded %d items from %s in %d ms%n", items, dump, System.currentTimeMillis() - start);
+    }
+
+    private static ServerConfig config(int port, String host) {
+        var config = new ServerConfig();
+        config.port = port;
+        config.host = host;
+        return config;
     }
 
+    /**
+     * Accepts and serves connections until the server is closed.
+     */
     public void listen() throws IOException {
-        System.out.format("Listen to %s%n", serverSocket.getLocalSocketAddress());
-        var clientSocket = serverSocket.accept();
-        ForkJoinPool.commonPool().execute(new CommandHandling(data, clientSocket));
+        System.out.format("Listen to %s%n", connections.localAddresses());
+        connections.acceptLoop();
     }
 
     @Override
-    public void close() throws Exception {
-        serverSocket.close();
+    public void close() throws IOException {
+        connections.close();
+        if (rebalancer != null) rebalancer.close();
+        if (replicationSource != null) replicationSource.close();
+        if (replicationSink != null) replicationSink.close();
+        if (proxy != null) proxy.close();
+        if (partitions != null) partitions.close();
+        if (ownsData && data.trace() != null) data.trace().close();
     }
 }
\ No newline at end of file
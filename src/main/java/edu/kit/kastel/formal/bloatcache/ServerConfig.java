@@ -0,0 +1,360 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.zip.Deflater;
+
+/**
+ * Startup options of a {@link Server}. The fields carry the defaults; {@link #fromArgs(String[])}
+ * overrides them from command line options of the form {@code --name=value}.
+ */
+public class ServerConfig {
+    /**
+     * TCP port to listen on. 0 disables TCP, e.g., if only {@link #unixSocket} is used.
+     */
+    public int port = 8081;
+
+    public String host = "localhost";
+
+    /**
+     * Path of a Unix domain socket to listen on in addition to the TCP port, null if none.
+     * A file left at the path by a previous server is replaced.
+     */
+    public String unixSocket = null;
+
+    /**
+     * Length of the queue of incoming connections that are not accepted yet.
+     */
+    public int backlog = 1024;
+
+    /**
+     * Open client connections; further ones are answered with an error and closed.
+     */
+    public int maxConnections = 1024;
+
+    /**
+     * Client connections that send no request for this many seconds are closed. 0 disables it.
+     */
+    public int idleTimeout = 0;
+
+    /**
+     * Client connections that do not read a reply for this many seconds are closed. 0 disables it.
+     */
+    public int writeTimeout = 30;
+
+    /**
+     * Disables Nagle's algorithm on client connections, so replies are sent without delay.
+     */
+    public boolean tcpNoDelay = true;
+
+    /**
+     * Sizes of the socket send and receive buffers in bytes, 0 keeps the defaults of the OS.
+     */
+    public int socketSendBuffer = 0;
+
+    public int socketReceiveBuffer = 0;
+
+    /**
+     * Connections executing commands at the same time; the others wait for their turn, see
+     * {@link Scheduler}. 0 disables fair scheduling.
+     */
+    public int schedulerSlots = 0;
+
+    /**
+     * Commands a connection executes per turn before it lets the waiting connections run.
+     */
+    public int schedulerQuantum = 64;
+
+    /**
+     * Commands per second each connection may execute, with bursts of up to a second's worth of
+     * them. 0 disables the limit.
+     */
+    public int connectionRateLimit = 0;
+
+    /**
+     * Replies buffered per connection before they are written to the socket, see {@link Connection}.
+     */
+    public int outputBufferSize = 64 * 1024;
+
+    /**
+     * Largest accepted value. Larger values are rejected before their data is read.
+     */
+    public int maxItemSize = 1024 * 1024;
+
+    /**
+     * Values larger than this are stored in chunks of this size instead of one array.
+     */
+    public int itemChunkSize = 64 * 1024;
+
+    /**
+     * Values of at least this many bytes are compressed on store. 0 disables compression.
+     */
+    public int compressionThreshold = 0;
+
+    /**
+     * Deflate level used for compressed values, see {@link Deflater}.
+     */
+    public int compressionLevel = Deflater.BEST_SPEED;
+
+    /**
+     * On average, one in this many accesses is recorded by the hot key tracker. 0 disables the tracker.
+     */
+    public int hotKeysSampleRate = 8;
+
+    /**
+     * Number of keys kept in the list of hot keys.
+     */
+    public int hotKeysCapacity = 32;
+
+    /**
+     * The counts of the hot key tracker are halved after this many seconds.
+     */
+    public int hotKeysHalfLife = 60;
+
+    /**
+     * Commands taking at least this many microseconds are logged in the {@link SlowLog}.
+     */
+    public long slowLogThreshold = 10_000;
+
+    /**
+     * Number of commands kept in the {@link SlowLog}. 0 disables the log.
+     */
+    public int slowLogCapacity = 128;
+
+    /**
+     * Memory limit for the stored items in bytes. Each shard may use an equal share of it.
+     */
+    public long maxMemory = 64L * 1024 * 1024;
+
+    /**
+     * Number of shards the items are partitioned into, rounded down to a power of two.
+     */
+    public int shards = 16;
+
+    /**
+     * Selects the entries to evict when a shard exceeds its memory: {@code slru} (segmented LRU),
+     * {@code lfu} (sampled LFU) or {@code tinylfu} (W-TinyLFU), see {@link EvictionPolicy}.
+     */
+    public String evictionPolicy = "slru";
+
+    /**
+     * Seconds between the rounds of the {@link Rebalancer}, which compacts the shards and moves
+     * memory from idle shards to evicting ones. 0 disables it.
+     */
+    public int rebalanceInterval = 10;
+
+    /**
+     * Threads that each exclusively own a share of the {@link #shards}, see {@link Partitions}.
+     * Connections pass the commands on keys to the owner instead of accessing the shards
+     * themselves. 0 disables it; at most as many as there are shards are used.
+     */
+    public int partitionThreads = 0;
+
+    /**
+     * Character separating the namespace of a key from the rest, e.g., ":" for "tenant:key".
+     * All entries of a namespace can be invalidated at once with "invalidate_namespace", see
+     * {@link Namespaces}. Replicas need the same separator as their primary. Null disables it.
+     */
+    public String namespaceSeparator = null;
+
+    /**
+     * Milliseconds a lease on a missing key keeps other clients from loading its value, see
+     * {@link Leases}. 0 disables the commands "lease_get" and "lease_set".
+     */
+    public long leaseTime = 10_000;
+
+    /**
+     * Port on which a primary accepts replicas, see {@link ReplicationSource}. 0 disables it.
+     */
+    public int replicationPort = 0;
+
+    /**
+     * Address {@code host:port} of the replication port of the primary. If set, the server runs
+     * as a read-only replica of it, see {@link ReplicationSink}.
+     */
+    public String replicaOf = null;
+
+    /**
+     * Mutations queued for a replica before it is disconnected and has to resynchronize.
+     */
+    public int replicationBacklog = 100_000;
+
+    /**
+     * Comma-separated {@code host:port} addresses of backend nodes. If set, the server runs as a
+     * {@link Proxy} that routes every key to one of them instead of storing it.
+     */
+    public String backends = null;
+
+    /**
+     * Pipelined connections the proxy keeps to each backend.
+     */
+    public int proxyConnections = 2;
+
+    /**
+     * Milliseconds the proxy waits for a backend to accept a connection or to answer a request.
+     * A backend that cannot be reached is considered down for as long, so its requests fail at
+     * once instead of connecting again; a connection whose request timed out is closed.
+     */
+    public int proxyTimeout = 1000;
+
+    /**
+     * Dump file whose items are loaded before the server accepts connections, null if none.
+     * See {@link BulkLoader} for the format.
+     */
+    public String load = null;
+
+    /**
+     * Threads storing the items of the {@link #load} dump in parallel.
+     */
+    public int loadThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * File the accesses of the clients are captured to, null if none. See {@link TraceRecorder}
+     * for the format and {@link TraceSimulator} for replaying it.
+     */
+    public String trace = null;
+
+    /**
+     * The accesses of one in this many keys are captured to the {@link #trace}.
+     */
+    public int traceSampleRate = 100;
+
+    public static ServerConfig fromArgs(String[] args) {
+        var config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            var name = arg.substring(2, arg.indexOf('='));
+            var value = arg.substring(arg.indexOf('=') + 1);
+            config.set(name, value);
+        }
+        return config;
+    }
+
+    public void set(String name, String value) {
+        switch (name) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "host":
+                host = value;
+                break;
+            case "unix-socket":
+                unixSocket = value;
+                break;
+            case "backlog":
+                backlog = Integer.parseInt(value);
+                break;
+            case "max-connections":
+                maxConnections = Integer.parseInt(value);
+                break;
+            case "idle-timeout":
+                idleTimeout = Integer.parseInt(value);
+                break;
+            case "write-timeout":
+                writeTimeout = Integer.parseInt(value);
+                break;
+            case "tcp-nodelay":
+                tcpNoDelay = Boolean.parseBoolean(value);
+                break;
+            case "socket-send-buffer":
+                socketSendBuffer = Integer.parseInt(value);
+                break;
+            case "socket-receive-buffer":
+                socketReceiveBuffer = Integer.parseInt(value);
+                break;
+            case "scheduler-slots":
+                schedulerSlots = Integer.parseInt(value);
+                break;
+            case "scheduler-quantum":
+                schedulerQuantum = Integer.parseInt(value);
+                break;
+            case "connection-rate-limit":
+                connectionRateLimit = Integer.parseInt(value);
+                break;
+            case "output-buffer-size":
+                outputBufferSize = Integer.parseInt(value);
+                break;
+            case "max-item-size":
+                maxItemSize = Integer.parseInt(value);
+                break;
+            case "item-chunk-size":
+                itemChunkSize = Integer.parseInt(value);
+                break;
+            case "compression-threshold":
+                compressionThreshold = Integer.parseInt(value);
+                break;
+            case "compression-level":
+                compressionLevel = Integer.parseInt(value);
+                break;
+            case "hot-keys-sample-rate":
+                hotKeysSampleRate = Integer.parseInt(value);
+                break;
+            case "hot-keys-capacity":
+                hotKeysCapacity = Integer.parseInt(value);
+                break;
+            case "hot-keys-half-life":
+                hotKeysHalfLife = Integer.parseInt(value);
+                break;
+            case "slow-log-threshold":
+                slowLogThreshold = Long.parseLong(value);
+                break;
+            case "slow-log-capacity":
+                slowLogCapacity = Integer.parseInt(value);
+                break;
+            case "max-memory":
+                maxMemory = Long.parseLong(value);
+                break;
+            case "shards":
+                shards = Integer.parseInt(value);
+                break;
+            case "rebalance-interval":
+                rebalanceInterval = Integer.parseInt(value);
+                break;
+            case "partition-threads":
+                partitionThreads = Integer.parseInt(value);
+                break;
+            case "namespace-separator":
+                namespaceSeparator = value;
+                break;
+            case "eviction-policy":
+                EvictionPolicy.create(value);
+                evictionPolicy = value;
+                break;
+            case "lease-time":
+                leaseTime = Long.parseLong(value);
+                break;
+            case "replication-port":
+                replicationPort = Integer.parseInt(value);
+                break;
+            case "replica-of":
+                replicaOf = value;
+                break;
+            case "replication-backlog":
+                replicationBacklog = Integer.parseInt(value);
+                break;
+            case "backends":
+                backends = value;
+                break;
+            case "proxy-connections":
+                proxyConnections = Integer.parseInt(value);
+                break;
+            case "proxy-timeout":
+                proxyTimeout = Integer.parseInt(value);
+                break;
+            case "load":
+                load = value;
+                break;
+            case "load-threads":
+                loadThreads = Integer.parseInt(value);
+                break;
+            case "trace":
+                trace = value;
+                break;
+            case "trace-sample-rate":
+                traceSampleRate = Integer.parseInt(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+}
@@ -1,58 +1,842 @@
 package edu.kit.kastel.formal.bloatcache;
 
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class ServerData {
-    public final Set<Entry.Key> keys = new HashSet<>();
-    public final List<Entry> hot = new LinkedList<>();
-    public final List<Entry> warm = new LinkedList<>();
-    public final List<Entry> cold = new LinkedList<>();
+    /**
+     * Entries removed by {@link #compact()} per acquisition of the lock of a shard.
+     */
+    static final int COMPACT_BATCH = 256;
+
+    private final ServerConfig config;
+
+    /**
+     * The stored entries, partitioned by the hash of their keys. The length is a power of two.
+     */
+    private final Shard[] shards;
+
+    /**
+     * Compression of large values, null if disabled.
+     */
+    private final Compression compression;
+
+    /**
+     * Tracker of frequently accessed keys, null if disabled.
+     */
+    private final HotKeys hotKeys;
+
+    /**
+     * Log of slow commands, null if disabled.
+     */
+    private final SlowLog slowLog;
+
+    /**
+     * Epochs of the invalidated namespaces, null if disabled.
+     */
+    private final Namespaces namespaces;
+
+    /**
+     * Capture of the accesses, null if disabled.
+     */
+    private final TraceRecorder trace;
+
+    /**
+     * Leases on missing keys, null if disabled.
+     */
+    private final Leases leases;
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder compressedItems = new LongAdder();
+    private final LongAdder compressedRawBytes = new LongAdder();
+    private final LongAdder compressedStoredBytes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder reclaimed = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder namespaceInvalidations = new LongAdder();
+
+    /**
+     * Source of the cas values; every store takes the next one, so they are unique and increase
+     * in the order of the stores.
+     */
+    private final AtomicLong casSequence = new AtomicLong();
+
+    /**
+     * The flush epoch: entries with a cas value up to this one were stored before the last
+     * {@code flush_all} and are invalid. They are removed lazily when they are read or evicted.
+     */
+    private volatile long flushedCas;
+
+    /**
+     * Time in milliseconds when a delayed flush takes effect, or {@link Long#MAX_VALUE}.
+     */
+    private volatile long pendingFlush = Long.MAX_VALUE;
+
+    /**
+     * Observers of all mutations, e.g., the {@link ReplicationSource}.
+     */
+    private final List<MutationListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Additional statistics reported by {@link #stats(Map)}, e.g., of the replication.
+     */
+    private final List<Consumer<Map<String, Object>>> statsSources = new CopyOnWriteArrayList<>();
+
+    public ServerData() {
+        this(new ServerConfig());
+    }
+
+    public ServerData(ServerConfig config) {
+        this.config = config;
+        compression = config.compressionThreshold > 0
+                ? new Compression(config.compressionThreshold, config.compressionLevel)
+                : null;
+        hotKeys = config.hotKeysSampleRate > 0
+                ? new HotKeys(config.hotKeysSampleRate, config.hotKeysCapacity, config.hotKeysHalfLife)
+                : null;
+        slowLog = config.slowLogCapacity > 0
+                ? new SlowLog(config.slowLogThreshold, config.slowLogCapacity)
+                : null;
+        namespaces = config.namespaceSeparator != null ? new Namespaces(config.namespaceSeparator) : null;
+        try {
+            trace = config.trace != null ? new TraceRecorder(Path.of(config.trace), config.traceSampleRate) : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        leases = config.leaseTime > 0 ? new Leases(config.leaseTime) : null;
+        if (leases != null) listeners.add(leases);
+        int count = Integer.highestOneBit(Math.max(1, config.shards));
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i, EvictionPolicy.create(config.evictionPolicy), config.maxMemory / count);
+        }
+    }
+
+    int shardCount() {
+        return shards.length;
+    }
+
+    private Shard shard(long hash) {
+        return shards[shardIndex(hash)];
+    }
+
+    int shardIndex(long hash) {
+        return (int) (hash >>> 32) & (shards.length - 1);
+    }
+
+    /**
+     * Takes the lock of the shard. Only if another thread holds it, the wait is timed and
+     * reported as a {@link Events.LockWait}.
+     */
+    private static void lock(Shard shard) {
+        if (shard.lock.tryLock()) return;
+        var event = new Events.LockWait();
+        event.begin();
+        shard.lock.lock();
+        event.end();
+        if (event.shouldCommit()) {
+            event.shard = shard.id;
+            event.queueLength = shard.lock.getQueueLength();
+            event.commit();
+        }
+    }
+
+    public ServerConfig config() {
+        return config;
+    }
+
+    /**
+     * A replica only applies the mutations streamed from its primary and rejects writes of clients.
+     */
+    public boolean isReadOnly() {
+        return config.replicaOf != null;
+    }
+
+    /**
+     * Observes the mutations of the stored entries. Evictions are not reported, since every node
+     * evicts on its own. The methods are called under the lock of the shard, so they see the
+     * mutations of each key in order, and must not block.
+     */
+    public interface MutationListener {
+        /**
+         * The entry was stored or its value, flags or expiration time changed.
+         */
+        void stored(Entry entry);
+
+        /**
+         * The entry was deleted.
+         */
+        void deleted(Entry entry);
+
+        /**
+         * All entries with a cas value up to the given one were invalidated by a flush.
+         */
+        void flushed(long cas);
+
+        /**
+         * All entries of the namespace with a cas value up to the given one were invalidated.
+         */
+        void invalidated(byte[] namespace, long cas);
+    }
+
+    public void addListener(MutationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(MutationListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addStats(Consumer<Map<String, Object>> source) {
+        statsSources.add(source);
+    }
+
+    /**
+     * Passes every valid entry to the action, walking the shards one by one without taking their
+     * locks, so a slow action, e.g., streaming the entries to a client, never blocks other operations.
+     * The walk is weakly consistent, see {@link ItemTable#forEach(Consumer)}.
+     */
+    public void forEach(Consumer<Entry> action) {
+        for (var shard : shards) {
+            long now = System.currentTimeMillis();
+            shard.index.forEach(entry -> {
+                if (isValid(entry, now)) action.accept(entry);
+            });
+        }
+    }
+
+    /**
+     * Deletes all entries.
+     */
+    public void clear() {
+        var entries = new ArrayList<Entry>();
+        for (var shard : shards) {
+            lock(shard);
+            try {
+                shard.index.forEach(entries::add);
+                for (var entry : entries) {
+                    shard.index.remove(entry);
+                    removed(shard, entry);
+                    for (var l : listeners) l.deleted(entry);
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+            entries.clear();
+        }
+    }
 
     public boolean delete(Entry.Key key) {
-        if (keys.contains(key)) {
-            synchronized (hot) {
-                boolean b = hot.removeIf(it -> it.key.equals(key));
-                if (b) return true;
+        var shard = shard(key.hash);
+        lock(shard);
+        try {
+            // also if the key is missing: the value a lease holder is loading may be outdated now
+            if (leases != null) leases.end(key);
+            drainReads(shard);
+            var entry = shard.index.remove(key);
+            if (entry == null) return false;
+            removed(shard, entry);
+            for (var l : listeners) l.deleted(entry);
+            return true;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Looks up the current version of the entry without taking a lock. The access is passed to the
+     * {@link EvictionPolicy} later, see {@link Shard#recordRead(Entry)}; an expired or flushed entry
+     * is removed then.
+     *
+     * @return the entry of the key, or null if there is none or it is expired or flushed
+     */
+    public Entry get(Entry.Key key) {
+        if (hotKeys != null && hotKeys.sample()) hotKeys.record(key, false);
+        long now = System.currentTimeMillis();
+        if (now >= pendingFlush) applyPendingFlush();
+        var shard = shard(key.hash);
+        var entry = shard.index.get(key);
+        if (entry == null) return null;
+        boolean valid = isValid(entry, now);
+        int seconds = (int) (now / 1000);
+        // write at most once a second, so readers of a hot key rarely invalidate each other's caches
+        if (entry.lastAccess != seconds) entry.lastAccess = seconds;
+        if ((shard.recordRead(entry) || !valid) && shard.lock.tryLock()) {
+            try {
+                drainReads(shard, now);
+            } finally {
+                shard.lock.unlock();
             }
-            synchronized (warm) {
-                boolean b = warm.removeIf(it -> it.key.equals(key));
-                if (b) return true;
+        }
+        return valid ? entry : null;
+    }
+
+    private boolean isValid(Entry entry, long now) {
+        return entry.cas() > flushedCas
+                && (namespaces == null || entry.cas() > namespaces.invalidatedCas(entry))
+                && !Util.isExpired(entry.expirationDate(), now);
+    }
+
+    /**
+     * Replays the reads recorded since the last call to the eviction policy, and removes the read
+     * entries that turned out to be expired or flushed, unless they were replaced in the meantime.
+     * Must hold the lock of the shard.
+     */
+    private void drainReads(Shard shard) {
+        if (shard.hasReads()) drainReads(shard, System.currentTimeMillis());
+    }
+
+    private void drainReads(Shard shard, long now) {
+        shard.drainReads(entry -> {
+            if (isValid(entry, now)) {
+                shard.policy.onAccess(entry);
+            } else if (shard.index.remove(entry)) {
+                removed(shard, entry);
+                reclaimed.increment();
+                var event = new Events.Expiration();
+                if (event.shouldCommit()) {
+                    event.shard = shard.id;
+                    event.keySize = entry.keyLength();
+                    event.size = entry.size();
+                    event.flushed = entry.cas() <= flushedCas;
+                    event.commit();
+                }
             }
-            synchronized (cold) {
-                boolean b = cold.removeIf(it -> it.key.equals(key));
-                if (b) return true;
+        });
+    }
+
+    /**
+     * Stores the entry with a new cas value, replacing the entry of the same key, and evicts entries
+     * as chosen by the {@link EvictionPolicy} while the shard exceeds its share of the memory limit.
+     */
+    public boolean insert(Entry entry) {
+        if (pendingFlush != Long.MAX_VALUE && System.currentTimeMillis() >= pendingFlush) applyPendingFlush();
+        store(entry, true);
+        return true;
+    }
+
+    /**
+     * Stores the entry like {@link #insert(Entry)}, but only if there is no valid entry of its key.
+     * The check runs under the lock of the shard, so of concurrent adds of a key exactly one wins.
+     *
+     * @return true if the entry was stored
+     */
+    public boolean add(Entry entry) {
+        if (pendingFlush != Long.MAX_VALUE && System.currentTimeMillis() >= pendingFlush) applyPendingFlush();
+        prepare(entry);
+        var shard = shard(entry.hash);
+        lock(shard);
+        try {
+            drainReads(shard);
+            var current = shard.index.get(entry.key());
+            if (current != null && isValid(current, System.currentTimeMillis())) return false;
+            storeLocked(shard, entry, true);
+            evict(shard);
+            return true;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Stores an entry received from the primary, keeping its cas value.
+     */
+    void apply(Entry entry) {
+        casSequence.accumulateAndGet(entry.cas(), Math::max);
+        store(entry, false);
+    }
+
+    /**
+     * Stores the entries like {@link #insert(Entry)} one after the other, but takes the lock of
+     * each shard only once, e.g., for a pipeline of "set" commands. Entries of the same key are in
+     * the same shard and stored in the order of the list, so the last one wins.
+     */
+    public void insertAll(List<Entry> entries) {
+        if (pendingFlush != Long.MAX_VALUE && System.currentTimeMillis() >= pendingFlush) applyPendingFlush();
+        // group the entries by shard, keeping their order (counting sort)
+        var start = new int[shards.length + 1];
+        for (var entry : entries) {
+            prepare(entry);
+            start[shardIndex(entry.hash) + 1]++;
+        }
+        for (int i = 0; i < shards.length; i++) start[i + 1] += start[i];
+        var next = Arrays.copyOf(start, shards.length);
+        var grouped = new Entry[entries.size()];
+        for (var entry : entries) grouped[next[shardIndex(entry.hash)]++] = entry;
+
+        for (int i = 0; i < shards.length; i++) {
+            if (start[i] == start[i + 1]) continue;
+            var shard = shards[i];
+            lock(shard);
+            try {
+                drainReads(shard);
+                for (int j = start[i]; j < start[i + 1]; j++) storeLocked(shard, grouped[j], true);
+                evict(shard);
+            } finally {
+                shard.lock.unlock();
             }
         }
-        return false;
     }
 
-    public Entry get(Entry.Key key) {
-        if (keys.contains(key)) {
-            synchronized (hot) {
-                var e = hot.stream().filter(it -> it.key.equals(key)).findFirst();
-                if (e.isPresent()) return e.get();
+    private void store(Entry entry, boolean newCas) {
+        prepare(entry);
+        var shard = shard(entry.hash);
+        lock(shard);
+        try {
+            drainReads(shard);
+            storeLocked(shard, entry, newCas);
+            evict(shard);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * The work of a store that needs no lock.
+     */
+    private void prepare(Entry entry) {
+        if (hotKeys != null && hotKeys.sample()) hotKeys.record(entry.key(), true);
+        compress(entry);
+    }
+
+    /**
+     * Must hold the lock of the shard, and evict after the last store.
+     */
+    private void storeLocked(Shard shard, Entry entry, boolean newCas) {
+        if (newCas) entry.setCas(casSequence.incrementAndGet());
+        entry.lastAccess = (int) (System.currentTimeMillis() / 1000);
+        var previous = shard.index.put(entry);
+        if (previous != null) {
+            shard.policy.onReplace(previous, entry);
+            account(shard, previous, -1);
+        } else {
+            shard.policy.onInsert(entry);
+        }
+        account(shard, entry, +1);
+        for (var l : listeners) l.stored(entry);
+    }
+
+    /**
+     * Replaces value, expiration time and flags of a stored entry by a new version with a new cas
+     * value, see {@link Entry#withValue(byte[], Integer, Integer, int)}. The update only succeeds if
+     * {@code entry} is still the current version, so read-modify-write commands like "incr" retry
+     * with the current version instead of losing a concurrent update.
+     *
+     * @return the new version, or null if the entry was replaced, deleted or evicted in the meantime
+     */
+    public Entry update(Entry entry, byte[] data, Integer exptime, Integer flags) {
+        return update(entry, entry.withValue(data, exptime, flags, config.itemChunkSize));
+    }
+
+    /**
+     * Replaces a stored entry by the given version of the same key with a new cas value, like
+     * {@link #update(Entry, byte[], Integer, Integer)}, e.g., by the entry of a "replace" or "cas"
+     * as read from the client.
+     *
+     * @return the new version, or null if the entry was replaced, deleted or evicted in the meantime
+     */
+    public Entry update(Entry entry, Entry version) {
+        compress(version);
+        var shard = shard(entry.hash);
+        lock(shard);
+        try {
+            drainReads(shard);
+            if (!shard.index.contains(entry)) return null;
+            version.setCas(casSequence.incrementAndGet());
+            replace(shard, entry, version);
+            return version;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the expiration time of a stored entry, keeping its cas value.
+     *
+     * @return the new version, or null if there is no valid entry of the key
+     */
+    public Entry touch(Entry.Key key, int exptime) {
+        var shard = shard(key.hash);
+        lock(shard);
+        try {
+            drainReads(shard);
+            var entry = shard.index.get(key);
+            if (entry == null || !isValid(entry, System.currentTimeMillis())) return null;
+            var version = entry.withExpirationDate(exptime);
+            replace(shard, entry, version);
+            return version;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Publishes a new version of a stored entry. Must hold the lock of the shard.
+     */
+    private void replace(Shard shard, Entry entry, Entry version) {
+        version.lastAccess = (int) (System.currentTimeMillis() / 1000);
+        shard.index.put(version);
+        shard.policy.onReplace(entry, version);
+        account(shard, entry, -1);
+        account(shard, version, +1);
+        for (var l : listeners) l.stored(version);
+        evict(shard);
+    }
+
+    /**
+     * Invalidates all entries stored up to now, or in {@code delay} seconds. Costs constant time:
+     * the entries are only removed when they are read or evicted.
+     */
+    public synchronized void flush(int delay) {
+        flushes.increment();
+        if (delay > 0) {
+            pendingFlush = System.currentTimeMillis() + delay * 1000L;
+        } else {
+            flushUpTo(casSequence.get());
+        }
+    }
+
+    /**
+     * Takes the flush epoch of a delayed flush at the first operation after its time, so that
+     * exactly the entries stored before are invalid.
+     */
+    private synchronized void applyPendingFlush() {
+        if (System.currentTimeMillis() >= pendingFlush) {
+            flushUpTo(casSequence.get());
+        }
+    }
+
+    /**
+     * Invalidates all entries with a cas value up to the given one, e.g., as flushed by the primary.
+     */
+    synchronized void flushUpTo(long cas) {
+        flushedCas = cas;
+        pendingFlush = Long.MAX_VALUE;
+        if (namespaces != null) namespaces.flushed(cas);
+        for (var l : listeners) l.flushed(cas);
+    }
+
+    long flushedCas() {
+        return flushedCas;
+    }
+
+    /**
+     * @return true if keys have namespaces, see {@link ServerConfig#namespaceSeparator}
+     */
+    public boolean hasNamespaces() {
+        return namespaces != null;
+    }
+
+    /**
+     * Invalidates all entries of the namespace stored up to now. Like {@link #flush(int)}, it
+     * costs constant time, see {@link Namespaces}.
+     */
+    public void invalidateNamespace(byte[] namespace) {
+        namespaceInvalidations.increment();
+        invalidateNamespaceUpTo(namespace, casSequence.get());
+    }
+
+    /**
+     * Invalidates the entries of the namespace with a cas value up to the given one, e.g., as
+     * invalidated by the primary.
+     */
+    synchronized void invalidateNamespaceUpTo(byte[] namespace, long cas) {
+        if (namespaces == null) throw new IllegalStateException("namespaces are disabled");
+        namespaces.invalidate(namespace, cas);
+        for (var l : listeners) l.invalidated(namespace, cas);
+    }
+
+    public boolean hasLeases() {
+        return leases != null;
+    }
+
+    /**
+     * Looks up the key like {@link #get(Entry.Key)}, and on a miss grants a lease on it, see
+     * {@link Leases}. The stale value offered to the other clients is the version of the entry
+     * that is expired or flushed but was not removed yet, unless its namespace was invalidated.
+     * The lease is granted under the lock of
+     * the shard, so a concurrent store either is found or ends the lease.
+     */
+    Leases.Grant leaseGet(Entry.Key key) {
+        if (leases == null) throw new IllegalStateException("leases are disabled");
+        var shard = shard(key.hash);
+        // the lookup removes an invalid version, so it is taken before
+        var stored = shard.index.get(key);
+        var entry = get(key);
+        if (entry != null) return new Leases.Grant(0, entry, false);
+        lock(shard);
+        try {
+            var current = shard.index.get(key);
+            if (current != null && isValid(current, System.currentTimeMillis())) return new Leases.Grant(0, current, false);
+            var stale = current != null ? current : stored;
+            // an invalidated namespace is not served at all, unlike an expired or flushed value
+            if (stale != null && namespaces != null && stale.cas() <= namespaces.invalidatedCas(stale)) stale = null;
+            return leases.acquire(key, stale);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the entry like {@link #insert(Entry)} if the lease on its key with the given token
+     * is still outstanding, i.e., the key was not stored or deleted since the lease was granted.
+     * The lease is checked and ended under the lock of the shard, so no store of another client
+     * can come between and be overwritten.
+     *
+     * @return true if the entry was stored
+     */
+    public boolean leaseSet(Entry entry, long token) {
+        if (leases == null) throw new IllegalStateException("leases are disabled");
+        if (pendingFlush != Long.MAX_VALUE && System.currentTimeMillis() >= pendingFlush) applyPendingFlush();
+        prepare(entry);
+        var shard = shard(entry.hash);
+        lock(shard);
+        try {
+            if (!leases.release(entry.key(), token)) return false;
+            drainReads(shard);
+            storeLocked(shard, entry, true);
+            evict(shard);
+            return true;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private void evict(Shard shard) {
+        while (shard.bytes > shard.maxBytes) {
+            var victim = shard.policy.victim();
+            if (victim == null) return;
+            shard.index.remove(victim);
+            removed(shard, victim);
+            evictions.increment();
+            long idleTime = Math.max(0, System.currentTimeMillis() / 1000 - victim.lastAccess);
+            shard.evictions++;
+            shard.evictedIdleTime += idleTime;
+            var event = new Events.Eviction();
+            if (event.shouldCommit()) {
+                event.shard = shard.id;
+                event.keySize = victim.keyLength();
+                event.size = victim.size();
+                event.idleTime = idleTime;
+                event.commit();
             }
-            synchronized (warm) {
-                var e = warm.stream().filter(it -> it.key.equals(key)).findFirst();
-                if (e.isPresent()) return e.get();
+        }
+    }
+
+    /**
+     * Removes the expired, flushed and invalidated entries that were not read since, which hold
+     * memory until they are evicted otherwise, and shrinks the indexes that are mostly empty
+     * afterwards, see {@link ItemTable#compact()}. Each shard is walked without its lock, like by
+     * {@link #forEach(Consumer)}, and the invalid entries found are removed in batches of
+     * {@link #COMPACT_BATCH}, so readers never wait for it and writers only for one batch.
+     *
+     * @return the number of removed entries
+     */
+    int compact() {
+        int removed = 0;
+        var invalid = new ArrayList<Entry>();
+        for (var shard : shards) {
+            long now = System.currentTimeMillis();
+            shard.index.forEach(entry -> {
+                if (!isValid(entry, now)) invalid.add(entry);
+            });
+            // an invalid version stays invalid, and it is only removed if it is still stored
+            for (int from = 0; from < invalid.size(); from += COMPACT_BATCH) {
+                lock(shard);
+                try {
+                    for (int i = from; i < Math.min(invalid.size(), from + COMPACT_BATCH); i++) {
+                        var entry = invalid.get(i);
+                        if (shard.index.remove(entry)) {
+                            removed(shard, entry);
+                            reclaimed.increment();
+                            removed++;
+                        }
+                    }
+                } finally {
+                    shard.lock.unlock();
+                }
             }
-            synchronized (cold) {
-                var e = cold.stream().filter(it -> it.key.equals(key)).findFirst();
-                if (e.isPresent()) return e.get();
+            invalid.clear();
+            lock(shard);
+            try {
+                shard.index.compact();
+            } finally {
+                shard.lock.unlock();
             }
         }
-        return null;
+        return removed;
     }
 
-    public boolean insert(Entry entry) {
-        if (keys.contains(entry.key)) {
-            delete(entry.key);
+    /**
+     * Moves {@code step} bytes of the memory limit to the shard that evicted the most entries
+     * since the last call, from a shard that has at least that much memory unused and evicted
+     * nothing, or else from the shard whose evicted entries were idle the longest, at least twice
+     * as long as those of the receiver. No shard drops below {@code minBytes}.
+     *
+     * @return true if memory was moved
+     */
+    boolean rebalance(long step, long minBytes) {
+        int n = shards.length;
+        var evicted = new long[n];
+        var idleTime = new long[n];
+        var unused = new long[n];
+        var limit = new long[n];
+        for (int i = 0; i < n; i++) {
+            var shard = shards[i];
+            lock(shard);
+            try {
+                evicted[i] = shard.evictions;
+                idleTime[i] = shard.evictions == 0 ? 0 : shard.evictedIdleTime / shard.evictions;
+                unused[i] = shard.maxBytes - shard.bytes;
+                limit[i] = shard.maxBytes;
+                shard.evictions = 0;
+                shard.evictedIdleTime = 0;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+
+        int starved = -1;
+        for (int i = 0; i < n; i++) {
+            if (evicted[i] > 0 && (starved < 0 || evicted[i] > evicted[starved])) starved = i;
+        }
+        if (starved < 0) return false;
+        int donor = -1;
+        for (int i = 0; i < n; i++) {
+            if (i == starved || limit[i] - step < minBytes) continue;
+            if (evicted[i] == 0 && unused[i] >= step && (donor < 0 || unused[i] > unused[donor])) donor = i;
+        }
+        if (donor < 0) {
+            for (int i = 0; i < n; i++) {
+                if (i == starved || limit[i] - step < minBytes || evicted[i] == 0) continue;
+                if (idleTime[i] >= 2 * Math.max(1, idleTime[starved])
+                        && (donor < 0 || idleTime[i] > idleTime[donor])) donor = i;
+            }
+        }
+        if (donor < 0) return false;
+
+        // shrink before growing, so the shards never exceed the memory limit together
+        var shard = shards[donor];
+        lock(shard);
+        try {
+            shard.maxBytes -= step;
+            evict(shard);
+            // the evictions for the move are no sign of demand
+            shard.evictions = 0;
+            shard.evictedIdleTime = 0;
+        } finally {
+            shard.lock.unlock();
+        }
+        shard = shards[starved];
+        lock(shard);
+        try {
+            shard.maxBytes += step;
+        } finally {
+            shard.lock.unlock();
         }
-        keys.add(entry.key);
-        warm.add(entry);
         return true;
     }
-}
\ No newline at end of file
+
+    private void removed(Shard shard, Entry entry) {
+        shard.policy.onRemove(entry);
+        account(shard, entry, -1);
+    }
+
+    private void compress(Entry entry) {
+        if (compression != null) {
+            entry.compress(compression);
+        }
+    }
+
+    private void account(Shard shard, Entry entry, int sign) {
+        shard.bytes += sign * Shard.memory(entry);
+        bytes.add(sign * entry.size());
+        if (entry.isCompressed()) {
+            compressedItems.add(sign);
+            compressedRawBytes.add(sign * entry.valueLength());
+            compressedStoredBytes.add(sign * entry.storedValueLength());
+        }
+    }
+
+    /**
+     * @return the hot key tracker, or null if disabled
+     */
+    public HotKeys hotKeys() {
+        return hotKeys;
+    }
+
+    /**
+     * @return the log of slow commands, or null if disabled
+     */
+    public SlowLog slowLog() {
+        return slowLog;
+    }
+
+    /**
+     * @return the capture of the accesses, or null if disabled
+     */
+    public TraceRecorder trace() {
+        return trace;
+    }
+
+    public int size() {
+        int size = 0;
+        for (var shard : shards) {
+            lock(shard);
+            try {
+                size += shard.index.size();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Adds the statistics of the storage to the given map, in the order of their insertion.
+     */
+    public void stats(Map<String, Object> stats) {
+        stats.put("curr_items", size());
+        stats.put("bytes", bytes.sum());
+        stats.put("limit_maxbytes", config.maxMemory);
+        stats.put("evictions", evictions.sum());
+        stats.put("reclaimed", reclaimed.sum());
+        stats.put("cmd_flush", flushes.sum());
+        if (namespaces != null) {
+            stats.put("cmd_invalidate_namespace", namespaceInvalidations.sum());
+            stats.put("invalidated_namespaces", namespaces.size());
+        }
+        stats.put("compression_threshold", compression == null ? 0 : compression.threshold());
+        long raw = compressedRawBytes.sum();
+        long stored = compressedStoredBytes.sum();
+        stats.put("compressed_items", compressedItems.sum());
+        stats.put("compressed_raw_bytes", raw);
+        stats.put("compressed_stored_bytes", stored);
+        stats.put("compression_ratio", stored == 0 ? "0.00" : String.format(Locale.ROOT, "%.2f", (double) raw / stored));
+        stats.put("eviction_policy", config.evictionPolicy);
+        if (trace != null) stats.put("trace_records", trace.records());
+        if (leases != null) leases.stats(stats);
+        var policyStats = new TreeMap<String, Long>();
+        for (var shard : shards) {
+            lock(shard);
+            try {
+                shard.policy.stats(policyStats);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        stats.putAll(policyStats);
+        for (var source : statsSources) source.accept(stats);
+    }
+}
@@ -0,0 +1,103 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A partition of the {@link ServerData}, selected by the hash of the key. Each shard has its own
+ * index, eviction policy and share of the memory limit, all guarded by the {@link #lock} of the
+ * shard, so that operations on different shards do not contend.
+ * <p>
+ * Reads do not take the lock. They look up the {@link ItemTable} directly and record the entry
+ * in a ring buffer of recent reads, which is replayed to the eviction policy by the next thread
+ * holding the lock. The buffer is lossy: if readers overtake the replay, the oldest reads are
+ * dropped, which only makes the policy slightly less accurate.
+ */
+final class Shard {
+    /**
+     * Estimated memory of an entry besides {@link Entry#size()}: object headers, fields and index slot.
+     */
+    static final int ENTRY_OVERHEAD = 64;
+
+    /**
+     * Number of slots of the read buffer, a power of two. A reader tries to replay the buffer
+     * once it is half full.
+     */
+    static final int READ_BUFFER = 128;
+
+    /**
+     * Index of the shard in the {@link ServerData}, as reported in {@link Events}.
+     */
+    final int id;
+
+    final ReentrantLock lock = new ReentrantLock();
+    final ItemTable index = new ItemTable();
+    final EvictionPolicy policy;
+
+    /**
+     * The share of the memory limit, moved between the shards by the {@link Rebalancer}.
+     */
+    long maxBytes;
+
+    /**
+     * Evictions since the last round of the {@link Rebalancer}, and the sum of the seconds the
+     * evicted entries were not accessed.
+     */
+    long evictions;
+    long evictedIdleTime;
+
+    /**
+     * Memory held by the entries of this shard, including {@link #ENTRY_OVERHEAD}.
+     */
+    long bytes;
+
+    private final AtomicReferenceArray<Entry> reads = new AtomicReferenceArray<>(READ_BUFFER);
+    private final AtomicLong readTail = new AtomicLong();
+    private volatile long readHead;
+
+    Shard(int id, EvictionPolicy policy, long maxBytes) {
+        this.id = id;
+        this.policy = policy;
+        this.maxBytes = maxBytes;
+    }
+
+    static long memory(Entry entry) {
+        return entry.size() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Records a read without blocking.
+     *
+     * @return true if the buffer should be replayed
+     */
+    boolean recordRead(Entry entry) {
+        long tail = readTail.getAndIncrement();
+        reads.lazySet((int) tail & (READ_BUFFER - 1), entry);
+        return tail - readHead >= READ_BUFFER / 2;
+    }
+
+    /**
+     * @return true if reads were recorded since the last {@link #drainReads(Consumer)}
+     */
+    boolean hasReads() {
+        return readTail.get() != readHead;
+    }
+
+    /**
+     * Passes the recorded reads to the action and empties the buffer. Must hold the {@link #lock}.
+     */
+    void drainReads(Consumer<Entry> action) {
+        long tail = readTail.get();
+        for (long i = Math.max(readHead, tail - READ_BUFFER); i < tail; i++) {
+            int slot = (int) i & (READ_BUFFER - 1);
+            var entry = reads.get(slot);
+            if (entry == null) continue;
+            // a read recorded in between may be overwritten, the buffer is lossy anyway
+            reads.lazySet(slot, null);
+            action.accept(entry);
+        }
+        readHead = tail;
+    }
+}
@@ -0,0 +1,90 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent gets of the same key for a {@link Client}: the first caller sends the
+ * request, callers arriving while it is in flight wait for it and share its result instead of
+ * sending their own. A caller arriving after the reply starts a new request, so no result is
+ * older than the request of the caller.
+ */
+public class SingleFlight {
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Sends a request for the key.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        String load(String key) throws IOException;
+    }
+
+    /**
+     * @return the value of the key, loaded by this caller or by a concurrent one
+     */
+    public String get(String key, Loader loader) throws IOException {
+        var flight = new CompletableFuture<String>();
+        var leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalesced.increment();
+            return await(leader);
+        }
+        requests.increment();
+        String value;
+        try {
+            value = loader.load(key);
+        } catch (IOException | RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+        // later callers must send a new request before the waiting ones are released
+        inFlight.remove(key, flight);
+        flight.complete(value);
+        return value;
+    }
+
+    private static String await(CompletableFuture<String> flight) throws IOException {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            // the leader only fails with the exceptions of Loader.load
+            var cause = e.getCause();
+            if (cause instanceof IOException) throw new IOException(cause.getMessage(), cause);
+            throw (RuntimeException) cause;
+        }
+    }
+
+    /**
+     * @return the gets that were sent to the server
+     */
+    public long requests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the gets that shared the request of a concurrent get instead of sending their own
+     */
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the keys with a request in flight
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SingleFlight[requests=%d, coalesced=%d]", requests(), coalesced());
+    }
+}
@@ -0,0 +1,77 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent commands that took at least {@code threshold} to execute, reported by
+ * "stats slowlog". Only the slow commands reach the log, so its lock is never on the fast path;
+ * once {@code capacity} commands are logged, the oldest ones are dropped.
+ */
+public class SlowLog {
+    private final long thresholdNanos;
+    private final int capacity;
+    private final ArrayDeque<SlowCommand> commands;
+    private long nextId;
+
+    /**
+     * @param thresholdMicros commands taking at least this many microseconds are logged
+     */
+    public SlowLog(long thresholdMicros, int capacity) {
+        this.thresholdNanos = thresholdMicros * 1000;
+        this.capacity = capacity;
+        this.commands = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * @return true if a command of this duration should be passed to {@link #add}
+     */
+    public boolean isSlow(long durationNanos) {
+        return durationNanos >= thresholdNanos;
+    }
+
+    public synchronized void add(String command, Entry.Key key, long valueSize, long durationNanos) {
+        if (commands.size() == capacity) commands.removeLast();
+        commands.addFirst(new SlowCommand(nextId++, System.currentTimeMillis() / 1000,
+                durationNanos / 1000, command, key, valueSize));
+    }
+
+    /**
+     * @return the logged commands, the most recent first
+     */
+    public synchronized List<SlowCommand> entries() {
+        return new ArrayList<>(commands);
+    }
+
+    public static final class SlowCommand {
+        /**
+         * Increases with every logged command, so a client can tell which entries it has seen.
+         */
+        public final long id;
+
+        /**
+         * Unix time in seconds when the command finished.
+         */
+        public final long time;
+
+        public final long durationMicros;
+        public final String command;
+
+        /**
+         * The (first) key of the command, null if it has none.
+         */
+        public final Entry.Key key;
+
+        public final long valueSize;
+
+        SlowCommand(long id, long time, long durationMicros, String command, Entry.Key key, long valueSize) {
+            this.id = id;
+            this.time = time;
+            this.durationMicros = durationMicros;
+            this.command = command;
+            this.key = key;
+            this.valueSize = valueSize;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for exactly one producer thread and one consumer thread (Lamport's
+ * ring buffer). Each side writes only its own index, so the only shared writes are the elements
+ * and the two indices, and neither side ever waits for the other.
+ * <p>
+ * The tail is published with a volatile write rather than lazily, so that a consumer that checks
+ * the queue before parking and a producer that checks whether the consumer is parked after
+ * offering cannot both miss each other, see {@link Partitions}.
+ */
+final class SpscQueue<E> {
+    private final AtomicReferenceArray<E> elements;
+    private final int mask;
+
+    /**
+     * Written by the consumer only.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Written by the producer only.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity a power of two
+     */
+    SpscQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        elements = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Called by the producer only.
+     *
+     * @return false if the queue is full
+     */
+    boolean offer(E element) {
+        long t = tail.get();
+        if (t - head.get() > mask) return false;
+        elements.lazySet((int) t & mask, element);
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Called by the consumer only.
+     *
+     * @return the oldest element, or null if the queue is empty
+     */
+    E poll() {
+        long h = head.get();
+        if (h == tail.get()) return null;
+        int slot = (int) h & mask;
+        var element = elements.get(slot);
+        elements.lazySet(slot, null);
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+}
@@ -0,0 +1,143 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Captures the accesses of the clients to a compact binary trace, to be replayed by the
+ * {@link TraceSimulator}, see {@link ServerConfig#trace}. The file starts with a header
+ * <pre>
+ * | magic "BCTRACE1" (8) | sample rate (4) |
+ * </pre>
+ * followed by one record per access, all numbers big-endian:
+ * <pre>
+ * | time (4) | op (1) | key length (1) | key hash (8) | value size (4) | ttl (4) |
+ * </pre>
+ * The time is the unix time in seconds, the ttl the relative expiration time in seconds, 0 if
+ * the value never expires and -1 if it is expired already. Keys are only represented by their
+ * hash. Retrievals of several keys are recorded per key, "lease_get" as a get; add, replace,
+ * append, prepend, cas and lease_set are recorded as sets of their data block, incr and decr are
+ * not recorded.
+ * <p>
+ * Keys are sampled by their hash rather than accesses at random: all accesses of one in
+ * {@code sampleRate} keys are recorded, and none of the others. The hit ratio of a cache of size
+ * {@code M} on the full traffic is then estimated by a cache of size {@code M / sampleRate} on the
+ * trace. Only the sampled accesses are formatted and written, under the lock of the recorder, so
+ * the cost of the others is hashing the key.
+ */
+public class TraceRecorder implements AutoCloseable {
+    static final byte[] MAGIC = "BCTRACE1".getBytes(StandardCharsets.US_ASCII);
+    static final int HEADER_SIZE = 12;
+    static final int RECORD_SIZE = 22;
+
+    static final byte GET = 0;
+    static final byte SET = 1;
+    static final byte DELETE = 2;
+    static final byte TOUCH = 3;
+
+    private final int sampleRate;
+    private final DataOutputStream out;
+    private long records;
+
+    public TraceRecorder(Path file, int sampleRate) throws IOException {
+        this.sampleRate = Math.max(1, sampleRate);
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 20));
+        out.write(MAGIC);
+        out.writeInt(this.sampleRate);
+    }
+
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Records the accesses of a validated request.
+     *
+     * @param args the request, starting with the command name
+     */
+    void record(Command command, List<byte[]> args) {
+        switch (command) {
+            case GET:
+            case GETS:
+            case LEASE_GET:
+                for (int i = 1; i < args.size(); i++) record(GET, args.get(i), 0, 0);
+                break;
+            case GAT:
+            case GATS:
+                int ttl = ttl(args.get(1));
+                for (int i = 2; i < args.size(); i++) record(GET, args.get(i), 0, ttl);
+                break;
+            case SET:
+            case ADD:
+            case REPLACE:
+            case APPEND:
+            case PREPEND:
+            case CAS:
+            case LEASE_SET:
+                long bytes = Util.parseLongNumber(args.get(4));
+                record(SET, args.get(1), (int) Math.min(bytes, Integer.MAX_VALUE), ttl(args.get(3)));
+                break;
+            case DELETE:
+                record(DELETE, args.get(1), 0, 0);
+                break;
+            case TOUCH:
+                record(TOUCH, args.get(1), 0, ttl(args.get(2)));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static int ttl(byte[] exptime) {
+        int time = Util.parseInt(exptime);
+        if (time == 0 || time < Util.RELATIVE_TIME_LIMIT) return time;
+        return (int) Math.max(-1, time - System.currentTimeMillis() / 1000);
+    }
+
+    private void record(byte op, byte[] key, int valueSize, int ttl) {
+        long hash = Util.hash64(key, 0, key.length);
+        if (!isSampled(hash, sampleRate)) return;
+        write((int) (System.currentTimeMillis() / 1000), op, key.length, hash, valueSize, ttl);
+    }
+
+    static boolean isSampled(long hash, int sampleRate) {
+        // the low bits, since the high ones select the shard
+        return sampleRate == 1 || ((int) hash & 0x7FFFFFFF) % sampleRate == 0;
+    }
+
+    synchronized void write(int time, byte op, int keyLength, long hash, int valueSize, int ttl) {
+        try {
+            out.writeInt(time);
+            out.writeByte(op);
+            out.writeByte(keyLength);
+            out.writeLong(hash);
+            out.writeInt(valueSize);
+            out.writeInt(ttl);
+            records++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the number of recorded accesses
+     */
+    public synchronized long records() {
+        return records;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,352 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays a trace of the {@link TraceRecorder} against the eviction policies at several memory
+ * limits, and reports the hit ratio of the gets for each, e.g., to size the nodes or to choose the
+ * {@link ServerConfig#evictionPolicy}:
+ * <pre>
+ * java edu.kit.kastel.formal.bloatcache.TraceSimulator &lt;trace> [--sizes=16m,64m,256m] [--policies=slru,lfu,tinylfu] [--shards=1]
+ * </pre>
+ * The sizes are memory limits of the whole cache; they are divided by the sample rate of the
+ * trace, see {@link TraceRecorder}.
+ * <p>
+ * Each simulated cache runs the {@link EvictionPolicy} of the server on entries that carry no key
+ * or value, only their size, and accounts their memory like a {@link Shard}. Reads are passed to
+ * the policy directly instead of through the read buffer, and expired entries are removed when
+ * they are accessed. The trace is memory-mapped and the caches are replayed in parallel.
+ */
+public class TraceSimulator {
+    private final List<Cache> caches = new ArrayList<>();
+    private long events;
+
+    /**
+     * @param sizes      memory limits of the full cache in bytes
+     * @param sampleRate the sample rate of the trace
+     * @param shards     the number of shards each cache is partitioned into, a power of two
+     */
+    public TraceSimulator(List<String> policies, long[] sizes, int sampleRate, int shards) {
+        for (var policy : policies) {
+            for (long size : sizes) caches.add(new Cache(policy, size, Math.max(1, size / sampleRate), shards));
+        }
+    }
+
+    /**
+     * The hit ratio of one policy and memory limit.
+     */
+    public static final class Result {
+        public final String policy;
+        public final long size;
+        public final long gets;
+        public final long hits;
+        public final long evictions;
+
+        Result(String policy, long size, long gets, long hits, long evictions) {
+            this.policy = policy;
+            this.size = size;
+            this.gets = gets;
+            this.hits = hits;
+            this.evictions = evictions;
+        }
+
+        public double hitRatio() {
+            return gets == 0 ? 0 : (double) hits / gets;
+        }
+    }
+
+    /**
+     * A stored item of the trace: no key and value, only their size.
+     */
+    private static final class SimulatedEntry extends Entry {
+        private static final byte[] NO_ITEM = new byte[HEADER_SIZE];
+
+        final int size;
+        int expiresAt;
+
+        SimulatedEntry(long hash, int size, int expiresAt) {
+            super(hash, NO_ITEM);
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Open addressing by key hash with linear probing, so a lookup neither boxes the hash nor
+     * follows a chain; deletions shift the following entries back instead of leaving tombstones.
+     */
+    private static final class Index {
+        private SimulatedEntry[] slots = new SimulatedEntry[1024];
+        private int shift = 64 - 10;
+        private int size;
+
+        SimulatedEntry get(long hash) {
+            int mask = slots.length - 1;
+            for (int i = slot(hash); ; i = (i + 1) & mask) {
+                var entry = slots[i];
+                if (entry == null || entry.hash == hash) return entry;
+            }
+        }
+
+        void put(SimulatedEntry entry) {
+            int mask = slots.length - 1;
+            for (int i = slot(entry.hash); ; i = (i + 1) & mask) {
+                if (slots[i] == null) {
+                    slots[i] = entry;
+                    if (++size > slots.length / 2) grow();
+                    return;
+                }
+                if (slots[i].hash == entry.hash) {
+                    slots[i] = entry;
+                    return;
+                }
+            }
+        }
+
+        void remove(long hash) {
+            int mask = slots.length - 1;
+            int i = slot(hash);
+            while (slots[i] != null && slots[i].hash != hash) i = (i + 1) & mask;
+            if (slots[i] == null) return;
+            slots[i] = null;
+            size--;
+            // move back the following entries that probed past the freed slot
+            for (int j = (i + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+                int home = slot(slots[j].hash);
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    slots[i] = slots[j];
+                    slots[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        private void grow() {
+            var old = slots;
+            slots = new SimulatedEntry[old.length * 2];
+            shift--;
+            size = 0;
+            for (var entry : old) {
+                if (entry != null) put(entry);
+            }
+        }
+
+        /**
+         * Mixes all bits of the hash, since the trace holds only the keys whose low bits pass the
+         * sampling, and the high bits select the partition.
+         */
+        private int slot(long hash) {
+            return (int) ((hash * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+    }
+
+    private static final class Partition {
+        final EvictionPolicy policy;
+        final long maxBytes;
+        final Index index = new Index();
+        long bytes;
+
+        Partition(EvictionPolicy policy, long maxBytes) {
+            this.policy = policy;
+            this.maxBytes = maxBytes;
+        }
+
+        void remove(SimulatedEntry entry) {
+            index.remove(entry.hash);
+            policy.onRemove(entry);
+            bytes -= Shard.memory(entry);
+        }
+    }
+
+    private static final class Cache {
+        final String policy;
+        final long size;
+        final Partition[] partitions;
+        long gets;
+        long hits;
+        long evictions;
+
+        Cache(String policy, long size, long scaledSize, int shards) {
+            this.policy = policy;
+            this.size = size;
+            partitions = new Partition[Integer.highestOneBit(Math.max(1, shards))];
+            for (int i = 0; i < partitions.length; i++) {
+                partitions[i] = new Partition(EvictionPolicy.create(policy), scaledSize / partitions.length);
+            }
+        }
+
+        void apply(int time, byte op, int keyLength, long hash, int valueSize, int ttl) {
+            var partition = partitions[(int) (hash >>> 32) & (partitions.length - 1)];
+            var entry = partition.index.get(hash);
+            if (entry != null && entry.expiresAt != 0 && entry.expiresAt <= time) {
+                partition.remove(entry);
+                entry = null;
+            }
+            switch (op) {
+                case TraceRecorder.GET:
+                    gets++;
+                    if (entry == null) return;
+                    hits++;
+                    partition.policy.onAccess(entry);
+                    // gat
+                    if (ttl != 0) entry.expiresAt = expiresAt(time, ttl);
+                    return;
+                case TraceRecorder.SET:
+                    var version = new SimulatedEntry(hash, Entry.HEADER_SIZE + keyLength + valueSize, expiresAt(time, ttl));
+                    if (entry != null) {
+                        partition.policy.onReplace(entry, version);
+                        partition.bytes -= Shard.memory(entry);
+                    } else {
+                        partition.policy.onInsert(version);
+                    }
+                    partition.index.put(version);
+                    partition.bytes += Shard.memory(version);
+                    evict(partition);
+                    return;
+                case TraceRecorder.DELETE:
+                    if (entry != null) partition.remove(entry);
+                    return;
+                case TraceRecorder.TOUCH:
+                    if (entry == null) return;
+                    partition.policy.onAccess(entry);
+                    entry.expiresAt = expiresAt(time, ttl);
+                    return;
+                default:
+                    throw new IllegalArgumentException("Unknown trace operation " + op);
+            }
+        }
+
+        void replay(ByteBuffer records) {
+            while (records.remaining() >= TraceRecorder.RECORD_SIZE) {
+                int time = records.getInt();
+                byte op = records.get();
+                int keyLength = records.get() & 0xFF;
+                long hash = records.getLong();
+                int valueSize = records.getInt();
+                int ttl = records.getInt();
+                apply(time, op, keyLength, hash, valueSize, ttl);
+            }
+        }
+
+        private void evict(Partition partition) {
+            while (partition.bytes > partition.maxBytes) {
+                var victim = (SimulatedEntry) partition.policy.victim();
+                if (victim == null) return;
+                partition.remove(victim);
+                evictions++;
+            }
+        }
+
+        private static int expiresAt(int time, int ttl) {
+            return ttl == 0 ? 0 : time + ttl;
+        }
+    }
+
+    /**
+     * Applies the records of the trace, without its header, to all caches. The caches share
+     * nothing, so each one reads the records on its own and they are replayed in parallel.
+     */
+    public void replay(ByteBuffer records) {
+        caches.parallelStream().forEach(cache -> cache.replay(records.duplicate()));
+        events += records.remaining() / TraceRecorder.RECORD_SIZE;
+    }
+
+    /**
+     * @return the number of replayed records
+     */
+    public long events() {
+        return events;
+    }
+
+    public List<Result> results() {
+        var results = new ArrayList<Result>();
+        for (var cache : caches) {
+            results.add(new Result(cache.policy, cache.size, cache.gets, cache.hits, cache.evictions));
+        }
+        return results;
+    }
+
+    /**
+     * Replays the trace file.
+     */
+    public static TraceSimulator simulate(Path trace, List<String> policies, long[] sizes, int shards) throws IOException {
+        try (var channel = FileChannel.open(trace)) {
+            var header = ByteBuffer.allocate(TraceRecorder.HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < TraceRecorder.HEADER_SIZE) throw new IOException("Not a trace: " + trace);
+            var magic = new byte[TraceRecorder.MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, TraceRecorder.MAGIC)) throw new IOException("Not a trace: " + trace);
+            var simulator = new TraceSimulator(policies, sizes, header.getInt(), shards);
+
+            // map at most about 1 GiB at a time, cut at a record boundary
+            long chunk = (1L << 30) / TraceRecorder.RECORD_SIZE * TraceRecorder.RECORD_SIZE;
+            for (long position = TraceRecorder.HEADER_SIZE; position < channel.size(); position += chunk) {
+                long length = Math.min(chunk, channel.size() - position);
+                simulator.replay(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+            }
+            return simulator;
+        }
+    }
+
+    /**
+     * @param size a number of bytes with an optional suffix k, m or g
+     */
+    static long parseSize(String size) {
+        var s = size.trim().toLowerCase(Locale.ROOT);
+        int shift = 0;
+        if (s.endsWith("k")) shift = 10;
+        else if (s.endsWith("m")) shift = 20;
+        else if (s.endsWith("g")) shift = 30;
+        if (shift > 0) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) << shift;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path trace = null;
+        var policies = List.of("slru", "lfu", "tinylfu");
+        long[] sizes = {16L << 20, 64L << 20, 256L << 20, 1L << 30};
+        int shards = 1;
+        for (var arg : args) {
+            if (arg.startsWith("--policies=")) {
+                policies = List.of(arg.substring("--policies=".length()).split(","));
+            } else if (arg.startsWith("--sizes=")) {
+                sizes = Arrays.stream(arg.substring("--sizes=".length()).split(",")).mapToLong(TraceSimulator::parseSize).toArray();
+            } else if (arg.startsWith("--shards=")) {
+                shards = Integer.parseInt(arg.substring("--shards=".length()));
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            } else {
+                trace = Path.of(arg);
+            }
+        }
+        if (trace == null) {
+            System.err.println("usage: TraceSimulator <trace> [--sizes=16m,64m,256m] [--policies=slru,lfu,tinylfu] [--shards=1]");
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        var simulator = simulate(trace, policies, sizes, shards);
+        long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        System.out.format(Locale.ROOT, "Replayed %d events in %d ms (%.1fM events/s)%n",
+                simulator.events(), millis, simulator.events() / 1000.0 / millis);
+        System.out.format("%-8s %14s %12s %10s %12s%n", "policy", "size", "gets", "hit_ratio", "evictions");
+        for (var result : simulator.results()) {
+            System.out.format(Locale.ROOT, "%-8s %14d %12d %10.4f %12d%n",
+                    result.policy, result.size, result.gets, result.hitRatio(), result.evictions);
+        }
+    }
+}
@@ -4,6 +4,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PushbackInputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -14,26 +17,28 @@ import java.util.List;
  */
 public class Util {
 
+    /**
+     * Reads a line terminated by "\r\n" or the end of the stream, without the terminator. The
+     * bytes are read from {@code in} one by one, so it should be buffered.
+     */
     public static byte[] readLine(InputStream in) throws IOException {
-        var pushback = new PushbackInputStream(in);
-        var out = new ByteArrayOutputStream();
+        var line = new byte[64];
+        int length = 0;
         while (true) {
-            var c = pushback.read();
+            var c = in.read();
             if (c == -1) {
                 break;
             }
-
-            if (c == '\r') {
-                var c2 = pushback.read();
-                if (c2 == '\n') {
-                    break;
-                } else {
-                    pushback.unread(c2);
-                }
+            if (c == '\n' && length > 0 && line[length - 1] == '\r') {
+                length--;
+                break;
             }
-            out.write(c);
+            if (length == line.length) {
+                line = Arrays.copyOf(line, 2 * length);
+            }
+            line[length++] = (byte) c;
         }
-        return out.toByteArray();
+        return Arrays.copyOf(line, length);
     }
 
     public static byte[] readLineMax(InputStream input, long length) throws IOException {
@@ -59,37 +64,58 @@ public class Util {
     }
 
     public static byte[] readLineExactly(InputStream in, long length) throws IOException {
-        var out = new ByteArrayOutputStream();
-        for (; length > 0; length--) {
-            var c = in.read();
-            if (c == -1) {
-                throw new RuntimeException("Channel closed before end of data reached");
-            }
-            out.write(c);
+        var out = new byte[Math.toIntExact(length)];
+        readFully(in, out, 0, out.length);
+        readNewline(in);
+        return out;
+    }
+
+    /**
+     * Reads exactly {@code length} bytes into {@code target}, starting at {@code offset}.
+     */
+    public static void readFully(InputStream in, byte[] target, int offset, int length) throws IOException {
+        if (in.readNBytes(target, offset, length) != length) {
+            throw new RuntimeException("Channel closed before end of data reached");
         }
+    }
 
+    /**
+     * Consumes the "\r\n" that terminates a data block.
+     */
+    public static void readNewline(InputStream in) throws IOException {
         var r = in.read();
         var n = in.read();
         if (r != '\r' || n != '\n')
             throw new AssertionError("Unexpected character. Expected Newline. Instead: " + r + " " + n);
-        return out.toByteArray();
+    }
+
+    /**
+     * Discards exactly {@code length} bytes of the input without buffering them.
+     */
+    public static void skipFully(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long n = in.skip(length);
+            if (n <= 0) {
+                if (in.read() == -1) throw new RuntimeException("Channel closed before end of data reached");
+                n = 1;
+            }
+            length -= n;
+        }
     }
 
     public static int RELATIVE_TIME_LIMIT = 60 * 60 * 24 * 30;
 
     public static List<byte[]> readArguments(InputStream in) throws IOException {
         byte[] line = readLine(in);
-        List<byte[]> seq = new ArrayList<>();
-        var out = new ByteArrayOutputStream();
-        for (byte b : line) {
-            if (b == ' ') {
-                seq.add(out.toByteArray());
-                out.reset();
-            } else {
-                out.write(b);
+        List<byte[]> seq = new ArrayList<>(8);
+        int start = 0;
+        for (int i = 0; i < line.length; i++) {
+            if (line[i] == ' ') {
+                seq.add(Arrays.copyOfRange(line, start, i));
+                start = i + 1;
             }
         }
-        seq.add(out.toByteArray());
+        seq.add(Arrays.copyOfRange(line, start, line.length));
         return seq;
     }
 
@@ -158,25 +184,36 @@ public class Util {
      * Note that a TTL of 1 will sometimes immediately expire. Time is internally
      * updated on second boundaries, which makes expiration time roughly +/- 1s.
      * This more proportionally affects very low TTL's.
+     * <p>
+     * An expiration time of 0 means "never expire"; a negative one expires the item immediately.
      *
      * @param exptime
-     * @return
+     * @return the absolute expiration time in Unix seconds, or 0 for "never"
      */
     public static int expirationTime(int exptime) {
+        if (exptime == 0) {
+            return 0;
+        }
         if (exptime < RELATIVE_TIME_LIMIT) {
             return (int) (System.currentTimeMillis() / 1000) + exptime;
         }
         return exptime;
     }
 
+    /**
+     * @param expirationDate absolute expiration time as returned by {@link #expirationTime(int)}
+     */
+    public static boolean isExpired(int expirationDate, long nowMillis) {
+        return expirationDate != 0 && expirationDate <= nowMillis / 1000;
+    }
+
     public static int parseInt(byte[] bytes) {
         return (int) parseLongNumber(bytes);
     }
 
     public static long parseLongNumber(byte[] bytes) {
         long l = 0;
-        for (int i = bytes.length - 1; i >= 0; i--) {
-            final var b = bytes[i];
+        for (final var b : bytes) {
             if (b < '0' || b > '9')
                 throw new NumberFormatException();
             l = l * 10 + (b - '0');
@@ -223,7 +260,7 @@ public class Util {
         }
 
         if (exp.toLowerCase().equals(exp)) {
-            return exp.equals(arg);
+            return equals(exp, arg);
         }
 
         throw new RuntimeException("unknown expected argument " + exp);
@@ -263,9 +300,66 @@ public class Util {
     }
 
 
+    /**
+     * Compares an ASCII string, e.g., a protocol keyword, with bytes without encoding it first.
+     */
     public static boolean equals(String value, byte[] bytes) {
-        var v = value.getBytes();
-        return Arrays.equals(v, bytes);
+        return bytes.length == value.length() && startsWith(bytes, value);
+    }
+
+    /**
+     * @see #equals(String, byte[])
+     */
+    public static boolean startsWith(byte[] bytes, String prefix) {
+        if (bytes.length < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if ((bytes[i] & 0xFF) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+    /**
+     * 64-bit hash of {@code len} bytes starting at {@code off}. Consumes eight bytes per step and
+     * finishes with the MurmurHash3 avalanche, so every input bit affects every output bit.
+     * Unlike {@link Arrays#hashCode(byte[])}, keys that differ in one byte rarely collide in
+     * the lower bits used for table indexing.
+     */
+    public static long hash64(byte[] bytes, int off, int len) {
+        long h = PRIME_1 * (len + 1);
+        int i = off;
+        final int end = off + len;
+        for (; i + 8 <= end; i += 8) {
+            long k = (long) LONG_LE.get(bytes, i);
+            k *= PRIME_2;
+            k = Long.rotateLeft(k, 31);
+            k *= PRIME_1;
+            h ^= k;
+            h = Long.rotateLeft(h, 27) * PRIME_1 + 0x52DCE729L;
+        }
+        long tail = 0;
+        for (int shift = 0; i < end; i++, shift += 8) {
+            tail |= (bytes[i] & 0xFFL) << shift;
+        }
+        tail *= PRIME_2;
+        tail = Long.rotateLeft(tail, 31);
+        h ^= tail * PRIME_1;
+        return mix64(h);
+    }
+
+    /**
+     * MurmurHash3 fmix64 finalizer.
+     */
+    public static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
     }
 
 
@@ -0,0 +1,122 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.Map;
+
+/**
+ * W-TinyLFU: new entries enter a small LRU window (1% of the entries). An entry leaving the window
+ * is only admitted to the main segmented LRU if the {@link CountMinSketch} estimates that its key
+ * is accessed more often than the key of the main victim; otherwise it is evicted itself. Thus a
+ * scan of one-hit wonders passes through the window without displacing the frequently used entries.
+ * Entries leave the window only when the shard evicts, so the window may exceed its share while
+ * there is enough memory.
+ * <p>
+ * The sketch counts the accesses of all keys, including evicted ones, and is halved after ten
+ * accesses per entry. It is resized as the number of entries grows.
+ */
+public class WTinyLfuPolicy implements EvictionPolicy {
+    private static final int WINDOW = 1;
+    private static final int PROBATION = 2;
+    private static final int PROTECTED = 3;
+
+    private final LruList window = new LruList(WINDOW);
+    private final LruList probation = new LruList(PROBATION);
+    private final LruList protect = new LruList(PROTECTED);
+
+    private CountMinSketch sketch = new CountMinSketch(4, 1024);
+    private int sketchWidth = 1024;
+    private long additions;
+
+    private long admitted;
+    private long rejected;
+    private long promotions;
+
+    @Override
+    public void onInsert(Entry entry) {
+        record(entry);
+        window.addFirst(entry);
+    }
+
+    private void record(Entry entry) {
+        int entries = size();
+        if (entries > sketchWidth) {
+            sketchWidth = Integer.highestOneBit(entries) << 1;
+            sketch = new CountMinSketch(4, sketchWidth);
+            additions = 0;
+        }
+        sketch.add(entry.hash);
+        if (++additions > 10L * Math.max(sketchWidth, entries)) {
+            sketch.halve();
+            additions /= 2;
+        }
+    }
+
+    private int size() {
+        return window.size() + probation.size() + protect.size();
+    }
+
+    @Override
+    public void onAccess(Entry entry) {
+        record(entry);
+        if (window.contains(entry)) {
+            window.moveToFront(entry);
+        } else if (protect.contains(entry)) {
+            protect.moveToFront(entry);
+        } else if (probation.contains(entry)) {
+            probation.remove(entry);
+            protect.addFirst(entry);
+            promotions++;
+            int maxProtected = (probation.size() + protect.size()) * 4 / 5;
+            while (protect.size() > Math.max(1, maxProtected)) {
+                var demoted = protect.last();
+                protect.remove(demoted);
+                probation.addFirst(demoted);
+            }
+        }
+    }
+
+    @Override
+    public void onReplace(Entry old, Entry replacement) {
+        if (window.contains(old)) window.replace(old, replacement);
+        else if (protect.contains(old)) protect.replace(old, replacement);
+        else probation.replace(old, replacement);
+        onAccess(replacement);
+    }
+
+    @Override
+    public void onRemove(Entry entry) {
+        if (window.contains(entry)) window.remove(entry);
+        else if (protect.contains(entry)) protect.remove(entry);
+        else if (probation.contains(entry)) probation.remove(entry);
+    }
+
+    @Override
+    public Entry victim() {
+        int maxWindow = Math.max(1, size() / 100);
+        while (window.size() > maxWindow) {
+            var candidate = window.last();
+            var mainVictim = mainVictim();
+            if (mainVictim != null && sketch.estimate(candidate.hash) <= sketch.estimate(mainVictim.hash)) {
+                rejected++;
+                return candidate;
+            }
+            window.remove(candidate);
+            probation.addFirst(candidate);
+            if (mainVictim != null) admitted++;
+        }
+        var mainVictim = mainVictim();
+        return mainVictim != null ? mainVictim : window.last();
+    }
+
+    private Entry mainVictim() {
+        return probation.last() != null ? probation.last() : protect.last();
+    }
+
+    @Override
+    public void stats(Map<String, Long> stats) {
+        stats.merge("tinylfu_window_items", (long) window.size(), Long::sum);
+        stats.merge("tinylfu_main_items", (long) (probation.size() + protect.size()), Long::sum);
+        stats.merge("tinylfu_admitted", admitted, Long::sum);
+        stats.merge("tinylfu_rejected", rejected, Long::sum);
+        stats.merge("tinylfu_promotions", promotions, Long::sum);
+    }
+}
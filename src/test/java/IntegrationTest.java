@@ -1,12 +1,23 @@
 import edu.kit.kastel.formal.bloatcache.Client;
+import edu.kit.kastel.formal.bloatcache.EmbeddedCache;
 import edu.kit.kastel.formal.bloatcache.Server;
+import edu.kit.kastel.formal.bloatcache.ServerConfig;
+import edu.kit.kastel.formal.bloatcache.Util;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
@@ -53,4 +64,457 @@ public class IntegrationTest {
             client.decr("abc", 10);
         }
     }
+
+    @Test
+    void testNearCache() throws IOException {
+        try (var client = new Client()) {
+            client.enableNearCache(2, 10_000);
+            client.set("abc", "def");
+            Assertions.assertEquals("def", client.get("abc"));
+            Assertions.assertEquals(1, client.getNearCache().hits());
+
+            client.delete("abc");
+            Assertions.assertNull(client.get("abc"));
+            Assertions.assertEquals(1, client.getNearCache().misses());
+
+            client.set("k1", "v1");
+            client.set("k2", "v2");
+            client.set("k3", "v3");
+            Assertions.assertEquals(2, client.getNearCache().size());
+            Assertions.assertEquals(1, client.getNearCache().evictions());
+            Assertions.assertEquals("v1", client.get("k1"));
+            Assertions.assertEquals(2, client.getNearCache().misses());
+        }
+    }
+
+    @Test
+    void testLargeValues() throws IOException {
+        try (var client = new Client()) {
+            var large = "0123456789abcdef".repeat(20_000);
+            client.set("large", large);
+            Assertions.assertEquals(large, client.get("large"));
+
+            var tooLarge = "x".repeat(2 * 1024 * 1024);
+            client.set("tooLarge", tooLarge);
+            Assertions.assertNull(client.get("tooLarge"));
+            Assertions.assertEquals(large, client.get("large"));
+        }
+    }
+
+    @Test
+    void testFlushAll() throws IOException {
+        try (var client = new Client()) {
+            client.set("abc", "def");
+            Assertions.assertTrue(client.flushAll(0));
+            Assertions.assertNull(client.get("abc"));
+            client.set("abc", "ghi");
+            Assertions.assertEquals("ghi", client.get("abc"));
+        }
+    }
+
+    private static void listenAsync(Server server) {
+        CompletableFuture.runAsync(() -> {
+            try {
+                server.listen();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @Test
+    void testProxy() throws Exception {
+        try (var backend = new Server(ServerConfig.fromArgs(new String[]{"--port=8083"}));
+             var proxy = new Server(ServerConfig.fromArgs(new String[]{"--port=8082",
+                     "--backends=localhost:8081,localhost:8083", "--proxy-connections=1"}))) {
+            listenAsync(backend);
+            listenAsync(proxy);
+            try (var client = new Client("localhost", 8082)) {
+                for (int i = 0; i < 20; i++) {
+                    client.set("key" + i, "value" + i);
+                }
+                for (int i = 0; i < 20; i++) {
+                    Assertions.assertEquals("value" + i, client.get("key" + i));
+                }
+                var stats = client.stats();
+                Assertions.assertNotEquals("0", stats.get("proxy_backend:localhost:8081:requests"));
+                Assertions.assertNotEquals("0", stats.get("proxy_backend:localhost:8083:requests"));
+            }
+
+            // a multi-key get is split per backend and merged into one reply
+            try (var socket = new Socket("localhost", 8082)) {
+                var request = new StringBuilder("get");
+                for (int i = 0; i < 20; i++) request.append(" key").append(i);
+                socket.getOutputStream().write((request + " missing\r\n").getBytes(StandardCharsets.US_ASCII));
+                var in = socket.getInputStream();
+                var received = new StringBuilder();
+                while (!received.toString().endsWith("END\r\n")) {
+                    received.append((char) in.read());
+                }
+                var reply = received.toString();
+                for (int i = 0; i < 20; i++) {
+                    Assertions.assertTrue(reply.contains("\r\nvalue" + i + "\r\n"), reply);
+                }
+                Assertions.assertEquals(reply.indexOf("END"), reply.lastIndexOf("END"));
+            }
+
+            // a malformed storage command is rejected before its data block is read
+            try (var socket = new Socket("localhost", 8082)) {
+                socket.getOutputStream().write("set k\r\n".getBytes(StandardCharsets.US_ASCII));
+                var in = socket.getInputStream();
+                Assertions.assertEquals("CLIENT_ERROR bad command line format", new String(Util.readLine(in)));
+                Assertions.assertEquals(-1, in.read());
+            }
+        }
+    }
+
+    @Test
+    void testProxyBackendDown() throws Exception {
+        // nothing listens on port 8093
+        try (var proxy = new Server(ServerConfig.fromArgs(new String[]{"--port=8094",
+                "--backends=localhost:8093", "--proxy-timeout=60000"}))) {
+            listenAsync(proxy);
+            try (var client = new Client("localhost", 8094)) {
+                Assertions.assertNull(client.get("key"));
+                var stats = client.stats();
+                Assertions.assertEquals("1", stats.get("proxy_backend:localhost:8093:down"));
+                Assertions.assertEquals("1", stats.get("proxy_backend:localhost:8093:errors"));
+                // requests fail at once while the backend is down
+                Assertions.assertNull(client.get("key"));
+                Assertions.assertEquals("2", client.stats().get("proxy_backend:localhost:8093:errors"));
+            }
+        }
+    }
+
+    @Test
+    void testProxyBackendHangs() throws Exception {
+        // a backend that accepts connections, but never answers
+        try (var hung = new ServerSocket(8095);
+             var proxy = new Server(ServerConfig.fromArgs(new String[]{"--port=8096",
+                     "--backends=localhost:8095", "--proxy-timeout=200"}))) {
+            listenAsync(proxy);
+            try (var socket = new Socket("localhost", 8096)) {
+                socket.getOutputStream().write("delete key\r\n".getBytes(StandardCharsets.US_ASCII));
+                Assertions.assertEquals("SERVER_ERROR backend unavailable", new String(Util.readLine(socket.getInputStream())));
+            }
+            // the backend received the request, and the connection was closed after the timeout
+            try (var backendSide = hung.accept()) {
+                var in = backendSide.getInputStream();
+                Assertions.assertEquals("delete key", new String(Util.readLine(in)));
+                Assertions.assertEquals(-1, in.read());
+            }
+        }
+    }
+
+    @Test
+    void testConnectionLimits() throws Exception {
+        try (var limited = new Server(ServerConfig.fromArgs(new String[]{"--port=8084",
+                "--max-connections=2", "--idle-timeout=1"}))) {
+            listenAsync(limited);
+            try (var first = new Client("localhost", 8084);
+                 var second = new Client("localhost", 8084)) {
+                first.set("abc", "def");
+                Assertions.assertEquals("def", second.get("abc"));
+                try (var rejected = new Socket("localhost", 8084)) {
+                    Assertions.assertEquals("ERROR Too many open connections",
+                            new String(Util.readLine(rejected.getInputStream())));
+                }
+                var stats = first.stats();
+                Assertions.assertEquals("2", stats.get("curr_connections"));
+                Assertions.assertEquals("1", stats.get("rejected_connections"));
+            }
+
+            // connections are accepted continuously, and closed once they are idle
+            Thread.sleep(100);
+            try (var idle = new Socket("localhost", 8084)) {
+                idle.setSoTimeout(5000);
+                Assertions.assertEquals(-1, idle.getInputStream().read());
+            }
+        }
+    }
+
+    @Test
+    void testUnixDomainSocket() throws Exception {
+        var path = Files.createTempDirectory("bloatcache").resolve("cache.sock");
+        try (var local = new Server(ServerConfig.fromArgs(new String[]{"--port=0", "--unix-socket=" + path}))) {
+            listenAsync(local);
+            try (var client = new Client(path)) {
+                client.set("abc", "def");
+                Assertions.assertEquals("def", client.get("abc"));
+                Assertions.assertTrue(client.delete("abc"));
+                Assertions.assertNull(client.get("abc"));
+            }
+        }
+        Assertions.assertFalse(Files.exists(path));
+    }
+
+    @Test
+    void testDumpAndLoad() throws Exception {
+        var dump = Files.createTempFile("bloatcache", ".dump");
+        try (var client = new Client()) {
+            client.set("user:1", "alice");
+            client.set("user:2", "bob", 7, 0);
+            client.set("session", "x".repeat(100_000));
+            var metadata = client.metadump();
+            Assertions.assertEquals(3, metadata.size());
+            Assertions.assertTrue(metadata.stream().anyMatch(line -> line.startsWith("key=user%3A1 exp=-1 la=")));
+            try (var out = Files.newOutputStream(dump)) {
+                Assertions.assertEquals(3, client.dump(out));
+            }
+        }
+        try (var warm = new Server(ServerConfig.fromArgs(new String[]{"--port=8085", "--load=" + dump}))) {
+            listenAsync(warm);
+            try (var client = new Client("localhost", 8085)) {
+                Assertions.assertEquals("alice", client.get("user:1"));
+                Assertions.assertEquals("bob", client.get("user:2"));
+                Assertions.assertEquals("x".repeat(100_000), client.get("session"));
+                Assertions.assertEquals(3, client.metadump().size());
+            }
+        }
+        Files.delete(dump);
+    }
+
+    @Test
+    void testSlowLog() throws Exception {
+        try (var logging = new Server(ServerConfig.fromArgs(new String[]{"--port=8086", "--slow-log-threshold=0"}))) {
+            listenAsync(logging);
+            try (var client = new Client("localhost", 8086)) {
+                client.set("abc", "defg");
+                client.get("abc");
+                var slowlog = client.stats("slowlog");
+                Assertions.assertEquals("get", slowlog.get("1:command"));
+                Assertions.assertEquals("abc", slowlog.get("1:key"));
+                Assertions.assertEquals("4", slowlog.get("1:value_size"));
+                Assertions.assertEquals("set", slowlog.get("0:command"));
+                Assertions.assertTrue(Long.parseLong(slowlog.get("0:duration_us")) >= 0);
+            }
+        }
+    }
+
+    @Test
+    void testPartitions() throws Exception {
+        try (var partitioned = new Server(ServerConfig.fromArgs(new String[]{"--port=8087", "--partition-threads=2"}))) {
+            listenAsync(partitioned);
+            try (var client = new Client("localhost", 8087)) {
+                client.set("counter", "41");
+                client.incr("counter", 1, false);
+                Assertions.assertEquals("42", client.get("counter"));
+                client.add("counter", "0");
+                client.append("counter", "0");
+                Assertions.assertEquals("420", client.get("counter"));
+                Assertions.assertTrue(client.touch("counter", 100));
+                Assertions.assertTrue(client.delete("counter"));
+                Assertions.assertNull(client.get("counter"));
+            }
+            var pipeline = new StringBuilder();
+            var get = new StringBuilder("get");
+            for (int i = 0; i < 20; i++) {
+                pipeline.append("set key").append(i).append(" 0 0 ").append(String.valueOf(i).length())
+                        .append(" noreply\r\n").append(i).append("\r\n");
+                get.append(" key").append(i);
+            }
+            pipeline.append(get).append("\r\n");
+            try (var socket = new Socket("localhost", 8087)) {
+                socket.getOutputStream().write(pipeline.toString().getBytes(StandardCharsets.US_ASCII));
+                var in = socket.getInputStream();
+                // the values are gathered from both owners in the order of the keys
+                for (int i = 0; i < 20; i++) {
+                    Assertions.assertTrue(new String(Util.readLine(in)).startsWith("VALUE key" + i + " 0 "));
+                    Assertions.assertEquals(String.valueOf(i), new String(Util.readLine(in)));
+                }
+                Assertions.assertEquals("END", new String(Util.readLine(in)));
+            }
+        }
+    }
+
+    @Test
+    void testBatchedGets() throws Exception {
+        var pool = Executors.newFixedThreadPool(3);
+        try (var client = new Client("localhost", 8081)) {
+            client.set("batched1", "one");
+            client.set("batched2", "two");
+            // the batch is sent as soon as it holds 3 keys, long before the window passes
+            client.enableBatching(60_000_000, 3);
+            var results = new ArrayList<Future<String>>();
+            for (var key : List.of("batched1", "batched2", "batched3")) {
+                results.add(pool.submit(() -> client.get(key)));
+            }
+            Assertions.assertEquals("one", results.get(0).get());
+            Assertions.assertEquals("two", results.get(1).get());
+            Assertions.assertNull(results.get(2).get());
+            Assertions.assertEquals(3, client.getBatcher().gets());
+            Assertions.assertEquals(1, client.getBatcher().batches());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testPipelinedNoreplySets() throws IOException {
+        var pipeline = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            pipeline.append("set key").append(i % 100).append(" 0 0 ").append(String.valueOf(i).length())
+                    .append(" noreply\r\n").append(i).append("\r\n");
+        }
+        pipeline.append("delete key0 noreply\r\nget key0 key1 key99\r\n");
+        try (var socket = new Socket("localhost", 8081)) {
+            socket.getOutputStream().write(pipeline.toString().getBytes(StandardCharsets.US_ASCII));
+            var in = socket.getInputStream();
+            // the last set of each key wins, and the delete sees the batched sets
+            Assertions.assertEquals("VALUE key1 0 3 " , new String(Util.readLine(in)).substring(0, 15));
+            Assertions.assertEquals("901", new String(Util.readLine(in)));
+            Assertions.assertTrue(new String(Util.readLine(in)).startsWith("VALUE key99 0 3 "));
+            Assertions.assertEquals("999", new String(Util.readLine(in)));
+            Assertions.assertEquals("END", new String(Util.readLine(in)));
+        }
+    }
+
+    @Test
+    void testOverlongLength() throws IOException {
+        try (var socket = new Socket("localhost", 8081)) {
+            socket.getOutputStream().write("set k 0 0 9999999999999999999\r\n".getBytes(StandardCharsets.US_ASCII));
+            var in = socket.getInputStream();
+            Assertions.assertEquals("CLIENT_ERROR bad command line format", new String(Util.readLine(in)));
+            Assertions.assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void testIncrDecr() throws IOException {
+        try (var socket = new Socket("localhost", 8081)) {
+            socket.getOutputStream().write("set n 0 0 2\r\n10\r\nincr n 5\r\ndecr n 3\r\ndecr n 100\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            var in = socket.getInputStream();
+            Assertions.assertEquals("STORED", new String(Util.readLine(in)));
+            Assertions.assertEquals("15", new String(Util.readLine(in)));
+            Assertions.assertEquals("12", new String(Util.readLine(in)));
+            // decr stops at 0
+            Assertions.assertEquals("0", new String(Util.readLine(in)));
+        }
+    }
+
+    @Test
+    void testAppendLimitedToMaxItemSize() throws Exception {
+        try (var limited = new Server(ServerConfig.fromArgs(new String[]{"--port=8090", "--max-item-size=4"}))) {
+            listenAsync(limited);
+            try (var socket = new Socket("localhost", 8090)) {
+                socket.getOutputStream().write("set k 0 0 3\r\nabc\r\nappend k 0 0 1\r\nd\r\nappend k 0 0 1\r\ne\r\nget k\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                var in = socket.getInputStream();
+                Assertions.assertEquals("STORED", new String(Util.readLine(in)));
+                Assertions.assertEquals("STORED", new String(Util.readLine(in)));
+                Assertions.assertEquals("SERVER_ERROR object too large for cache", new String(Util.readLine(in)));
+                Assertions.assertTrue(new String(Util.readLine(in)).startsWith("VALUE k 0 4 "));
+                Assertions.assertEquals("abcd", new String(Util.readLine(in)));
+                Assertions.assertEquals("END", new String(Util.readLine(in)));
+            }
+        }
+    }
+
+    @Test
+    void testConcurrentAppends() throws Exception {
+        var pool = Executors.newFixedThreadPool(4);
+        try (var client = new Client("localhost", 8081)) {
+            client.set("appended", "");
+            var appenders = new ArrayList<Future<?>>();
+            for (int i = 0; i < 4; i++) {
+                appenders.add(pool.submit(() -> {
+                    try (var appender = new Client("localhost", 8081)) {
+                        for (int j = 0; j < 100; j++) appender.append("appended", "x");
+                    }
+                    return null;
+                }));
+            }
+            for (var appender : appenders) appender.get();
+            // no append overwrites a concurrent one
+            Assertions.assertEquals("x".repeat(400), client.get("appended"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testFairScheduling() throws Exception {
+        try (var fair = new Server(ServerConfig.fromArgs(new String[]{"--port=8088",
+                "--scheduler-slots=1", "--scheduler-quantum=16"}))) {
+            listenAsync(fair);
+            var pipeline = new StringBuilder();
+            for (int i = 0; i < 20_000; i++) {
+                pipeline.append("set bulk").append(i % 100).append(" 0 0 ").append(String.valueOf(i).length())
+                        .append(" noreply\r\n").append(i).append("\r\n");
+            }
+            pipeline.append("get bulk99\r\n");
+            try (var bulk = new Socket("localhost", 8088);
+                 var client = new Client("localhost", 8088)) {
+                var loader = CompletableFuture.runAsync(() -> {
+                    try {
+                        bulk.getOutputStream().write(pipeline.toString().getBytes(StandardCharsets.US_ASCII));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                // the interactive client takes turns with the bulk loader
+                for (int i = 0; i < 50; i++) {
+                    client.set("interactive", String.valueOf(i));
+                    Assertions.assertEquals(String.valueOf(i), client.get("interactive"));
+                }
+                loader.get();
+                var in = bulk.getInputStream();
+                Assertions.assertTrue(new String(Util.readLine(in)).startsWith("VALUE bulk99 0 5 "));
+                Assertions.assertEquals("19999", new String(Util.readLine(in)));
+                Assertions.assertEquals("END", new String(Util.readLine(in)));
+                Assertions.assertTrue(Long.parseLong(client.stats().get("scheduler_turns")) > 1);
+            }
+
+            // a client stalling in the middle of its request holds no slot
+            try (var stalled = new Socket("localhost", 8088);
+                 var client = new Client("localhost", 8088)) {
+                stalled.getOutputStream().write("set stalled 0 0 5\r\nab".getBytes(StandardCharsets.US_ASCII));
+                stalled.getOutputStream().flush();
+                Thread.sleep(100);
+                client.set("interactive", "served");
+                Assertions.assertEquals("served", client.get("interactive"));
+                stalled.getOutputStream().write("cde\r\n".getBytes(StandardCharsets.US_ASCII));
+                Assertions.assertEquals("STORED", new String(Util.readLine(stalled.getInputStream())));
+            }
+        }
+    }
+
+    @Test
+    void testEmbeddedServer() throws Exception {
+        try (var cache = new EmbeddedCache(ServerConfig.fromArgs(new String[]{"--port=8089"}))) {
+            cache.serve();
+            cache.set("shared", "local".getBytes(StandardCharsets.US_ASCII));
+            try (var client = new Client("localhost", 8089)) {
+                // both sides see the same items
+                Assertions.assertEquals("local", client.get("shared"));
+                client.set("shared", "remote");
+                Assertions.assertArrayEquals("remote".getBytes(StandardCharsets.US_ASCII), cache.get("shared"));
+            }
+        }
+    }
+
+    @Test
+    void testLeases() throws IOException {
+        try (var first = new Client("localhost", 8081);
+             var second = new Client("localhost", 8081)) {
+            var lease = first.leaseGet("leased");
+            Assertions.assertNull(lease.value);
+            Assertions.assertNotEquals(0, lease.token);
+            // only the first miss loads the value, the others wait for it
+            Assertions.assertTrue(second.leaseGet("leased").mustWait());
+            Assertions.assertFalse(second.leaseSet("leased", "guess", 0, 0, lease.token + 1));
+            Assertions.assertTrue(first.leaseSet("leased", "loaded", 0, 0, lease.token));
+            var hit = second.leaseGet("leased");
+            Assertions.assertEquals("loaded", hit.value);
+            Assertions.assertFalse(hit.stale);
+
+            // a delete while the value is loaded rejects the outdated value
+            Assertions.assertTrue(first.delete("leased"));
+            lease = first.leaseGet("leased");
+            second.delete("leased");
+            Assertions.assertFalse(first.leaseSet("leased", "outdated", 0, 0, lease.token));
+            Assertions.assertNull(first.get("leased"));
+        }
+    }
 }
@@ -0,0 +1,56 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommandTest {
+
+    private static List<byte[]> args(String line) {
+        var args = new ArrayList<byte[]>();
+        for (var arg : line.split(" ", -1)) args.add(arg.getBytes());
+        return args;
+    }
+
+    @Test
+    void testLookup() {
+        for (var command : Command.values()) {
+            var name = command.name().toLowerCase();
+            assertSame(command, Command.of(name.getBytes()));
+        }
+        assertNull(Command.of("sets".getBytes()));
+        assertNull(Command.of("END".getBytes()));
+        assertNull(Command.of(new byte[0]));
+    }
+
+    @Test
+    void testArguments() {
+        assertTrue(Command.SET.accepts(args("set key 0 0 5")));
+        assertTrue(Command.SET.accepts(args("set key 4294967295 0 5 noreply")));
+        assertFalse(Command.SET.accepts(args("set key 4294967296 0 5")));
+        assertFalse(Command.SET.accepts(args("set key 0 0")));
+        assertFalse(Command.SET.accepts(args("set key -1 0 5")));
+        assertFalse(Command.SET.accepts(args("set  0 0 5")));
+        assertFalse(Command.SET.accepts(args("set " + "k".repeat(251) + " 0 0 5")));
+        assertTrue(Command.CAS.accepts(args("cas key 0 0 5 18446744073709551615")));
+        assertFalse(Command.CAS.accepts(args("cas key 0 0 5 18446744073709551616")));
+        assertFalse(Command.CAS.accepts(args("cas key 0 0 5 99999999999999999999")));
+        // lengths must fit into an int, or they would turn negative
+        assertTrue(Command.SET.accepts(args("set key 0 0 2147483647")));
+        assertFalse(Command.SET.accepts(args("set key 0 0 2147483648")));
+        assertFalse(Command.SET.accepts(args("set key 0 0 9999999999999999999")));
+        assertTrue(Command.INCR.accepts(args("incr key 18446744073709551615")));
+        assertFalse(Command.INCR.accepts(args("incr key 18446744073709551616")));
+        assertTrue(Command.GATS.accepts(args("gats 10 a b c")));
+        assertFalse(Command.GET.accepts(args("get")));
+        assertTrue(Command.FLUSH_ALL.accepts(args("flush_all")));
+        assertTrue(Command.FLUSH_ALL.accepts(args("flush_all noreply")));
+        assertTrue(Command.FLUSH_ALL.accepts(args("flush_all 10 noreply")));
+        assertTrue(Command.STATS.accepts(args("stats hotkeys")));
+        assertFalse(Command.LRU_CRAWLER.accepts(args("lru_crawler metadump")));
+        assertTrue(Command.LRU_CRAWLER.accepts(args("lru_crawler dump all")));
+    }
+}
@@ -0,0 +1,69 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmbeddedCacheTest {
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void testOperations() throws Exception {
+        try (var cache = new EmbeddedCache()) {
+            assertNull(cache.get("a"));
+            cache.set("a", bytes("1"));
+            assertArrayEquals(bytes("1"), cache.get("a"));
+            assertFalse(cache.add("a", bytes("2"), 0, 0));
+            assertTrue(cache.add("b", bytes("2"), 7, 0));
+            assertEquals(7, cache.gets("b").flags());
+            assertTrue(cache.replace("b", bytes("3"), 0, 0));
+            assertFalse(cache.replace("c", bytes("3"), 0, 0));
+
+            var entry = cache.gets("b");
+            assertEquals(EmbeddedCache.CasResult.STORED, cache.cas("b", bytes("4"), 0, 0, entry.cas()));
+            assertEquals(EmbeddedCache.CasResult.EXISTS, cache.cas("b", bytes("5"), 0, 0, entry.cas()));
+            assertEquals(EmbeddedCache.CasResult.NOT_FOUND, cache.cas("c", bytes("5"), 0, 0, 1));
+            assertArrayEquals(bytes("4"), cache.get("b"));
+
+            assertEquals(42L, (long) cache.incr("a", 41));
+            assertEquals(40L, (long) cache.decr("a", 2));
+            assertEquals(0L, (long) cache.decr("a", 100));
+            assertNull(cache.incr("c", 1));
+
+            var values = cache.getAll(List.of("b", "c", "a"));
+            assertEquals(List.of("b", "a"), List.copyOf(values.keySet()));
+            assertArrayEquals(bytes("0"), values.get("a"));
+
+            assertTrue(cache.delete("a"));
+            assertFalse(cache.delete("a"));
+            assertThrows(IllegalArgumentException.class, () -> cache.set("a b", bytes("1")));
+        }
+    }
+
+    @Test
+    void testExpiration() throws Exception {
+        try (var cache = new EmbeddedCache()) {
+            cache.set("expired", bytes("1"), 0, -1);
+            assertNull(cache.get("expired"));
+            assertTrue(cache.add("expired", bytes("2"), 0, 0));
+
+            cache.set("touched", bytes("1"));
+            assertTrue(cache.touch("touched", -1));
+            assertNull(cache.get("touched"));
+            assertFalse(cache.touch("touched", 100));
+
+            cache.set("gat", bytes("1"));
+            assertArrayEquals(bytes("1"), cache.getAndTouch("gat", 100));
+            assertTrue(cache.gets("gat").expirationDate() > 0);
+
+            cache.flush();
+            assertNull(cache.get("expired"));
+        }
+    }
+}
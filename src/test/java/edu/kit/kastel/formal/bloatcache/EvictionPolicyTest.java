@@ -0,0 +1,112 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EvictionPolicyTest {
+
+    /**
+     * @return storage for about 100 entries with short keys and 32 byte values
+     */
+    private static ServerData data(String policy) {
+        return new ServerData(ServerConfig.fromArgs(new String[]{
+                "--eviction-policy=" + policy, "--shards=1", "--max-memory=" + 100 * 128}));
+    }
+
+    /**
+     * Fills the cache with a working set of 50 keys that is read repeatedly,
+     * then scans 1000 keys that are never read again.
+     *
+     * @return the number of working set keys that survived the scan
+     */
+    private static int survivorsOfScan(ServerData data) {
+        var value = new byte[32];
+        for (int i = 0; i < 50; i++) {
+            data.insert(new Entry("hot" + i, 0, 0, value));
+        }
+        int survivors = 0;
+        for (int i = 0; i < 1000; i++) {
+            data.insert(new Entry("scan" + i, 0, 0, value));
+            if (data.get(new Entry.Key("hot" + (i % 50))) == null) {
+                data.insert(new Entry("hot" + (i % 50), 0, 0, value));
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            if (data.get(new Entry.Key("hot" + i)) != null) survivors++;
+        }
+        return survivors;
+    }
+
+    @Test
+    void testMemoryLimit() {
+        for (var policy : new String[]{"slru", "lfu", "tinylfu"}) {
+            var data = data(policy);
+            for (int i = 0; i < 1000; i++) {
+                data.insert(new Entry("key" + i, 0, 0, new byte[32]));
+            }
+            var stats = new LinkedHashMap<String, Object>();
+            data.stats(stats);
+            assertTrue(data.size() <= 110, policy);
+            assertEquals(1000L - data.size(), stats.get("evictions"), policy);
+            assertEquals(policy, stats.get("eviction_policy"));
+        }
+    }
+
+    @Test
+    void testScanResistance() {
+        assertTrue(survivorsOfScan(data("slru")) >= 45);
+        assertTrue(survivorsOfScan(data("tinylfu")) >= 45);
+
+        var data = data("tinylfu");
+        survivorsOfScan(data);
+        var stats = new LinkedHashMap<String, Object>();
+        data.stats(stats);
+        assertTrue((Long) stats.get("tinylfu_rejected") > 0);
+    }
+
+    @Test
+    void testDeleteAndReplace() {
+        for (var policy : new String[]{"slru", "lfu", "tinylfu"}) {
+            var data = data(policy);
+            for (int i = 0; i < 50; i++) {
+                data.insert(new Entry("key" + i, 0, 0, new byte[32]));
+                data.insert(new Entry("key" + i, 0, 0, new byte[16]));
+            }
+            for (int i = 0; i < 50; i += 2) {
+                assertTrue(data.delete(new Entry.Key("key" + i)));
+            }
+            for (int i = 0; i < 1000; i++) {
+                data.insert(new Entry("other" + i, 0, 0, new byte[32]));
+            }
+            assertTrue(data.size() <= 110, policy);
+        }
+    }
+
+    @Test
+    void testEvictionEvents() throws Exception {
+        var file = Files.createTempFile("bloatcache", ".jfr");
+        try (var recording = new Recording()) {
+            recording.enable("bloatcache.Eviction");
+            recording.start();
+            var data = data("slru");
+            for (int i = 0; i < 1000; i++) {
+                data.insert(new Entry("key" + i, 0, 0, new byte[32]));
+            }
+            recording.stop();
+            recording.dump(file);
+            var events = RecordingFile.readAllEvents(file);
+            assertFalse(events.isEmpty());
+            assertEquals("bloatcache.Eviction", events.get(0).getEventType().getName());
+            assertEquals(0, events.get(0).getInt("shard"));
+            assertTrue(events.get(0).getInt("size") > 32);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
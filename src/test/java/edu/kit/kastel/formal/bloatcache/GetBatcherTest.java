@@ -0,0 +1,56 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GetBatcherTest {
+
+    @Test
+    void testBatching() throws Exception {
+        // a long window, so the batch is sent once it is full
+        var batcher = new GetBatcher(60_000_000, 4);
+        var requests = new CopyOnWriteArrayList<List<String>>();
+        GetBatcher.MultiLoader loader = keys -> {
+            requests.add(keys);
+            return Map.of("a", "1", "b", "2");
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            var results = new ArrayList<Future<String>>();
+            for (var key : List.of("a", "b", "a", "c")) results.add(pool.submit(() -> batcher.get(key, loader)));
+            assertEquals("1", results.get(0).get());
+            assertEquals("2", results.get(1).get());
+            assertEquals("1", results.get(2).get());
+            assertNull(results.get(3).get());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, requests.size());
+        assertEquals(3, requests.get(0).size());
+        assertEquals(4, batcher.gets());
+        assertEquals(1, batcher.batches());
+        assertEquals(3, batcher.keys());
+    }
+
+    @Test
+    void testWindow() throws IOException {
+        // a single get is sent once the window has passed
+        var batcher = new GetBatcher(1000, 100);
+        assertEquals("1", batcher.get("a", keys -> Map.of("a", "1")));
+        assertThrows(IOException.class, () -> batcher.get("a", keys -> {
+            throw new IOException("connection lost");
+        }));
+        assertEquals(2, batcher.batches());
+    }
+}
@@ -0,0 +1,64 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HotKeysTest {
+
+    @Test
+    void testCountMinSketch() {
+        var sketch = new CountMinSketch(4, 1024);
+        var key = new Entry.Key("key").hash;
+        for (int i = 0; i < 100; i++) sketch.add(key);
+        assertTrue(sketch.estimate(key) >= 100);
+        assertEquals(0, sketch.estimate(new Entry.Key("other").hash));
+        sketch.halve();
+        assertTrue(sketch.estimate(key) >= 50);
+    }
+
+    @Test
+    void testTopKeys() {
+        var hotKeys = new HotKeys(1, 4, 60);
+        var random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            // a few hot keys among many cold ones
+            var key = random.nextInt(10) == 0 ? "hot" + random.nextInt(3) : "cold" + random.nextInt(10_000);
+            hotKeys.record(new Entry.Key(key), i % 10 == 0);
+        }
+        var top = hotKeys.top();
+        assertEquals(4, top.size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(top.get(i).key.toString().startsWith("hot"), top.get(i).key.toString());
+            assertTrue(top.get(i).count > 3000);
+        }
+        assertTrue(top.get(3).count < top.get(2).count);
+    }
+
+    @Test
+    void testConcurrentRecording() throws InterruptedException {
+        var hotKeys = new HotKeys(1, 4, 60, 2);
+        var threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            var random = new Random(t);
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    var key = random.nextInt(10) == 0 ? "hot" + random.nextInt(3) : "cold" + random.nextInt(10_000);
+                    hotKeys.record(new Entry.Key(key), false);
+                }
+            }));
+        }
+        for (var thread : threads) thread.start();
+        for (var thread : threads) thread.join();
+        var top = hotKeys.top();
+        assertEquals(4, top.size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(top.get(i).key.toString().startsWith("hot"), top.get(i).key.toString());
+            // 200k accesses, a thirtieth of them to each hot key; drops are compensated
+            assertTrue(top.get(i).count > 5000, Long.toString(top.get(i).count));
+        }
+    }
+}
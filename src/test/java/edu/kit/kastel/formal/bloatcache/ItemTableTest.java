@@ -0,0 +1,77 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ItemTableTest {
+
+    @Test
+    void testEntryLayout() {
+        var entry = new Entry("key", 42, 17, "value".getBytes());
+        assertEquals(42, entry.flags());
+        assertEquals(17, entry.expirationDate());
+        assertEquals(3, entry.keyLength());
+        assertArrayEquals("key".getBytes(), entry.keyBytes());
+        assertArrayEquals("value".getBytes(), entry.value());
+        assertEquals(Entry.HEADER_SIZE + 3 + 5, entry.size());
+        assertTrue(entry.matches(new Entry.Key("key")));
+        assertFalse(entry.matches(new Entry.Key("kex")));
+
+        var version = entry.withValue("other".getBytes(), null, 7, 1024);
+        assertArrayEquals("other".getBytes(), version.value());
+        assertEquals(7, version.flags());
+        assertEquals(17, version.expirationDate());
+        assertEquals(entry.cas(), version.cas());
+        assertArrayEquals("value".getBytes(), entry.value());
+        assertEquals(42, entry.flags());
+
+        var touched = version.withExpirationDate(99);
+        assertEquals(99, touched.expirationDate());
+        assertEquals(17, version.expirationDate());
+        assertArrayEquals("other".getBytes(), touched.value());
+    }
+
+    @Test
+    void testPutGetRemove() {
+        var table = new ItemTable();
+        for (int i = 0; i < 1000; i++) {
+            assertNull(table.put(new Entry("key" + i, i, 0, ("v" + i).getBytes())));
+        }
+        assertEquals(1000, table.size());
+
+        for (int i = 0; i < 1000; i += 2) {
+            assertNotNull(table.remove(new Entry.Key("key" + i)));
+        }
+        assertEquals(500, table.size());
+
+        for (int i = 0; i < 1000; i++) {
+            var e = table.get(new Entry.Key("key" + i));
+            if (i % 2 == 0) {
+                assertNull(e);
+            } else {
+                assertNotNull(e);
+                assertEquals(i, e.flags());
+            }
+        }
+
+        var replaced = table.put(new Entry("key1", 99, 0, new byte[0]));
+        assertEquals(1, replaced.flags());
+        assertEquals(99, table.get(new Entry.Key("key1")).flags());
+        assertEquals(500, table.size());
+    }
+
+    @Test
+    void testCompact() {
+        var table = new ItemTable();
+        for (int i = 0; i < 1000; i++) table.put(new Entry("key" + i, i, 0, new byte[0]));
+        assertFalse(table.compact());
+        int capacity = table.capacity();
+        for (int i = 10; i < 1000; i++) table.remove(new Entry.Key("key" + i));
+
+        assertTrue(table.compact());
+        assertTrue(table.capacity() < capacity / 8);
+        for (int i = 0; i < 10; i++) assertEquals(i, table.get(new Entry.Key("key" + i)).flags());
+        assertNull(table.get(new Entry.Key("key10")));
+    }
+}
@@ -0,0 +1,81 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PartitionsTest {
+
+    @Test
+    void testSpscQueue() throws InterruptedException {
+        var queue = new SpscQueue<Integer>(4);
+        assertTrue(queue.isEmpty());
+        for (int i = 0; i < 4; i++) assertTrue(queue.offer(i));
+        assertFalse(queue.offer(4));
+        assertEquals(0, (int) queue.poll());
+        assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; i++) assertEquals(i, (int) queue.poll());
+        assertNull(queue.poll());
+
+        // the consumer sees every element in order while the producer wraps around
+        var consumed = new ArrayList<Integer>();
+        var consumer = new Thread(() -> {
+            while (consumed.size() < 100_000) {
+                var element = queue.poll();
+                if (element != null) consumed.add(element);
+                else Thread.yield();
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < 100_000; i++) {
+            while (!queue.offer(i)) Thread.yield();
+        }
+        consumer.join();
+        for (int i = 0; i < 100_000; i++) assertEquals(i, (int) consumed.get(i));
+    }
+
+    @Test
+    void testConcurrentConnections() throws InterruptedException {
+        var data = new ServerData(new ServerConfig());
+        try (var partitions = new Partitions(data, 3)) {
+            assertEquals(3, partitions.size());
+            var threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                int id = t;
+                threads.add(new Thread(() -> {
+                    try (var port = partitions.connect()) {
+                        var entries = new ArrayList<Entry>();
+                        for (int i = 0; i < 100; i++) entries.add(new Entry("t" + id + "-" + i, 0, 0, ("" + i).getBytes()));
+                        port.insertAll(entries);
+                        // read-modify-write on a shared key, executed by its owner only
+                        for (int i = 0; i < 1000; i++) {
+                            var key = new Entry.Key("counter");
+                            port.call(key, d -> {
+                                var current = d.get(key);
+                                long value = current == null ? 0 : Util.parseLongNumber(current.value());
+                                return d.insert(new Entry("counter", 0, 0, ("" + (value + 1)).getBytes()));
+                            });
+                        }
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (var thread : threads) thread.join();
+
+            try (var port = partitions.connect()) {
+                var keys = List.of(new Entry.Key("t0-5"), new Entry.Key("missing"), new Entry.Key("t3-99"), new Entry.Key("counter"));
+                var values = port.getAll(keys, ServerData::get);
+                assertArrayEquals("5".getBytes(), values[0].value());
+                assertNull(values[1]);
+                assertArrayEquals("99".getBytes(), values[2].value());
+                assertArrayEquals("4000".getBytes(), values[3].value());
+                assertThrows(IllegalStateException.class, () -> port.call(keys.get(0), d -> {
+                    throw new IllegalStateException();
+                }));
+            }
+        }
+    }
+}
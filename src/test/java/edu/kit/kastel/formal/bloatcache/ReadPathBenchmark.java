@@ -0,0 +1,100 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput of {@link ServerData} under 90% gets and 10% sets on a small set of keys, so readers
+ * and writers contend on the same shards, and the latency of every 16th get. Run with
+ * {@code gradle benchmark}; arguments are the numbers of threads to measure, by default 1, 2, 4 and 8.
+ */
+public class ReadPathBenchmark {
+    private static final int KEYS = 1024;
+    private static final int READ_PERCENT = 90;
+    private static final long WARMUP_MILLIS = 1000;
+    private static final long MEASURE_MILLIS = 3000;
+    private static final int LATENCY_SAMPLE = 16;
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] threadCounts = args.length == 0 ? new int[]{1, 2, 4, 8} : new int[args.length];
+        for (int i = 0; i < args.length; i++) threadCounts[i] = Integer.parseInt(args[i]);
+
+        var data = new ServerData(ServerConfig.fromArgs(new String[]{"--hot-keys-sample-rate=0"}));
+        var keys = new Entry.Key[KEYS];
+        var value = new byte[100];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new Entry.Key("key:" + i);
+            data.insert(new Entry(keys[i], 0, 0, value));
+        }
+
+        for (int threads : threadCounts) {
+            run(data, keys, value, threads, WARMUP_MILLIS, new ArrayList<>());
+            var latencies = new ArrayList<long[]>();
+            long ops = run(data, keys, value, threads, MEASURE_MILLIS, latencies);
+            var sorted = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+            System.out.format(Locale.ROOT, "threads=%d reads=%d%% ops/s=%,d get p50=%dns p99=%dns p99.9=%dns max=%dns%n",
+                    threads, READ_PERCENT, ops * 1000 / MEASURE_MILLIS,
+                    percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    sorted[sorted.length - 1]);
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * p)];
+    }
+
+    /**
+     * @param latencies receives the sampled get latencies of each thread
+     * @return the number of operations
+     */
+    private static long run(ServerData data, Entry.Key[] keys, byte[] value, int threads, long millis,
+                            List<long[]> latencies) throws InterruptedException {
+        var ops = new LongAdder();
+        var start = new CountDownLatch(1);
+        var workers = new ArrayList<Thread>();
+        long end = System.currentTimeMillis() + millis;
+        for (int t = 0; t < threads; t++) {
+            var worker = new Thread(() -> {
+                var random = ThreadLocalRandom.current();
+                var samples = new long[MAX_SAMPLES];
+                int sampled = 0;
+                long count = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while ((count & 1023) != 0 || System.currentTimeMillis() < end) {
+                    var key = keys[random.nextInt(keys.length)];
+                    if (random.nextInt(100) < READ_PERCENT) {
+                        if (count % LATENCY_SAMPLE == 0 && sampled < MAX_SAMPLES) {
+                            long begin = System.nanoTime();
+                            data.get(key);
+                            samples[sampled++] = System.nanoTime() - begin;
+                        } else {
+                            data.get(key);
+                        }
+                    } else {
+                        data.insert(new Entry(key, 0, 0, value));
+                    }
+                    count++;
+                }
+                ops.add(count);
+                synchronized (latencies) {
+                    latencies.add(Arrays.copyOf(samples, sampled));
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (var worker : workers) worker.join();
+        return ops.sum();
+    }
+}
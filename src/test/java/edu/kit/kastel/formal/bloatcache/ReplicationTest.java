@@ -0,0 +1,95 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationTest {
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static String value(ServerData data, String key) {
+        var entry = data.get(new Entry.Key(key));
+        return entry == null ? null : new String(entry.value());
+    }
+
+    @Test
+    void testSnapshotAndStream() throws Exception {
+        var primary = new ServerData();
+        primary.insert(new Entry("before", 1, 0, "snapshot".getBytes()));
+
+        try (var source = new ReplicationSource(primary, "localhost", 8091)) {
+            var replica = new ServerData(ServerConfig.fromArgs(new String[]{"--replica-of=localhost:8091"}));
+            try (var sink = new ReplicationSink(replica)) {
+                await(() -> "snapshot".equals(value(replica, "before")));
+                assertTrue(replica.isReadOnly());
+
+                primary.insert(new Entry("key", 7, 0, "value".getBytes()));
+                await(() -> "value".equals(value(replica, "key")));
+                var copy = replica.get(new Entry.Key("key"));
+                var original = primary.get(new Entry.Key("key"));
+                assertEquals(7, copy.flags());
+                assertEquals(original.cas(), copy.cas());
+
+                primary.update(original, "42".getBytes(), null, null);
+                await(() -> "42".equals(value(replica, "key")));
+
+                var exptime = Util.expirationTime(100);
+                primary.touch(new Entry.Key("key"), exptime);
+                await(() -> replica.get(new Entry.Key("key")).expirationDate() == exptime);
+
+                primary.delete(new Entry.Key("before"));
+                await(() -> value(replica, "before") == null);
+
+                primary.flush(0);
+                await(() -> value(replica, "key") == null);
+                primary.insert(new Entry("after", 0, 0, "flush".getBytes()));
+                await(() -> "flush".equals(value(replica, "after")));
+
+                var stats = new LinkedHashMap<String, Object>();
+                sink.stats(stats);
+                assertEquals("replica", stats.get("replication_role"));
+                assertEquals(1, stats.get("replication_connected"));
+                assertTrue((Long) stats.get("replication_lag_ms") >= 0);
+
+                stats.clear();
+                source.stats(stats);
+                assertEquals(1, stats.get("replication_replicas"));
+                assertEquals(0L, stats.get("replication_accept_failures"));
+            }
+        }
+    }
+
+    @Test
+    void testNamespaceInvalidation() throws Exception {
+        var primary = new ServerData(ServerConfig.fromArgs(new String[]{"--namespace-separator=:"}));
+        try (var source = new ReplicationSource(primary, "localhost", 8092)) {
+            var replica = new ServerData(ServerConfig.fromArgs(new String[]{"--replica-of=localhost:8092", "--namespace-separator=:"}));
+            try (var sink = new ReplicationSink(replica)) {
+                primary.insert(new Entry("tenant:a", 0, 0, "old".getBytes()));
+                primary.insert(new Entry("other:a", 0, 0, "kept".getBytes()));
+                await(() -> "old".equals(value(replica, "tenant:a")) && "kept".equals(value(replica, "other:a")));
+
+                primary.invalidateNamespace("tenant".getBytes());
+                primary.insert(new Entry("tenant:b", 0, 0, "new".getBytes()));
+                await(() -> "new".equals(value(replica, "tenant:b")));
+                assertNull(value(replica, "tenant:a"));
+                assertEquals("kept", value(replica, "other:a"));
+
+                var stats = new LinkedHashMap<String, Object>();
+                sink.stats(stats);
+                assertEquals(1, stats.get("replication_connected"));
+                source.stats(stats);
+                assertEquals(1, stats.get("replication_replicas"));
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SchedulerTest {
+
+    @Test
+    void testRoundRobin() throws Exception {
+        var scheduler = new Scheduler(1, 2, 0);
+        var order = new CopyOnWriteArrayList<String>();
+        var bulk = scheduler.connect();
+        bulk.next();
+        bulk.next();
+
+        var interactive = new Thread(() -> {
+            var turns = scheduler.connect();
+            try {
+                turns.next();
+                order.add("interactive");
+                turns.end();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        interactive.start();
+        while (scheduler.waiting() == 0) Thread.yield();
+
+        // the turn of the bulk connection is over, it queues up behind the waiting one
+        bulk.next();
+        order.add("bulk");
+        bulk.end();
+        interactive.join();
+        assertEquals(List.of("interactive", "bulk"), order);
+
+        var stats = new HashMap<String, Object>();
+        scheduler.stats(stats);
+        assertEquals(3L, stats.get("scheduler_turns"));
+        assertEquals(1L, stats.get("scheduler_preempted"));
+    }
+
+    @Test
+    void testRateLimit() throws Exception {
+        var scheduler = new Scheduler(0, 64, 20);
+        var turns = scheduler.connect();
+        long start = System.nanoTime();
+        // a burst of 20, then 10 more at 20 per second
+        for (int i = 0; i < 30; i++) turns.next();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(millis >= 400, "took " + millis + " ms");
+
+        var stats = new HashMap<String, Object>();
+        scheduler.stats(stats);
+        assertTrue((long) stats.get("rate_limited") >= 10);
+    }
+}
@@ -0,0 +1,319 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerDataTest {
+
+    private static ServerData data(String... options) {
+        return new ServerData(ServerConfig.fromArgs(options));
+    }
+
+    @Test
+    void testCompression() {
+        var data = data("--compression-threshold=64");
+        var json = "{\"name\": \"bloatcache\", \"values\": [1, 2, 3, 4, 5, 6, 7, 8, 9, 10]}".repeat(20).getBytes();
+        data.insert(new Entry("json", 0, 0, json));
+        data.insert(new Entry("small", 0, 0, "{\"a\": 1}".getBytes()));
+
+        var entry = data.get(new Entry.Key("json"));
+        assertTrue(entry.isCompressed());
+        assertTrue(entry.size() < json.length / 4);
+        assertEquals(json.length, entry.valueLength());
+        assertArrayEquals(json, entry.value());
+        assertFalse(data.get(new Entry.Key("small")).isCompressed());
+
+        var stats = new LinkedHashMap<String, Object>();
+        data.stats(stats);
+        assertEquals(1L, stats.get("compressed_items"));
+        assertEquals((long) json.length, stats.get("compressed_raw_bytes"));
+
+        var updated = data.update(entry, "short".getBytes(), null, null);
+        assertFalse(updated.isCompressed());
+        assertArrayEquals("short".getBytes(), updated.value());
+        assertArrayEquals(json, entry.value());
+        assertTrue(updated.cas() > entry.cas());
+        assertNull(data.update(entry, "stale".getBytes(), null, null));
+        stats.clear();
+        data.stats(stats);
+        assertEquals(0L, stats.get("compressed_items"));
+    }
+
+    @Test
+    void testIncompressibleValueStaysRaw() {
+        var data = data("--compression-threshold=16");
+        var random = new byte[256];
+        new java.util.Random(1).nextBytes(random);
+        data.insert(new Entry("random", 0, 0, random));
+        var entry = data.get(new Entry.Key("random"));
+        assertFalse(entry.isCompressed());
+        assertArrayEquals(random, entry.value());
+    }
+
+    @Test
+    void testChunkedValue() throws IOException {
+        var data = data("--item-chunk-size=1024", "--compression-threshold=64");
+        var value = "<p>bloatcache</p>".repeat(1000).getBytes();
+        var input = new ByteArrayInputStream((new String(value) + "\r\nnext").getBytes());
+        var entry = Entry.read(input, new Entry.Key("page"), 1, 0, value.length, 1024);
+        assertTrue(entry instanceof ChunkedEntry);
+        assertEquals('n', input.read());
+
+        data.insert(entry);
+        assertTrue(entry.isCompressed());
+        assertTrue(entry.size() < value.length / 4);
+        assertEquals(value.length, entry.valueLength());
+        assertArrayEquals(value, entry.value());
+
+        var out = new ByteArrayOutputStream();
+        entry.writeValue(out);
+        assertArrayEquals(value, out.toByteArray());
+    }
+
+    @Test
+    void testJoinedValue() {
+        var stored = Entry.of(new Entry.Key("log"), 3, 0, "a".repeat(1500).getBytes(), 1024);
+        var appended = stored.withJoinedValue(new Entry("log", 0, 0, "b".repeat(100).getBytes()), false, 1024);
+        var prepended = appended.withJoinedValue(new Entry("log", 0, 0, "c".getBytes()), true, 1024);
+        assertEquals("c" + "a".repeat(1500) + "b".repeat(100), new String(prepended.value()));
+        assertEquals(3, prepended.flags());
+        // the tail of the value went into its last chunk, the head into a chunk of its own
+        assertSame(stored.chunks()[0], prepended.chunks()[1]);
+        assertEquals(3, prepended.chunks().length);
+
+        var small = new Entry("small", 0, 0, "ab".getBytes()).withJoinedValue(new Entry("small", 0, 0, "c".getBytes()), false, 1024);
+        assertFalse(small instanceof ChunkedEntry);
+        assertEquals("abc", new String(small.value()));
+    }
+
+    @Test
+    void testNamespaces() {
+        var data = data("--namespace-separator=:");
+        data.insert(new Entry("tenant1:a", 0, 0, "1".getBytes()));
+        data.insert(new Entry("tenant1:b", 0, 0, "2".getBytes()));
+        data.insert(new Entry("tenant12:a", 0, 0, "3".getBytes()));
+        data.insert(new Entry("tenant1", 0, 0, "4".getBytes()));
+        data.invalidateNamespace("tenant1".getBytes());
+        assertNull(data.get(new Entry.Key("tenant1:a")));
+        assertNull(data.get(new Entry.Key("tenant1:b")));
+        assertNotNull(data.get(new Entry.Key("tenant12:a")));
+        assertNotNull(data.get(new Entry.Key("tenant1")));
+
+        // a new generation of the namespace
+        data.insert(new Entry("tenant1:a", 0, 0, "5".getBytes()));
+        assertArrayEquals("5".getBytes(), data.get(new Entry.Key("tenant1:a")).value());
+        var stats = new LinkedHashMap<String, Object>();
+        data.stats(stats);
+        assertEquals(3, stats.get("curr_items"));
+        assertEquals(1, stats.get("invalidated_namespaces"));
+
+        data.flush(0);
+        data.stats(stats);
+        assertEquals(0, stats.get("invalidated_namespaces"));
+        assertThrows(IllegalStateException.class, () -> data().invalidateNamespace("tenant1".getBytes()));
+    }
+
+    @Test
+    void testFlushAll() throws InterruptedException {
+        var data = new ServerData();
+        data.insert(new Entry("a", 0, 0, "1".getBytes()));
+        data.insert(new Entry("b", 0, 0, "2".getBytes()));
+        data.flush(0);
+        assertNull(data.get(new Entry.Key("a")));
+        data.insert(new Entry("c", 0, 0, "3".getBytes()));
+        assertNotNull(data.get(new Entry.Key("c")));
+
+        data.flush(1);
+        assertNotNull(data.get(new Entry.Key("c")));
+        Thread.sleep(1100);
+        data.insert(new Entry("d", 0, 0, "4".getBytes()));
+        assertNull(data.get(new Entry.Key("c")));
+        assertNotNull(data.get(new Entry.Key("d")));
+
+        var stats = new LinkedHashMap<String, Object>();
+        data.stats(stats);
+        assertEquals(2L, stats.get("reclaimed"));
+        assertEquals(2L, stats.get("cmd_flush"));
+        // "b" is reclaimed only when it is read or evicted
+        assertEquals(2, data.size());
+    }
+
+    @Test
+    void testExpiration() {
+        var data = new ServerData();
+        data.insert(new Entry("expired", 0, Util.expirationTime(-1), "1".getBytes()));
+        data.insert(new Entry("live", 0, Util.expirationTime(100), "2".getBytes()));
+        assertNull(data.get(new Entry.Key("expired")));
+        assertNotNull(data.get(new Entry.Key("live")));
+    }
+
+    @Test
+    void testConcurrentUpdatesAreNotLost() throws InterruptedException {
+        var data = new ServerData();
+        var key = new Entry.Key("counter");
+        data.insert(new Entry(key, 0, 0, "0".getBytes()));
+
+        var stop = new AtomicBoolean();
+        var failed = new AtomicBoolean();
+        var reader = new Thread(() -> {
+            long lastCas = 0;
+            while (!stop.get()) {
+                var entry = data.get(key);
+                // a version never changes, so value and cas always belong together
+                if (entry.cas() < lastCas || Long.parseLong(new String(entry.value())) < 0) failed.set(true);
+                lastCas = entry.cas();
+            }
+        });
+        reader.start();
+        var writers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            var writer = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    Entry entry;
+                    do {
+                        entry = data.get(key);
+                    } while (data.update(entry, ("" + (Long.parseLong(new String(entry.value())) + 1)).getBytes(), null, null) == null);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (var writer : writers) writer.join();
+        stop.set(true);
+        reader.join();
+
+        assertFalse(failed.get());
+        assertEquals("4000", new String(data.get(key).value()));
+    }
+
+    @Test
+    void testInsertAll() {
+        var data = data("--shards=4");
+        var entries = new ArrayList<Entry>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new Entry("key" + i % 100, 0, 0, String.valueOf(i).getBytes()));
+        }
+        data.insertAll(entries);
+        assertEquals(100, data.size());
+        for (int i = 900; i < 1000; i++) {
+            var entry = data.get(new Entry.Key("key" + i % 100));
+            assertEquals(String.valueOf(i), new String(entry.value()));
+            assertSame(entries.get(i), entry);
+        }
+    }
+
+    @Test
+    void testCompaction() {
+        var data = data("--shards=1");
+        int past = (int) (System.currentTimeMillis() / 1000) - 1;
+        for (int i = 0; i < 1000; i++) data.insert(new Entry("expired" + i, 0, past, new byte[10]));
+        for (int i = 0; i < 10; i++) data.insert(new Entry("live" + i, 0, 0, new byte[10]));
+        assertEquals(1010, data.size());
+
+        // the expired entries were never read, only the compaction removes them
+        assertEquals(1000, data.compact());
+        assertEquals(10, data.size());
+        for (int i = 0; i < 10; i++) assertNotNull(data.get(new Entry.Key("live" + i)));
+        assertEquals(0, data.compact());
+    }
+
+    @Test
+    void testRebalance() {
+        var data = data("--shards=2", "--max-memory=131072", "--eviction-policy=slru");
+        var busy = new ArrayList<String>();
+        for (int i = 0; busy.size() < 200; i++) {
+            var key = "key" + i;
+            if (data.shardIndex(new Entry.Key(key).hash) == 0) busy.add(key);
+        }
+        long share = 131072 / 2;
+        assertFalse(data.rebalance(share / 16, share / 4));
+
+        for (var key : busy) data.insert(new Entry(key, 0, 0, new byte[1024]));
+        int before = countStored(data, busy);
+        // the other shard is empty, so it gives memory to the evicting one
+        assertTrue(data.rebalance(share / 16, share / 4));
+        for (var key : busy) data.insert(new Entry(key, 0, 0, new byte[1024]));
+        assertTrue(countStored(data, busy) > before);
+
+        // no shard drops below the minimum
+        int moves = 1;
+        while (true) {
+            for (var key : busy) data.insert(new Entry(key, 0, 0, new byte[1024]));
+            if (!data.rebalance(share / 16, share / 4)) break;
+            moves++;
+        }
+        assertEquals(12, moves);
+    }
+
+    private static int countStored(ServerData data, List<String> keys) {
+        int stored = 0;
+        for (var key : keys) {
+            if (data.get(new Entry.Key(key)) != null) stored++;
+        }
+        return stored;
+    }
+
+    @Test
+    void testLeases() {
+        var data = data();
+        var key = new Entry.Key("hot");
+        var lease = data.leaseGet(key);
+        assertNotEquals(0, lease.token);
+        assertNull(lease.entry);
+        // later misses neither receive a lease nor a stale value, they wait
+        var miss = data.leaseGet(key);
+        assertEquals(0, miss.token);
+        assertNull(miss.entry);
+
+        assertFalse(data.leaseSet(new Entry(key, 0, 0, "v1".getBytes()), lease.token + 1));
+        assertTrue(data.leaseSet(new Entry(key, 0, 0, "v1".getBytes()), lease.token));
+        assertArrayEquals("v1".getBytes(), data.leaseGet(key).entry.value());
+        // the lease ended with the set
+        assertFalse(data.leaseSet(new Entry(key, 0, 0, "v2".getBytes()), lease.token));
+
+        // the expired value is served as stale while the lease is outstanding
+        int past = (int) (System.currentTimeMillis() / 1000) - 1;
+        data.insert(new Entry(key, 0, past, "old".getBytes()));
+        lease = data.leaseGet(key);
+        assertNotEquals(0, lease.token);
+        var stale = data.leaseGet(key);
+        assertTrue(stale.stale);
+        assertArrayEquals("old".getBytes(), stale.entry.value());
+
+        // a delete ends the lease, even of a missing key, and the outdated value is not stored
+        data.delete(key);
+        assertFalse(data.leaseSet(new Entry(key, 0, 0, "v3".getBytes()), lease.token));
+        lease = data.leaseGet(key);
+        data.insert(new Entry(key, 0, 0, "v4".getBytes()));
+        assertFalse(data.leaseSet(new Entry(key, 0, 0, "v3".getBytes()), lease.token));
+        assertArrayEquals("v4".getBytes(), data.get(key).value());
+
+        var stats = new LinkedHashMap<String, Object>();
+        data.stats(stats);
+        assertEquals(3L, stats.get("lease_granted"));
+        assertEquals(1L, stats.get("lease_stale_hits"));
+        assertEquals(1L, stats.get("lease_waits"));
+    }
+
+    @Test
+    void testLeasesServeNoInvalidatedNamespace() {
+        var data = data("--namespace-separator=:");
+        var key = new Entry.Key("tenant:hot");
+        data.insert(new Entry(key, 0, 0, "old".getBytes()));
+        data.invalidateNamespace("tenant".getBytes());
+        assertNotEquals(0, data.leaseGet(key).token);
+        // the invalidated value is not offered as stale, the others wait
+        var miss = data.leaseGet(key);
+        assertFalse(miss.stale);
+        assertNull(miss.entry);
+    }
+}
@@ -0,0 +1,61 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    @Test
+    void testCoalescing() throws Exception {
+        var singleFlight = new SingleFlight();
+        var loads = new AtomicInteger();
+        var release = new CountDownLatch(1);
+        SingleFlight.Loader loader = key -> {
+            loads.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return "value of " + key;
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            var results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 8; i++) results.add(pool.submit(() -> singleFlight.get("hot", loader)));
+            while (singleFlight.requests() + singleFlight.coalesced() < 8) Thread.yield();
+            assertEquals(1, singleFlight.inFlight());
+            release.countDown();
+            for (var result : results) assertEquals("value of hot", result.get());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1, singleFlight.requests());
+        assertEquals(7, singleFlight.coalesced());
+        assertEquals(0, singleFlight.inFlight());
+
+        // a get after the reply sends a new request
+        assertEquals("value of hot", singleFlight.get("hot", loader));
+        assertEquals(2, singleFlight.requests());
+    }
+
+    @Test
+    void testFailure() {
+        var singleFlight = new SingleFlight();
+        assertThrows(IOException.class, () -> singleFlight.get("key", key -> {
+            throw new IOException("connection lost");
+        }));
+        assertEquals(0, singleFlight.inFlight());
+    }
+}
@@ -0,0 +1,85 @@
+package edu.kit.kastel.formal.bloatcache;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TraceSimulatorTest {
+
+    private static List<byte[]> args(String line) {
+        var args = new ArrayList<byte[]>();
+        for (var arg : line.split(" ")) args.add(arg.getBytes());
+        return args;
+    }
+
+    @Test
+    void testCaptureAndReplay() throws IOException {
+        var file = Files.createTempFile("trace", ".bin");
+        try (var trace = new TraceRecorder(file, 1)) {
+            trace.record(Command.SET, args("set a 0 0 100"));
+            trace.record(Command.GET, args("get a b"));
+            trace.record(Command.TOUCH, args("touch a 0"));
+            trace.record(Command.DELETE, args("delete a"));
+            trace.record(Command.GET, args("get a"));
+            trace.record(Command.INCR, args("incr a 1"));
+            assertEquals(6, trace.records());
+        }
+        assertEquals(TraceRecorder.HEADER_SIZE + 6 * TraceRecorder.RECORD_SIZE, Files.size(file));
+
+        var results = TraceSimulator.simulate(file, List.of("slru"), new long[]{1 << 20}, 1).results();
+        assertEquals(1, results.size());
+        assertEquals(3, results.get(0).gets);
+        assertEquals(1, results.get(0).hits);
+        Files.delete(file);
+    }
+
+    @Test
+    void testHitRatioCurve() throws IOException {
+        var file = Files.createTempFile("trace", ".bin");
+        var random = new Random(42);
+        try (var trace = new TraceRecorder(file, 1)) {
+            // look-aside caching of a skewed key distribution: a miss is followed by a set
+            var stored = new boolean[10_000];
+            for (int i = 0; i < 200_000; i++) {
+                int key = (int) Math.min(stored.length - 1, Math.abs(random.nextGaussian()) * 1000);
+                long hash = Util.hash64(("key" + key).getBytes(), 0, ("key" + key).length());
+                trace.write(0, TraceRecorder.GET, 8, hash, 0, 0);
+                if (!stored[key] || random.nextInt(10) == 0) {
+                    trace.write(0, TraceRecorder.SET, 8, hash, 1000, 0);
+                    stored[key] = true;
+                }
+            }
+        }
+
+        var sizes = new long[]{100_000, 1_000_000, 10_000_000};
+        var simulator = TraceSimulator.simulate(file, List.of("slru", "lfu", "tinylfu"), sizes, 1);
+        assertEquals(200_000, simulator.results().get(0).gets);
+        for (int p = 0; p < 3; p++) {
+            var curve = simulator.results().subList(p * 3, p * 3 + 3);
+            assertTrue(curve.get(0).hitRatio() < curve.get(1).hitRatio(), curve.get(0).policy);
+            assertTrue(curve.get(1).hitRatio() <= curve.get(2).hitRatio(), curve.get(0).policy);
+            assertTrue(curve.get(0).evictions > 0);
+            // everything fits: only the first get of each key misses
+            assertEquals(0, curve.get(2).evictions);
+            assertTrue(curve.get(2).hitRatio() > 0.95);
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    void testSampling() {
+        int sampled = 0;
+        for (int i = 0; i < 100_000; i++) {
+            var key = ("key" + i).getBytes();
+            if (TraceRecorder.isSampled(Util.hash64(key, 0, key.length), 100)) sampled++;
+        }
+        assertTrue(sampled > 800 && sampled < 1200, "sampled " + sampled);
+        assertEquals(64L << 20, TraceSimulator.parseSize("64m"));
+    }
+}